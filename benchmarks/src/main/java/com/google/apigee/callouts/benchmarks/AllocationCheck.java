@@ -0,0 +1,110 @@
+// AllocationCheck.java
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts.benchmarks;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * A regression check on the garbage that CsvShredder makes: runs ShredBenchmark with the GC
+ * profiler, for the fast parser, contrived primary keys and each output format, and exits with
+ * status 1 if the bytes allocated per CSV record exceed the budget for that format. Most of what
+ * remains is the result itself, a String per cell. The benchmarks build runs it in the verify
+ * phase of the allocation-check profile, so an exceeded budget fails the build.
+ *
+ * <pre>
+ * mvn -Pallocation-check verify
+ * java -cp target/benchmarks.jar com.google.apigee.callouts.benchmarks.AllocationCheck
+ * </pre>
+ */
+public class AllocationCheck {
+  private static final int ROWS = 10000;
+  private static final int COLUMNS = 20;
+
+  // Bytes per record, about 15% over what Java 8 (1.8.0_392, 64-bit, compressed oops) measures:
+  // 2509 for table, 3117 for map and 3025 for list. The numbers depend on the JDK. From Java 9,
+  // compact strings store an ASCII cell in half the bytes, so the usage is lower, and a budget
+  // would hide a regression of that size; without compressed oops, as with a heap over 32 GB,
+  // every reference doubles, and the usage can exceed the budgets with no change in the code.
+  // Measure again, and set the budgets, on the JDK that the build uses.
+  private static final Map<String, Long> BUDGETS = new LinkedHashMap<String, Long>();
+
+  static {
+    BUDGETS.put("table", 2900L);
+    BUDGETS.put("map", 3500L);
+    BUDGETS.put("list", 3400L);
+  }
+
+  /** Finds the normalized allocation rate, whose label has a prefix in some versions of JMH. */
+  private static double allocatedPerOp(RunResult result) {
+    for (Map.Entry<String, Result> entry : result.getSecondaryResults().entrySet()) {
+      if (entry.getKey().endsWith("gc.alloc.rate.norm")) {
+        return entry.getValue().getScore();
+      }
+    }
+    throw new IllegalStateException("the GC profiler reported no allocation rate");
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.out.printf(
+        "java %s; the budgets were measured on 1.8.0_392%n", System.getProperty("java.version"));
+    boolean failed = false;
+    for (Map.Entry<String, Long> budget : BUDGETS.entrySet()) {
+      Options options =
+          new OptionsBuilder()
+              .include(ShredBenchmark.class.getName() + ".shred")
+              .mode(Mode.AverageTime)
+              .warmupIterations(3)
+              .warmupTime(TimeValue.seconds(1))
+              .measurementIterations(3)
+              .measurementTime(TimeValue.seconds(1))
+              .forks(1)
+              .jvmArgsAppend("-Xms1g", "-Xmx2g")
+              .param("rows", Integer.toString(ROWS))
+              .param("columns", Integer.toString(COLUMNS))
+              .param("outputFormat", budget.getKey())
+              .param("trimSpaces", "false")
+              .param("parser", "fast")
+              .param("jsonOutput", "none")
+              .param("parallelThreshold", "0")
+              .param("contrivePrimaryKey", "true")
+              .addProfiler(GCProfiler.class)
+              .build();
+      Collection<RunResult> results = new Runner(options).run();
+      for (RunResult result : results) {
+        long perRow = Math.round(allocatedPerOp(result) / ROWS);
+        boolean over = perRow > budget.getValue();
+        System.out.printf(
+            "%-6s %6d bytes per record, budget %6d%s%n",
+            budget.getKey(), perRow, budget.getValue(), over ? "  OVER BUDGET" : "");
+        failed |= over;
+      }
+    }
+    System.exit(failed ? 1 : 0);
+  }
+}
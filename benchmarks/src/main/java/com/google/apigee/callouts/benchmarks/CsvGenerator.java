@@ -0,0 +1,83 @@
+// CsvGenerator.java
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates synthetic CSV content with a header row. The first column is a unique key, the
+ * remaining columns are a mix of short words, numbers, and values that need quoting. Some cells
+ * carry surrounding spaces, so the trim-spaces setting does real work.
+ */
+public final class CsvGenerator {
+  private static final String[] WORDS = {
+    "SACRAMENTO", "ROSEVILLE", "Residential", "Condo", "CA", "alpha", "beta", "gamma", "delta"
+  };
+
+  private CsvGenerator() {}
+
+  public static String key(int row) {
+    return String.format("K%08d", row);
+  }
+
+  public static byte[] generate(int rows, int columns, long seed) {
+    Random random = new Random(seed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(rows * columns * 8);
+    StringBuilder sb = new StringBuilder(columns * 12);
+    sb.append("key");
+    for (int c = 1; c < columns; c++) {
+      sb.append(",col").append(c);
+    }
+    sb.append("\n");
+    write(out, sb);
+
+    for (int r = 0; r < rows; r++) {
+      sb.setLength(0);
+      sb.append(key(r));
+      for (int c = 1; c < columns; c++) {
+        sb.append(',');
+        switch (c % 4) {
+          case 0:
+            sb.append(random.nextInt(100000));
+            break;
+          case 1:
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+            break;
+          case 2:
+            sb.append(' ').append(random.nextInt(1000)).append('.').append(random.nextInt(100));
+            break;
+          default:
+            sb.append("\"").append(WORDS[random.nextInt(WORDS.length)]).append(", ");
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append("\"");
+            break;
+        }
+      }
+      sb.append("\n");
+      write(out, sb);
+    }
+    return out.toByteArray();
+  }
+
+  private static void write(ByteArrayOutputStream out, StringBuilder sb) {
+    byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+    out.write(b, 0, b.length);
+  }
+}
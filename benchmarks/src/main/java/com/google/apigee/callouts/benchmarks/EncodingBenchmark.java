@@ -0,0 +1,114 @@
+// EncodingBenchmark.java
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts.benchmarks;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.callouts.CsvShredder;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures CsvShredder with stream-output, in each output-encoding: the time to parse the CSV and
+ * encode all of it, as the runtime would when it reads the message content. The size of the
+ * encoded output, for each combination of parameters, is printed once at the start of the trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"-Xms1g", "-Xmx2g"})
+public class EncodingBenchmark {
+
+  @Param({"10000", "100000"})
+  public int rows;
+
+  @Param({"5", "20"})
+  public int columns;
+
+  @Param({"json", "cbor", "smile", "columnar"})
+  public String encoding;
+
+  private CsvShredder callout;
+  private Messages.Context context;
+  private Messages.Content content;
+  private MessageContext msgCtxt;
+  private final byte[] buffer = new byte[64 * 1024];
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    byte[] csv = CsvGenerator.generate(rows, columns, 20220104L);
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("stream-output", "json-array");
+    properties.put("output-encoding", encoding);
+    properties.put("parser", "fast");
+    callout = new CsvShredder(properties);
+
+    context = new Messages.Context();
+    content = new Messages.Content(csv);
+    context.setMessage(Messages.newMessage(content));
+    msgCtxt = Messages.newMessageContext(context);
+    System.out.printf(
+        "%n%s: %d rows x %d columns, %d bytes of CSV => %d bytes%n",
+        encoding, rows, columns, csv.length, encode());
+  }
+
+  @Setup(Level.Invocation)
+  public void clearVariables() {
+    context.reset();
+  }
+
+  /** Runs the callout, then drains the stream it set as the content; returns the bytes read. */
+  private long encode() throws Exception {
+    ExecutionResult result = callout.execute0(msgCtxt);
+    if (result != ExecutionResult.SUCCESS) {
+      throw new IllegalStateException("shred failed: " + context.getVariables().get("csv_error"));
+    }
+    long total = 0;
+    try (InputStream in = content.takeContentStream()) {
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        total += n;
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public long shredAndEncode() throws Exception {
+    return encode();
+  }
+}
@@ -0,0 +1,435 @@
+// FlowLoadTest.java
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts.benchmarks;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.callouts.CsvShredder;
+import com.google.apigee.callouts.MapExtractor;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A load test of the two flows of the example proxy, in bundle/apiproxy, run in-process: the
+ * shred flow (Java-ShredCsv, then Cache-StoreMap) and the query flow (Cache-RetrieveMap, then
+ * Java-GetFromMap). A ConcurrentHashMap stands in for the cache that PopulateCache and
+ * LookupCache use, and, as in Apigee, one instance of each callout serves every thread.
+ *
+ * <p>Many threads replay a mix of queries and re-uploads. Both the maps and the keys within a map
+ * are chosen from a Zipf distribution, so a few are hot and most are cold; a fraction of the
+ * queries ask for keys that do not exist. For each flow, the test reports the throughput and the
+ * p50, p99 and p999 latencies, then compares them with a baseline file, and exits with status 1
+ * if any is worse than the baseline by more than the tolerance, or if any request failed.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.google.apigee.callouts.benchmarks.FlowLoadTest \
+ *     [threads=4] [seconds=10] [baseline=flow-baseline.properties] [record=true]
+ * </pre>
+ *
+ * The workload is set by name=value arguments; any not given are taken from the baseline, so a
+ * plain run repeats the workload the baseline measured. When the arguments change the workload,
+ * the results are reported but not compared. record=true writes the results as the new baseline.
+ *
+ * <p>A baseline is only meaningful on the machine, or the class of CI runner, that recorded it.
+ * It records the number of processors, and the results are not compared on a machine with a
+ * different number. The threads default to one per processor; with more threads than
+ * processors, the latencies include the wait for a processor, and the test warns of that.
+ *
+ * <p>A percentile is kept as a measure only when at least ten of the samples lie above it, so a
+ * short run with few shreds neither records nor compares the shred tail, which would be no more
+ * than its slowest sample or two.
+ */
+public class FlowLoadTest {
+  // PopulateCache and LookupCache join the prefix and the key fragment with a double underscore
+  private static final String CACHE_PREFIX = "csv__";
+  private static final String[] FLOWS = {"query", "shred"};
+  private static final double DEFAULT_TOLERANCE = 0.3;
+  private static final int MIN_TAIL_SAMPLES = 10;
+
+  private static final Map<String, String> WORKLOAD = new LinkedHashMap<String, String>();
+
+  static {
+    WORKLOAD.put("threads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+    WORKLOAD.put("seconds", "10");
+    WORKLOAD.put("warmup-seconds", "5");
+    WORKLOAD.put("maps", "16");
+    WORKLOAD.put("rows", "10000");
+    WORKLOAD.put("columns", "20");
+    WORKLOAD.put("write-ratio", "0.0002");
+    WORKLOAD.put("miss-ratio", "0.05");
+    WORKLOAD.put("skew", "1.1");
+  }
+
+  /** Samples the ranks 0 to n-1 with probability proportional to 1/(rank+1)^s. */
+  static final class Zipf {
+    private final double[] cdf;
+
+    Zipf(int n, double s) {
+      cdf = new double[n];
+      double sum = 0;
+      for (int i = 0; i < n; i++) {
+        sum += 1.0 / Math.pow(i + 1, s);
+        cdf[i] = sum;
+      }
+      for (int i = 0; i < n; i++) {
+        cdf[i] /= sum;
+      }
+    }
+
+    int next(Random random) {
+      int i = Arrays.binarySearch(cdf, random.nextDouble());
+      return Math.min((i >= 0) ? i : -i - 1, cdf.length - 1);
+    }
+  }
+
+  /** The two flows of the proxy, sharing one cache. */
+  static final class Flows {
+    private final Map<String, Object> cache = new ConcurrentHashMap<String, Object>();
+    private final CsvShredder shredder;
+    private final MapExtractor extractor;
+
+    Flows() {
+      // the properties of Java-ShredCsv and Java-GetFromMap
+      Map<String, String> properties = new HashMap<String, String>();
+      properties.put("fieldlist", "{request.queryparam.fieldlist}");
+      shredder = new CsvShredder(properties);
+      properties = new HashMap<String, String>();
+      properties.put("fieldnameVariable", "extracted.fieldname");
+      properties.put("mapVariable", "csv_map");
+      extractor = new MapExtractor(properties);
+    }
+
+    /** POST /shred?name={name}; returns true if the map was stored. */
+    boolean shred(String name, byte[] body) {
+      Messages.Context context = new Messages.Context();
+      context.setMessage(Messages.newMessage(new Messages.Content(body)));
+      MessageContext msgCtxt = Messages.newMessageContext(context);
+      context.getVariables().put("request.queryparam.name", name);
+      if (shredder.execute(msgCtxt, null) != ExecutionResult.SUCCESS) {
+        return false;
+      }
+      Object map = context.getVariables().get("csv_result_java");
+      if (map == null) {
+        return false;
+      }
+      cache.put(CACHE_PREFIX + name, map);
+      return true;
+    }
+
+    /** GET /field/{name}/{key}; returns true if the callout produced a result. */
+    boolean query(String name, String key) {
+      Messages.Context context = new Messages.Context();
+      MessageContext msgCtxt = Messages.newMessageContext(context);
+      context.getVariables().put("extracted.mapname", name);
+      context.getVariables().put("extracted.fieldname", key);
+      Object map = cache.get(CACHE_PREFIX + name);
+      if (map != null) {
+        context.getVariables().put("csv_map", map);
+      }
+      return extractor.execute(msgCtxt, null) == ExecutionResult.SUCCESS
+          && context.getVariables().get("csv_result_json") != null;
+    }
+  }
+
+  /** What one thread measured. */
+  static final class Recorder {
+    final LatencyHistogram[] latencies = {new LatencyHistogram(), new LatencyHistogram()};
+    final long[] errors = new long[FLOWS.length];
+  }
+
+  private static volatile boolean measuring;
+  private static volatile boolean running = true;
+
+  private static int intSetting(Map<String, String> settings, String name) {
+    return Integer.parseInt(settings.get(name));
+  }
+
+  private static double doubleSetting(Map<String, String> settings, String name) {
+    return Double.parseDouble(settings.get(name));
+  }
+
+  private static Properties load(File file) throws Exception {
+    Properties properties = new Properties();
+    if (file.exists()) {
+      try (InputStream in = new FileInputStream(file)) {
+        properties.load(in);
+      }
+    }
+    return properties;
+  }
+
+  private static Map<String, Double> measure(Map<String, String> workload) throws Exception {
+    final int threads = intSetting(workload, "threads");
+    final int maps = intSetting(workload, "maps");
+    final int rows = intSetting(workload, "rows");
+    final int columns = intSetting(workload, "columns");
+    final double writeRatio = doubleSetting(workload, "write-ratio");
+    final double missRatio = doubleSetting(workload, "miss-ratio");
+    final double skew = doubleSetting(workload, "skew");
+
+    // two versions of each CSV, so that a re-upload replaces the map with a different one
+    final String[] names = new String[maps];
+    final byte[][][] bodies = new byte[maps][2][];
+    for (int m = 0; m < maps; m++) {
+      names[m] = "map" + m;
+      bodies[m][0] = CsvGenerator.generate(rows, columns, 20220104L + m);
+      bodies[m][1] = CsvGenerator.generate(rows, columns, 20221017L + m);
+    }
+    // the hot keys are scattered through the table, rather than the first rows
+    List<String> shuffled = new ArrayList<String>(rows);
+    for (int r = 0; r < rows; r++) {
+      shuffled.add(CsvGenerator.key(r));
+    }
+    Collections.shuffle(shuffled, new Random(17L));
+    final String[] keys = shuffled.toArray(new String[rows]);
+    final Zipf mapChooser = new Zipf(maps, skew);
+    final Zipf keyChooser = new Zipf(rows, skew);
+
+    final Flows flows = new Flows();
+    for (int m = 0; m < maps; m++) {
+      if (!flows.shred(names[m], bodies[m][0])) {
+        throw new IllegalStateException("the initial shred of " + names[m] + " failed");
+      }
+    }
+
+    final Recorder[] recorders = new Recorder[threads];
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final Recorder recorder = recorders[t] = new Recorder();
+      final Random random = new Random(1000L + t);
+      workers[t] =
+          new Thread(
+              new Runnable() {
+                public void run() {
+                  while (running) {
+                    int m = mapChooser.next(random);
+                    boolean write = random.nextDouble() < writeRatio;
+                    boolean counted = measuring;
+                    long start = System.nanoTime();
+                    boolean ok =
+                        write
+                            ? flows.shred(names[m], bodies[m][random.nextInt(2)])
+                            : flows.query(
+                                names[m],
+                                (random.nextDouble() < missRatio)
+                                    ? "missing-key"
+                                    : keys[keyChooser.next(random)]);
+                    long elapsed = System.nanoTime() - start;
+                    if (counted) {
+                      int flow = write ? 1 : 0;
+                      recorder.latencies[flow].record(elapsed);
+                      if (!ok) {
+                        recorder.errors[flow]++;
+                      }
+                    }
+                  }
+                }
+              },
+              "load-" + t);
+      workers[t].start();
+    }
+
+    Thread.sleep(1000L * intSetting(workload, "warmup-seconds"));
+    long start = System.nanoTime();
+    measuring = true;
+    Thread.sleep(1000L * intSetting(workload, "seconds"));
+    measuring = false;
+    double seconds = (System.nanoTime() - start) / 1e9;
+    running = false;
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    Map<String, Double> results = new LinkedHashMap<String, Double>();
+    System.out.printf(
+        "%-6s %10s %10s %10s %10s %10s %10s %7s%n",
+        "flow", "requests", "req/s", "p50 us", "p99 us", "p999 us", "max us", "errors");
+    for (int f = 0; f < FLOWS.length; f++) {
+      LatencyHistogram total = new LatencyHistogram();
+      long errors = 0;
+      for (Recorder recorder : recorders) {
+        total.add(recorder.latencies[f]);
+        errors += recorder.errors[f];
+      }
+      String flow = FLOWS[f];
+      results.put(flow + ".requests_per_sec", total.count() / seconds);
+      putPercentile(results, flow + ".p50_us", total, 0.50);
+      putPercentile(results, flow + ".p99_us", total, 0.99);
+      putPercentile(results, flow + ".p999_us", total, 0.999);
+      results.put(flow + ".errors", (double) errors);
+      System.out.printf(
+          "%-6s %10d %10.0f %10.1f %10.1f %10.1f %10.1f %7d%n",
+          flow,
+          total.count(),
+          total.count() / seconds,
+          total.percentile(0.50) / 1e3,
+          total.percentile(0.99) / 1e3,
+          total.percentile(0.999) / 1e3,
+          total.max() / 1e3,
+          errors);
+    }
+    return results;
+  }
+
+  /** Adds the percentile, in microseconds, if enough samples lie above it to estimate it. */
+  private static void putPercentile(
+      Map<String, Double> results, String name, LatencyHistogram histogram, double fraction) {
+    if (histogram.count() * (1 - fraction) >= MIN_TAIL_SAMPLES) {
+      results.put(name, histogram.percentile(fraction) / 1e3);
+    }
+  }
+
+  /** Returns the names of the measures that are worse than the baseline by more than allowed. */
+  private static List<String> compare(
+      Map<String, Double> results, Properties baseline, double tolerance) {
+    List<String> regressions = new ArrayList<String>();
+    for (Map.Entry<String, Double> result : results.entrySet()) {
+      String name = result.getKey();
+      String expected = baseline.getProperty(name);
+      if (expected == null || name.endsWith(".errors")) {
+        continue;
+      }
+      double allowed =
+          Double.parseDouble(baseline.getProperty(name + ".tolerance", Double.toString(tolerance)));
+      double base = Double.parseDouble(expected);
+      double actual = result.getValue();
+      boolean throughput = name.endsWith("_per_sec");
+      boolean worse =
+          throughput ? actual < base * (1 - allowed) : actual > base * (1 + allowed);
+      System.out.printf(
+          "%-24s %12.1f baseline %12.1f%s%n", name, actual, base, worse ? "  REGRESSION" : "");
+      if (worse) {
+        regressions.add(name);
+      }
+    }
+    return regressions;
+  }
+
+  private static void record(
+      File file, Map<String, String> workload, Map<String, Double> results, Properties baseline)
+      throws Exception {
+    try (PrintWriter out =
+        new PrintWriter(
+            new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+      out.println("# The baseline for FlowLoadTest, recorded with record=true.");
+      out.printf("# java %s%n", System.getProperty("java.version"));
+      out.println();
+      out.printf("machine.processors=%d%n", Runtime.getRuntime().availableProcessors());
+      out.println();
+      for (Map.Entry<String, String> setting : workload.entrySet()) {
+        out.printf("workload.%s=%s%n", setting.getKey(), setting.getValue());
+      }
+      out.println();
+      out.printf(
+          "tolerance=%s%n", baseline.getProperty("tolerance", Double.toString(DEFAULT_TOLERANCE)));
+      for (String name : new TreeSet<String>(baseline.stringPropertyNames())) {
+        if (name.endsWith(".tolerance")) {
+          out.printf("%s=%s%n", name, baseline.getProperty(name));
+        }
+      }
+      out.println();
+      for (Map.Entry<String, Double> result : results.entrySet()) {
+        if (!result.getKey().endsWith(".errors")) {
+          out.printf("%s=%.1f%n", result.getKey(), result.getValue());
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 1) {
+        throw new IllegalArgumentException("expected name=value, not " + arg);
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    String path = options.remove("baseline");
+    File file = new File((path != null) ? path : "flow-baseline.properties");
+    boolean record = Boolean.parseBoolean(options.remove("record"));
+    String tolerance = options.remove("tolerance");
+    Properties baseline = load(file);
+
+    // the workload the baseline measured, then any changes to it
+    Map<String, String> workload = new LinkedHashMap<String, String>();
+    boolean comparable = !baseline.isEmpty();
+    for (Map.Entry<String, String> setting : WORKLOAD.entrySet()) {
+      String name = setting.getKey();
+      String value = baseline.getProperty("workload." + name, setting.getValue());
+      String option = options.remove(name);
+      if (option != null && !option.equals(value)) {
+        comparable = false;
+        value = option;
+      }
+      workload.put(name, value);
+    }
+    if (!options.isEmpty()) {
+      throw new IllegalArgumentException("unknown settings: " + options.keySet());
+    }
+    System.out.println("workload " + workload);
+    int processors = Runtime.getRuntime().availableProcessors();
+    if (intSetting(workload, "threads") > processors) {
+      System.out.printf(
+          "warning: %d threads on %d processors; the latencies include waiting for a processor%n",
+          intSetting(workload, "threads"), processors);
+    }
+    String recordedOn = baseline.getProperty("machine.processors");
+    boolean sameMachine = Integer.toString(processors).equals(recordedOn);
+    if (comparable && !sameMachine) {
+      System.out.printf(
+          "not compared: the baseline was recorded on %s processors, and this machine has %d%n",
+          (recordedOn != null) ? recordedOn : "an unknown number of", processors);
+    }
+
+    Map<String, Double> results = measure(workload);
+    boolean failed = results.get("query.errors") > 0 || results.get("shred.errors") > 0;
+    if (comparable && sameMachine) {
+      double allowed =
+          Double.parseDouble(
+              (tolerance != null)
+                  ? tolerance
+                  : baseline.getProperty("tolerance", Double.toString(DEFAULT_TOLERANCE)));
+      failed |= !compare(results, baseline, allowed).isEmpty();
+    } else if (!comparable) {
+      System.out.println("not compared: no baseline, or a different workload, in " + file);
+    }
+    if (record) {
+      record(file, workload, results, baseline);
+      System.out.println("recorded the baseline in " + file);
+    }
+    System.exit(failed ? 1 : 0);
+  }
+}
@@ -0,0 +1,96 @@
+// LatencyHistogram.java
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts.benchmarks;
+
+/**
+ * A histogram of latencies in nanoseconds, for one thread of a load test. Values fall into
+ * logarithmic buckets, 32 per power of two, so a percentile is accurate to within about 3%, and
+ * the histogram is a fixed 16K longs however many values it records. Histograms from several
+ * threads are combined with {@link #add}.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long max;
+
+  /** Values below 32 have a bucket each; above that, each power of two has 32 buckets. */
+  static int bucketFor(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) Math.max(0, value);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /** Returns the largest value that falls into the bucket. */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    int sub = bucket % SUB_BUCKETS;
+    long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    return lower + (1L << (exponent - SUB_BITS)) - 1;
+  }
+
+  public void record(long nanos) {
+    counts[bucketFor(nanos)]++;
+    count++;
+    if (nanos > max) {
+      max = nanos;
+    }
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    max = Math.max(max, other.max);
+  }
+
+  public long count() {
+    return count;
+  }
+
+  public long max() {
+    return max;
+  }
+
+  /** Returns the value at or below which the given fraction of the values fall. */
+  public long percentile(double fraction) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max);
+      }
+    }
+    return max;
+  }
+}
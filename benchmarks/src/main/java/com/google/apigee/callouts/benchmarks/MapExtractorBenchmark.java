@@ -0,0 +1,111 @@
+// MapExtractorBenchmark.java
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts.benchmarks;
+
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.callouts.CsvShredder;
+import com.google.apigee.callouts.MapExtractor;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures MapExtractor.execute0 — the query flow — against a map produced by CsvShredder. The
+ * map is built once per trial; each invocation looks up one random key, with a configurable
+ * fraction of misses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"-Xms2g", "-Xmx4g"})
+public class MapExtractorBenchmark {
+
+  @Param({"1000", "100000"})
+  public int rows;
+
+  @Param({"5", "20", "200"})
+  public int columns;
+
+  @Param({"0.1"})
+  public double missRatio;
+
+  @Param({"false", "true"})
+  public boolean precomputeRowJson;
+
+  private MapExtractor callout;
+  private Messages.Context context;
+  private MessageContext msgCtxt;
+  private Random random;
+  private String[] keys;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    byte[] content = CsvGenerator.generate(rows, columns, 20220104L);
+    context = new Messages.Context();
+    context.setMessage(Messages.newMessage(new Messages.Content(content)));
+    msgCtxt = Messages.newMessageContext(context);
+
+    Map<String, String> shredderProperties = new HashMap<String, String>();
+    shredderProperties.put("json-output", "none");
+    shredderProperties.put("precompute-row-json", Boolean.toString(precomputeRowJson));
+    new CsvShredder(shredderProperties).execute0(msgCtxt);
+    Object map =
+        context
+            .getVariables()
+            .get(precomputeRowJson ? "csv_result_rowjson" : "csv_result_java");
+    context.reset();
+    context.getVariables().put("csv_map", map);
+
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("fieldnameVariable", "extracted.fieldname");
+    properties.put("mapVariable", "csv_map");
+    callout = new MapExtractor(properties);
+    random = new Random(17L);
+    keys = new String[rows];
+    for (int i = 0; i < rows; i++) {
+      keys[i] = CsvGenerator.key(i);
+    }
+  }
+
+  @Benchmark
+  public Object lookup() throws Exception {
+    String key =
+        (random.nextDouble() < missRatio) ? "missing-key" : keys[random.nextInt(rows)];
+    context.getVariables().put("extracted.fieldname", key);
+    callout.execute0(msgCtxt);
+    return context.getVariables().get("csv_result_json");
+  }
+}
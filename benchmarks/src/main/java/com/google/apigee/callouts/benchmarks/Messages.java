@@ -0,0 +1,161 @@
+// Messages.java
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts.benchmarks;
+
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lightweight stand-ins for the Apigee {@code MessageContext} and {@code Message}. These are plain
+ * dynamic proxies over a HashMap, so that the cost measured by a benchmark is the cost of the
+ * callout, and not the cost of a mocking framework.
+ */
+public final class Messages {
+  private Messages() {}
+
+  public static final class Context implements InvocationHandler {
+    private final Map<String, Object> variables = new HashMap<String, Object>();
+    private Message message;
+
+    public Map<String, Object> getVariables() {
+      return variables;
+    }
+
+    public void setMessage(Message message) {
+      this.message = message;
+    }
+
+    public void reset() {
+      variables.clear();
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "getVariable":
+          return variables.get((String) args[0]);
+        case "setVariable":
+          variables.put((String) args[0], args[1]);
+          return true;
+        case "removeVariable":
+          return variables.remove((String) args[0]) != null;
+        case "getMessage":
+        case "getRequestMessage":
+          return message;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "MessageContext(benchmark)";
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    }
+  }
+
+  public static final class Content implements InvocationHandler {
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private byte[] content;
+    private InputStream contentStream;
+    private ByteArrayInputStream rewindable;
+
+    public Content(byte[] content) {
+      this.content = content;
+    }
+
+    public Map<String, String> getHeaders() {
+      return headers;
+    }
+
+    /**
+     * From now on, serves the content from one stream, which this moves back to the start, rather
+     * than from a new stream per call; so a benchmark need not allocate one per invocation.
+     */
+    public void rewind() {
+      if (rewindable == null) {
+        rewindable = new ByteArrayInputStream(content);
+      }
+      rewindable.reset();
+    }
+
+    /** Returns the stream most recently set as the content, as by stream-output, and forgets it. */
+    public InputStream takeContentStream() {
+      InputStream stream = contentStream;
+      contentStream = null;
+      return stream;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "getContentAsStream":
+          return (rewindable != null) ? rewindable : new ByteArrayInputStream(content);
+        case "getContent":
+          return new String(content, StandardCharsets.UTF_8);
+        case "setContent":
+          if (args[0] instanceof String) {
+            content = ((String) args[0]).getBytes(StandardCharsets.UTF_8);
+            rewindable = null;
+          } else if (args[0] instanceof InputStream) {
+            contentStream = (InputStream) args[0];
+          }
+          return null;
+        case "getHeader":
+          return headers.get(((String) args[0]).toLowerCase());
+        case "setHeader":
+          headers.put(((String) args[0]).toLowerCase(), String.valueOf(args[1]));
+          return true;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "Message(benchmark)";
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    }
+  }
+
+  public static MessageContext newMessageContext(Context handler) {
+    return (MessageContext)
+        Proxy.newProxyInstance(
+            MessageContext.class.getClassLoader(), new Class<?>[] {MessageContext.class}, handler);
+  }
+
+  public static Message newMessage(Content handler) {
+    return (Message)
+        Proxy.newProxyInstance(
+            Message.class.getClassLoader(), new Class<?>[] {Message.class}, handler);
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) return false;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0L;
+    return null;
+  }
+}
@@ -0,0 +1,96 @@
+// MillionRowShredBenchmark.java
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts.benchmarks;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.callouts.CsvShredder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures CsvShredder.execute0 over a body of a million rows, which is apart from ShredBenchmark
+ * so that it does not multiply that matrix. The columns are narrow and few, and the parser and
+ * format are fixed, so the case fits in a moderate heap. Each shred takes seconds, so this times
+ * single shots, and clears the variables and rewinds the content as ShredBenchmark does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"-Xms4g", "-Xmx8g"})
+public class MillionRowShredBenchmark {
+
+  @Param({"1000000"})
+  public int rows;
+
+  @Param({"5"})
+  public int columns;
+
+  @Param({"table"})
+  public String outputFormat;
+
+  private CsvShredder callout;
+  private Messages.Context context;
+  private Messages.Content content;
+  private MessageContext msgCtxt;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    byte[] csv = CsvGenerator.generate(rows, columns, 20220104L);
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("output-format", outputFormat);
+    properties.put("parser", "fast");
+    properties.put("json-output", "none");
+    callout = new CsvShredder(properties);
+
+    context = new Messages.Context();
+    content = new Messages.Content(csv);
+    context.setMessage(Messages.newMessage(content));
+    msgCtxt = Messages.newMessageContext(context);
+  }
+
+  @Benchmark
+  public Object shred() throws Exception {
+    // do not let the previous result stay reachable during this invocation
+    context.reset();
+    content.rewind();
+    ExecutionResult result = callout.execute0(msgCtxt);
+    if (result != ExecutionResult.SUCCESS) {
+      throw new IllegalStateException("shred failed: " + context.getVariables().get("csv_error"));
+    }
+    return context.getVariables().get("csv_result_java");
+  }
+}
@@ -0,0 +1,122 @@
+// ShredBenchmark.java
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts.benchmarks;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.callouts.CsvShredder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures CsvShredder.execute0 over a synthetic CSV body. Run with {@code -prof gc} to get the
+ * allocation rate; SampleTime mode reports the latency percentiles.
+ *
+ * <p>The message is built once per trial. Each invocation clears the variables and rewinds the
+ * content itself, which costs next to nothing beside a shred, as a per-invocation setup would add
+ * JMH's own overhead and timestamps to the measurement.
+ *
+ * <p>The default parameters are a core of 8 cases, which runs in a few minutes. For the full
+ * sweep, name the values on the command line, eg {@code -p rows=1000,10000,100000 -p
+ * columns=5,20,200 -p outputFormat=map,list,table -p trimSpaces=false,true -p
+ * jsonOutput=pretty,none -p parallelThreshold=0,1048576}. MillionRowShredBenchmark covers the
+ * largest body.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"-Xms4g", "-Xmx8g"})
+public class ShredBenchmark {
+
+  @Param({"1000", "100000"})
+  public int rows;
+
+  @Param({"20"})
+  public int columns;
+
+  @Param({"map", "table"})
+  public String outputFormat;
+
+  @Param({"false"})
+  public boolean trimSpaces;
+
+  @Param({"commons", "fast"})
+  public String parser;
+
+  @Param({"none"})
+  public String jsonOutput;
+
+  @Param({"0"})
+  public String parallelThreshold;
+
+  @Param({"false"})
+  public boolean contrivePrimaryKey;
+
+  private CsvShredder callout;
+  private Messages.Context context;
+  private Messages.Content content;
+  private MessageContext msgCtxt;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    byte[] csv = CsvGenerator.generate(rows, columns, 20220104L);
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("output-format", outputFormat);
+    properties.put("trim-spaces", Boolean.toString(trimSpaces));
+    properties.put("parser", parser);
+    properties.put("json-output", jsonOutput);
+    properties.put("parallel-threshold", parallelThreshold);
+    properties.put("contrive-primary-key", Boolean.toString(contrivePrimaryKey));
+    callout = new CsvShredder(properties);
+
+    context = new Messages.Context();
+    content = new Messages.Content(csv);
+    context.setMessage(Messages.newMessage(content));
+    msgCtxt = Messages.newMessageContext(context);
+  }
+
+  @Benchmark
+  public Object shred() throws Exception {
+    // do not let the previous result stay reachable during this invocation
+    context.reset();
+    content.rewind();
+    ExecutionResult result = callout.execute0(msgCtxt);
+    if (result != ExecutionResult.SUCCESS) {
+      throw new IllegalStateException("shred failed: " + context.getVariables().get("csv_error"));
+    }
+    return context.getVariables().get("csv_result_java");
+  }
+}
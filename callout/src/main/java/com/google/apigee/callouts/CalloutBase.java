@@ -21,13 +21,17 @@ package com.google.apigee.callouts;
 import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -40,8 +44,22 @@ public abstract class CalloutBase implements Execution {
   protected final ObjectMapper om = new ObjectMapper();
 
   protected Map<String, String> properties; // read-only
+  private final Map<String, Template> templates; // read-only
+
+  // the metrics of the invocation in progress on this thread, if enabled
+  private static final ThreadLocal<Metrics> currentMetrics = new ThreadLocal<Metrics>();
+  // the total time of recent invocations of this callout
+  private final RollingHistogram latencies = new RollingHistogram(60 * 1000L);
 
   public CalloutBase(Map properties) {
+    this(properties, false);
+  }
+
+  /**
+   * @param literal if true, the values of the properties are taken as they are, with no variable
+   *     references; for values that were resolved already.
+   */
+  protected CalloutBase(Map properties, boolean literal) {
     // convert the untyped Map to a generic map
     Map<String, String> m = new HashMap<String, String>();
     Iterator iterator = properties.keySet().iterator();
@@ -53,6 +71,78 @@ public abstract class CalloutBase implements Execution {
       }
     }
     this.properties = Collections.unmodifiableMap(m);
+
+    // compile each property once, so that a request need only fill in the variable values
+    Map<String, Template> t = new HashMap<String, Template>();
+    for (Map.Entry<String, String> entry : m.entrySet()) {
+      String value = entry.getValue().trim();
+      t.put(entry.getKey(), literal ? Template.literal(value) : Template.compile(value));
+    }
+    this.templates = Collections.unmodifiableMap(t);
+  }
+
+  /**
+   * A property value, split into literal text and variable references. A value with no
+   * references resolves to the same String every time, without any work.
+   */
+  private static final class Template {
+    private final String constant; // non-null if there are no references
+    private final String[] texts; // the text before each reference, then the tail
+    private final String[] refs;
+    private final String[] defaults;
+
+    private Template(String constant, String[] texts, String[] refs, String[] defaults) {
+      this.constant = constant;
+      this.texts = texts;
+      this.refs = refs;
+      this.defaults = defaults;
+    }
+
+    static Template literal(String value) {
+      return new Template(value, null, null, null);
+    }
+
+    static Template compile(String spec) {
+      Matcher matcher = variableReferencePattern.matcher(spec);
+      List<String> texts = new ArrayList<String>();
+      List<String> refs = new ArrayList<String>();
+      List<String> defaults = new ArrayList<String>();
+      int position = 0;
+      while (matcher.find()) {
+        texts.add(spec.substring(position, matcher.start(2) - 1));
+        String[] parts = matcher.group(2).split(":", 2);
+        refs.add(parts[0]);
+        defaults.add((parts.length > 1) ? parts[1] : null);
+        position = matcher.end();
+      }
+      if (refs.isEmpty()) {
+        return new Template(spec, null, null, null);
+      }
+      texts.add(spec.substring(position));
+      return new Template(
+          null,
+          texts.toArray(new String[texts.size()]),
+          refs.toArray(new String[refs.size()]),
+          defaults.toArray(new String[defaults.size()]));
+    }
+
+    String resolve(MessageContext msgCtxt) {
+      if (constant != null) {
+        return constant;
+      }
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < refs.length; i++) {
+        sb.append(texts[i]);
+        Object v = msgCtxt.getVariable(refs[i]);
+        if (v != null) {
+          sb.append((String) v);
+        } else if (defaults[i] != null) {
+          sb.append(defaults[i]);
+        }
+      }
+      sb.append(texts[refs.length]);
+      return sb.toString();
+    }
   }
 
   public abstract String getVarnamePrefix();
@@ -68,36 +158,53 @@ public abstract class CalloutBase implements Execution {
 
   protected boolean _getBooleanProperty(MessageContext msgCtxt, String propName, boolean defaultValue)
       throws Exception {
-    String flag = this.properties.get(propName);
-    if (flag != null) flag = flag.trim();
-    if (flag == null || flag.equals("")) {
+    String flag = _getStringProperty(msgCtxt, propName, null);
+    if (flag == null) {
       return defaultValue;
     }
-    flag = resolveVariableReferences(flag, msgCtxt);
-    if (flag == null || flag.equals("")) {
+    return flag.equalsIgnoreCase("true");
+  }
+
+  protected String _getStringProperty(MessageContext msgCtxt, String propName, String defaultValue)
+      throws Exception {
+    Template template = templates.get(propName);
+    if (template == null) {
       return defaultValue;
     }
-    return flag.equalsIgnoreCase("true");
+    String value = template.resolve(msgCtxt);
+    if (value.equals("")) {
+      return defaultValue;
+    }
+    return value;
   }
 
-  protected String resolveVariableReferences(String spec, MessageContext msgCtxt) {
-    Matcher matcher = variableReferencePattern.matcher(spec);
-    StringBuffer sb = new StringBuffer();
-    while (matcher.find()) {
-      matcher.appendReplacement(sb, "");
-      sb.append(matcher.group(1));
-      String ref = matcher.group(2);
-      String[] parts = ref.split(":", 2);
-      Object v = msgCtxt.getVariable(parts[0]);
-      if (v != null) {
-        sb.append((String) v);
-      } else if (parts.length > 1) {
-        sb.append(parts[1]);
-      }
-      sb.append(matcher.group(3));
+  protected int _getIntProperty(MessageContext msgCtxt, String propName, int defaultValue)
+      throws Exception {
+    String value = _getStringProperty(msgCtxt, propName, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException exc1) {
+      throw new IllegalStateException(propName + " is not an integer: " + value);
     }
-    matcher.appendTail(sb);
-    return sb.toString();
+  }
+
+  /**
+   * Returns the body of the message as UTF-8: decompressed per Content-Encoding, transcoded from
+   * the charset property or the charset in Content-Type, and without a byte-order mark.
+   */
+  protected InputStream getDecodedContent(MessageContext msgCtxt, Message msg) throws Exception {
+    return ContentDecoder.decode(
+        msg.getContentAsStream(),
+        msg.getHeader("content-type"),
+        msg.getHeader("content-encoding"),
+        _getStringProperty(msgCtxt, "charset", null));
+  }
+
+  protected String resolveVariableReferences(String spec, MessageContext msgCtxt) {
+    return Template.compile(spec).resolve(msgCtxt);
   }
 
   protected static String getStackTraceAsString(Throwable t) {
@@ -120,8 +227,22 @@ public abstract class CalloutBase implements Execution {
 
   public abstract ExecutionResult execute0(final MessageContext msgCtxt) throws Exception;
 
+  /**
+   * Returns the metrics for the current invocation. These record nothing unless the callout is
+   * configured with metrics=true.
+   */
+  protected Metrics metrics() {
+    Metrics metrics = currentMetrics.get();
+    return (metrics != null) ? metrics : Metrics.DISABLED;
+  }
+
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    Metrics metrics = Metrics.DISABLED;
     try {
+      if (_getBooleanProperty(msgCtxt, "metrics", false)) {
+        metrics = Metrics.start();
+        currentMetrics.set(metrics);
+      }
       return execute0(msgCtxt);
 
     } catch (IllegalStateException exc1) {
@@ -134,6 +255,11 @@ public abstract class CalloutBase implements Execution {
       }
       setExceptionVariables(e, msgCtxt);
       return ExecutionResult.ABORT;
+    } finally {
+      if (metrics.isEnabled()) {
+        currentMetrics.remove();
+        metrics.publish(msgCtxt, varName("metrics_"), latencies);
+      }
     }
   }
 }
@@ -0,0 +1,212 @@
+// ColumnarRecordStream.java
+//
+// An InputStream that encodes CSV records in a compact columnar layout,
+// for analytic consumers, as it is read. Like a Parquet file, it holds
+// the records in row groups, and within each group, the values of each
+// column together, so that a reader can decode just the columns it
+// wants, and a column with few distinct values is dictionary-encoded.
+// Memory use is bounded by one row group, whatever the size of the CSV.
+//
+// The layout, where a varint is an unsigned LEB128 integer, and a
+// string is a varint byte length followed by that many bytes of UTF-8:
+//
+//   "CSVC", a version byte (1), a varint column count, a string per name
+//   (a name repeated in the CSV header appears once, for its last column),
+//   then row groups, each a varint row count (never 0), then per column:
+//     0, a varint per row: 0 if absent, else 1 + the byte length of the
+//        value; then the UTF-8 of the present values, concatenated
+//     1, a varint dictionary size, a string per dictionary entry; then a
+//        varint per row: 0 if absent, else 1 + the index of the value
+//   and finally a varint 0.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+class ColumnarRecordStream extends RecordStream {
+  static final byte[] MAGIC = {'C', 'S', 'V', 'C'};
+  static final int VERSION = 1;
+  static final int PLAIN = 0;
+  static final int DICTIONARY = 1;
+  private static final int MAX_GROUP_ROWS = 4096;
+  private static final int MAX_GROUP_CELLS = 64 * 1024;
+
+  private final int groupRows;
+  private final String[][] values; // values[column][row] for the current group
+  private final int[] codes; // codes[row], 0 if absent, else 1 + the index in the dictionary
+  private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+  private final Bytes out = new Bytes(); // the encoded group, copied to the buffer in one go
+  private final Bytes data = new Bytes(); // the values of a plain column, which follow the lengths
+  private boolean started = false;
+
+  ColumnarRecordStream(RowReader records) {
+    super(records);
+    this.groupRows =
+        Math.max(1, Math.min(MAX_GROUP_ROWS, MAX_GROUP_CELLS / Math.max(1, header.length)));
+    this.values = new String[header.length][groupRows];
+    this.codes = new int[groupRows];
+  }
+
+  protected boolean fill() throws IOException {
+    buffer.clear();
+    out.size = 0;
+    if (!started) {
+      out.write(MAGIC, 0, MAGIC.length);
+      out.write(VERSION);
+      out.writeVarint(header.length);
+      for (String name : header) {
+        writeString(name);
+      }
+      started = true;
+    }
+    int rows = 0;
+    while (rows < groupRows && records.next()) {
+      int n = records.size();
+      for (int col = 0; col < header.length; col++) {
+        values[col][rows] = (columns[col] < n) ? records.get(columns[col]) : null;
+      }
+      rows++;
+    }
+    out.writeVarint(rows);
+    for (int col = 0; col < header.length && rows > 0; col++) {
+      writeColumn(values[col], rows);
+    }
+    buffer.write(out.bytes, 0, out.size);
+    return rows > 0;
+  }
+
+  /** Writes the column with a dictionary, if at most a quarter of its values are distinct. */
+  private void writeColumn(String[] column, int rows) {
+    dictionary.clear();
+    int maxEntries = rows / 4;
+    int coded = 0;
+    for (; coded < rows && dictionary.size() <= maxEntries; coded++) {
+      String value = column[coded];
+      if (value == null) {
+        codes[coded] = 0;
+      } else {
+        Integer code = dictionary.get(value);
+        if (code == null) {
+          code = dictionary.size() + 1;
+          dictionary.put(value, code);
+        }
+        codes[coded] = code;
+      }
+    }
+
+    if (coded == rows && dictionary.size() <= maxEntries) {
+      out.write(DICTIONARY);
+      String[] entries = new String[dictionary.size()];
+      for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+        entries[entry.getValue() - 1] = entry.getKey();
+      }
+      out.writeVarint(entries.length);
+      for (String entry : entries) {
+        writeString(entry);
+      }
+      for (int row = 0; row < rows; row++) {
+        out.writeVarint(codes[row]);
+      }
+      return;
+    }
+
+    out.write(PLAIN);
+    data.size = 0;
+    for (int row = 0; row < rows; row++) {
+      if (column[row] == null) {
+        out.writeVarint(0);
+      } else {
+        int start = data.size;
+        data.writeUtf8(column[row]);
+        out.writeVarint(data.size - start + 1);
+      }
+    }
+    out.write(data.bytes, 0, data.size);
+  }
+
+  private void writeString(String s) {
+    data.size = 0;
+    data.writeUtf8(s);
+    out.writeVarint(data.size);
+    out.write(data.bytes, 0, data.size);
+  }
+
+  /** A growable array of bytes, with its own UTF-8 encoder, which allocates nothing per value. */
+  private static final class Bytes {
+    byte[] bytes = new byte[CHUNK_SIZE];
+    int size = 0;
+
+    private void ensureCapacity(int n) {
+      if (size + n > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+      }
+    }
+
+    void write(int b) {
+      ensureCapacity(1);
+      bytes[size++] = (byte) b;
+    }
+
+    void write(byte[] b, int off, int len) {
+      ensureCapacity(len);
+      System.arraycopy(b, off, bytes, size, len);
+      size += len;
+    }
+
+    void writeVarint(int value) {
+      ensureCapacity(5);
+      while ((value & ~0x7f) != 0) {
+        bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      bytes[size++] = (byte) value;
+    }
+
+    void writeUtf8(String s) {
+      int length = s.length();
+      ensureCapacity(length * 3);
+      for (int i = 0; i < length; i++) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          bytes[size++] = (byte) c;
+        } else if (c < 0x800) {
+          bytes[size++] = (byte) (0xc0 | (c >> 6));
+          bytes[size++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)
+            && i + 1 < length
+            && Character.isLowSurrogate(s.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, s.charAt(++i));
+          bytes[size++] = (byte) (0xf0 | (cp >> 18));
+          bytes[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+          bytes[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+          bytes[size++] = (byte) (0x80 | (cp & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+          bytes[size++] = (byte) '?'; // unpaired, as String.getBytes would encode it
+        } else {
+          bytes[size++] = (byte) (0xe0 | (c >> 12));
+          bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+          bytes[size++] = (byte) (0x80 | (c & 0x3f));
+        }
+      }
+    }
+  }
+}
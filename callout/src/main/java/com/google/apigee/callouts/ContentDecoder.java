@@ -0,0 +1,240 @@
+// ContentDecoder.java
+//
+// Turns the body of a message into the stream of UTF-8 bytes that the
+// CSV readers expect. It decompresses a gzip or deflate body, according
+// to Content-Encoding, as it is read; strips a byte-order mark, so it
+// does not end up in the first header name; and, when the body is in a
+// charset other than UTF-8 or US-ASCII, per the BOM or the charset
+// parameter of Content-Type, transcodes it to UTF-8. A UTF-8 body, the
+// usual case, passes through without being decoded here, so the fast
+// parser still scans the raw bytes.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+final class ContentDecoder {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private ContentDecoder() {}
+
+  /**
+   * Returns the content as UTF-8, without a byte-order mark.
+   *
+   * @param contentType the Content-Type header, or null
+   * @param contentEncoding the Content-Encoding header, or null
+   * @param charsetName a charset that overrides the one in Content-Type, or null
+   */
+  static InputStream decode(
+      InputStream content, String contentType, String contentEncoding, String charsetName)
+      throws IOException {
+    InputStream in = decompress(content, contentEncoding);
+    Charset charset = forName((charsetName != null) ? charsetName : charsetOf(contentType));
+    PushbackInputStream pushback = new PushbackInputStream(in, 3);
+    Charset bomCharset = skipByteOrderMark(pushback);
+    if (bomCharset != null) {
+      charset = bomCharset; // the mark is more reliable than the header
+    }
+    if (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)) {
+      return pushback;
+    }
+    return new Utf8Transcoder(new InputStreamReader(pushback, charset));
+  }
+
+  /** Applies the decoders named in Content-Encoding, in the reverse of the order listed. */
+  static InputStream decompress(InputStream in, String contentEncoding) throws IOException {
+    if (contentEncoding == null) {
+      return in;
+    }
+    String[] codings = contentEncoding.split(",");
+    for (int i = codings.length - 1; i >= 0; i--) {
+      String coding = codings[i].trim().toLowerCase();
+      if (coding.equals("gzip") || coding.equals("x-gzip")) {
+        in = new GZIPInputStream(in, BUFFER_SIZE);
+      } else if (coding.equals("deflate")) {
+        in = inflate(in);
+      } else if (!coding.equals("identity") && !coding.equals("")) {
+        throw new IllegalStateException("unsupported Content-Encoding: " + coding);
+      }
+    }
+    return in;
+  }
+
+  /*
+   * HTTP deflate is meant to be zlib-wrapped, but some clients send raw deflate data. A zlib
+   * stream begins with a two-byte header whose method is 8 and that is a multiple of 31.
+   */
+  private static InputStream inflate(InputStream in) throws IOException {
+    PushbackInputStream pushback = new PushbackInputStream(in, 2);
+    byte[] head = new byte[2];
+    int n = readFully(pushback, head);
+    pushback.unread(head, 0, n);
+    boolean zlib =
+        n == 2 && (head[0] & 0x0f) == 8 && (((head[0] & 0xff) << 8) | (head[1] & 0xff)) % 31 == 0;
+    final Inflater inflater = new Inflater(!zlib);
+    return new InflaterInputStream(pushback, inflater, BUFFER_SIZE) {
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inflater.end(); // an inflater passed in is not ended by the stream
+        }
+      }
+    };
+  }
+
+  /** Returns the charset parameter of a Content-Type header, or null if there is none. */
+  static String charsetOf(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    String[] parts = contentType.split(";");
+    for (int i = 1; i < parts.length; i++) {
+      String part = parts[i].trim();
+      int eq = part.indexOf('=');
+      if (eq > 0 && part.substring(0, eq).trim().equalsIgnoreCase("charset")) {
+        String value = part.substring(eq + 1).trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+          value = value.substring(1, value.length() - 1);
+        }
+        return value;
+      }
+    }
+    return null;
+  }
+
+  private static Charset forName(String name) {
+    if (name == null || name.equals("")) {
+      return StandardCharsets.UTF_8;
+    }
+    try {
+      return Charset.forName(name);
+    } catch (IllegalCharsetNameException | UnsupportedCharsetException exc1) {
+      throw new IllegalStateException("unsupported charset: " + name);
+    }
+  }
+
+  /** Consumes a UTF-8 or UTF-16 byte-order mark, if present, and returns its charset. */
+  private static Charset skipByteOrderMark(PushbackInputStream in) throws IOException {
+    byte[] head = new byte[3];
+    int n = readFully(in, head);
+    if (n == 3
+        && (head[0] & 0xff) == 0xef
+        && (head[1] & 0xff) == 0xbb
+        && (head[2] & 0xff) == 0xbf) {
+      return StandardCharsets.UTF_8;
+    }
+    if (n >= 2 && (head[0] & 0xff) == 0xfe && (head[1] & 0xff) == 0xff) {
+      in.unread(head, 2, n - 2);
+      return StandardCharsets.UTF_16BE;
+    }
+    if (n >= 2 && (head[0] & 0xff) == 0xff && (head[1] & 0xff) == 0xfe) {
+      in.unread(head, 2, n - 2);
+      return StandardCharsets.UTF_16LE;
+    }
+    in.unread(head, 0, n);
+    return null;
+  }
+
+  private static int readFully(InputStream in, byte[] b) throws IOException {
+    int n = 0;
+    while (n < b.length) {
+      int count = in.read(b, n, b.length - n);
+      if (count < 0) {
+        break;
+      }
+      n += count;
+    }
+    return n;
+  }
+
+  /** Re-encodes the characters of a reader as UTF-8, a buffer at a time. */
+  private static final class Utf8Transcoder extends InputStream {
+    private final Reader reader;
+    private final CharsetEncoder encoder =
+        StandardCharsets.UTF_8
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE / 4);
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean done = false;
+
+    Utf8Transcoder(Reader reader) {
+      this.reader = reader;
+      bytes.flip(); // empty, ready to read
+    }
+
+    /** Encodes the next block of characters; returns false at the end of the input. */
+    private boolean fill() throws IOException {
+      bytes.clear();
+      while (bytes.position() == 0 && !done) {
+        int n = reader.read(chars);
+        chars.flip();
+        // a high surrogate at the end of the block stays in chars, until its pair arrives
+        encoder.encode(chars, bytes, n < 0);
+        if (n < 0) {
+          encoder.flush(bytes);
+          done = true;
+        }
+        chars.compact();
+      }
+      bytes.flip();
+      return bytes.hasRemaining();
+    }
+
+    public int read() throws IOException {
+      if (!bytes.hasRemaining() && !fill()) {
+        return -1;
+      }
+      return bytes.get() & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!bytes.hasRemaining() && !fill()) {
+        return -1;
+      }
+      int n = Math.min(len, bytes.remaining());
+      bytes.get(b, off, n);
+      return n;
+    }
+
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+}
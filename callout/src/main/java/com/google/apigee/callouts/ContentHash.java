@@ -0,0 +1,274 @@
+// ContentHash.java
+//
+// Digests of a request body, for recognizing an upload that has been
+// seen before. The default is XXH64, a non-cryptographic 64-bit hash
+// that runs at several GB/s, so hashing adds little to the cost of
+// reading the body. SHA-256 is far slower, but two different bodies
+// cannot plausibly share a digest, even when someone sets out to make
+// them do so. Either may be computed as the body is read, without a
+// second pass over it.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+final class ContentHash {
+  private static final long PRIME1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME3 = 0x165667B19E3779F9L;
+  private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+  private ContentHash() {}
+
+  /** Returns the digest of the content, as "xxh64:" or "sha-256:" followed by hex digits. */
+  static String digest(byte[] content, boolean sha256) {
+    if (!sha256) {
+      return String.format("xxh64:%016x", xxh64(content, 0, content.length, 0));
+    }
+    return "sha-256:" + hex(newSha256().digest(content));
+  }
+
+  private static MessageDigest newSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException exc1) {
+      throw new IllegalStateException("SHA-256 is not available.");
+    }
+  }
+
+  private static String hex(byte[] digest) {
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A stream that digests the bytes as they are read through it, so that hashing a body takes no
+   * second pass over it. The digest, in the form that digest(byte[], boolean) returns, is ready
+   * once the stream is read to the end.
+   */
+  static final class HashingInputStream extends FilterInputStream {
+    private final MessageDigest sha256; // null for XXH64
+    private final Xxh64 xxh64;
+    private long nanos = 0;
+
+    HashingInputStream(InputStream in, boolean sha256) {
+      super(in);
+      this.sha256 = sha256 ? newSha256() : null;
+      this.xxh64 = sha256 ? null : new Xxh64(0);
+    }
+
+    private void update(byte[] b, int off, int len) {
+      long t = System.nanoTime();
+      if (sha256 != null) {
+        sha256.update(b, off, len);
+      } else {
+        xxh64.update(b, off, len);
+      }
+      nanos += System.nanoTime() - t;
+    }
+
+    public int read() throws IOException {
+      int c = super.read();
+      if (c != -1) {
+        update(new byte[] {(byte) c}, 0, 1);
+      }
+      return c;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        update(b, off, n);
+      }
+      return n;
+    }
+
+    /** Reads, rather than skips, so the skipped bytes are digested too. */
+    public long skip(long n) throws IOException {
+      byte[] scratch = new byte[(int) Math.min(n, 8192)];
+      long skipped = 0;
+      while (skipped < n) {
+        int r = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+        if (r < 0) {
+          break;
+        }
+        skipped += r;
+      }
+      return skipped;
+    }
+
+    public boolean markSupported() {
+      return false;
+    }
+
+    /** The time spent hashing, apart from reading. */
+    long getNanos() {
+      return nanos;
+    }
+
+    String digest() {
+      return (sha256 != null)
+          ? "sha-256:" + hex(sha256.digest())
+          : String.format("xxh64:%016x", xxh64.value());
+    }
+  }
+
+  /** XXH64 over content that arrives in pieces; the result is the same as for xxh64(). */
+  static final class Xxh64 {
+    private final long seed;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long total = 0;
+    private final byte[] pending = new byte[32]; // the bytes of a stripe not yet complete
+    private int pendingLength = 0;
+
+    Xxh64(long seed) {
+      this.seed = seed;
+      v1 = seed + PRIME1 + PRIME2;
+      v2 = seed + PRIME2;
+      v3 = seed;
+      v4 = seed - PRIME1;
+    }
+
+    private void stripe(byte[] b, int p) {
+      v1 = round(v1, getLong(b, p));
+      v2 = round(v2, getLong(b, p + 8));
+      v3 = round(v3, getLong(b, p + 16));
+      v4 = round(v4, getLong(b, p + 24));
+    }
+
+    void update(byte[] b, int off, int len) {
+      total += len;
+      int end = off + len;
+      if (pendingLength + len < 32) {
+        System.arraycopy(b, off, pending, pendingLength, len);
+        pendingLength += len;
+        return;
+      }
+      if (pendingLength > 0) {
+        int fill = 32 - pendingLength;
+        System.arraycopy(b, off, pending, pendingLength, fill);
+        stripe(pending, 0);
+        off += fill;
+        pendingLength = 0;
+      }
+      for (int limit = end - 32; off <= limit; off += 32) {
+        stripe(b, off);
+      }
+      pendingLength = end - off;
+      System.arraycopy(b, off, pending, 0, pendingLength);
+    }
+
+    long value() {
+      long h = (total >= 32) ? converge(v1, v2, v3, v4) : seed + PRIME5;
+      return finish(h + total, pending, 0, pendingLength);
+    }
+  }
+
+  private static long getLong(byte[] b, int i) {
+    return (b[i] & 0xffL)
+        | (b[i + 1] & 0xffL) << 8
+        | (b[i + 2] & 0xffL) << 16
+        | (b[i + 3] & 0xffL) << 24
+        | (b[i + 4] & 0xffL) << 32
+        | (b[i + 5] & 0xffL) << 40
+        | (b[i + 6] & 0xffL) << 48
+        | (b[i + 7] & 0xffL) << 56;
+  }
+
+  private static long getInt(byte[] b, int i) {
+    return (b[i] & 0xffL)
+        | (b[i + 1] & 0xffL) << 8
+        | (b[i + 2] & 0xffL) << 16
+        | (b[i + 3] & 0xffL) << 24;
+  }
+
+  private static long round(long acc, long input) {
+    return Long.rotateLeft(acc + input * PRIME2, 31) * PRIME1;
+  }
+
+  private static long merge(long acc, long value) {
+    return (acc ^ round(0, value)) * PRIME1 + PRIME4;
+  }
+
+  private static long converge(long v1, long v2, long v3, long v4) {
+    long h =
+        Long.rotateLeft(v1, 1)
+            + Long.rotateLeft(v2, 7)
+            + Long.rotateLeft(v3, 12)
+            + Long.rotateLeft(v4, 18);
+    h = merge(h, v1);
+    h = merge(h, v2);
+    h = merge(h, v3);
+    return merge(h, v4);
+  }
+
+  /** Mixes in the bytes after the last whole stripe, then avalanches. */
+  private static long finish(long h, byte[] b, int p, int end) {
+    for (; p + 8 <= end; p += 8) {
+      h = Long.rotateLeft(h ^ round(0, getLong(b, p)), 27) * PRIME1 + PRIME4;
+    }
+    if (p + 4 <= end) {
+      h = Long.rotateLeft(h ^ (getInt(b, p) * PRIME1), 23) * PRIME2 + PRIME3;
+      p += 4;
+    }
+    for (; p < end; p++) {
+      h = Long.rotateLeft(h ^ ((b[p] & 0xffL) * PRIME5), 11) * PRIME1;
+    }
+    h ^= h >>> 33;
+    h *= PRIME2;
+    h ^= h >>> 29;
+    h *= PRIME3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+  /** XXH64, as specified at https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md */
+  static long xxh64(byte[] b, int offset, int length, long seed) {
+    int end = offset + length;
+    int p = offset;
+    long h;
+    if (length >= 32) {
+      long v1 = seed + PRIME1 + PRIME2;
+      long v2 = seed + PRIME2;
+      long v3 = seed;
+      long v4 = seed - PRIME1;
+      for (int limit = end - 32; p <= limit; p += 32) {
+        v1 = round(v1, getLong(b, p));
+        v2 = round(v2, getLong(b, p + 8));
+        v3 = round(v3, getLong(b, p + 16));
+        v4 = round(v4, getLong(b, p + 24));
+      }
+      h = converge(v1, v2, v3, v4);
+    } else {
+      h = seed + PRIME5;
+    }
+    return finish(h + length, b, p, end);
+  }
+}
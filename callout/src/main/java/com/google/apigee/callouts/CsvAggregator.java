@@ -0,0 +1,507 @@
+// CsvAggregator.java
+//
+// A Java callout for Apigee that computes group-by aggregates over a
+// CSV, in one pass over the records, without building the table: count,
+// sum, min, max and avg, and approximate distinct counts and
+// percentiles. The memory it uses depends on the number of groups, not
+// on the number of records. It can also aggregate a table that
+// CsvShredder has already built.
+//
+// Copyright 2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class CsvAggregator extends CalloutBase implements Execution {
+  private static final int DEFAULT_MAX_GROUPS = 10000;
+  private static final int MAX_CACHED_VARIANTS = 64;
+  private static final Pattern AGGREGATE =
+      Pattern.compile("(count|sum|avg|min|max|distinct|p(\\d+(?:\\.\\d+)?))(?:\\((.+)\\))?");
+
+  // resolved property value => the parsed aggregation
+  private final Map<String, Aggregation> aggregations =
+      new ConcurrentHashMap<String, Aggregation>();
+
+  public CsvAggregator(Map properties) {
+    super(properties);
+  }
+
+  public String getVarnamePrefix() {
+    return "csv";
+  }
+
+  /** Returns the comma-separated names in the value, or an empty list if it is null. */
+  private static List<String> splitNames(String value) {
+    List<String> list = new ArrayList<String>();
+    if (value != null) {
+      for (String part : value.split(",")) {
+        if (!part.trim().equals("")) {
+          list.add(part.trim());
+        }
+      }
+    }
+    return list;
+  }
+
+  private List<String> getGroupBy(MessageContext msgCtxt) throws Exception {
+    return splitNames(_getStringProperty(msgCtxt, "group-by", null));
+  }
+
+  private Aggregation getAggregation(MessageContext msgCtxt) throws Exception {
+    String aggregates = _getStringProperty(msgCtxt, "aggregates", "count");
+    List<String> groupBy = getGroupBy(msgCtxt);
+    String key = groupBy + "|" + aggregates;
+    Aggregation aggregation = aggregations.get(key);
+    if (aggregation == null) {
+      aggregation = Aggregation.parse(groupBy, aggregates);
+      if (aggregations.size() < MAX_CACHED_VARIANTS) {
+        aggregations.put(key, aggregation);
+      }
+    }
+    return aggregation;
+  }
+
+  private Message getSourceMessage(MessageContext msgCtxt) throws Exception {
+    String source = _getStringProperty(msgCtxt, "source", "message");
+    if (source.equals("message")) {
+      return msgCtxt.getMessage();
+    }
+    if (source.equals("request")) {
+      return msgCtxt.getRequestMessage();
+    }
+    if (source.equals("response")) {
+      return msgCtxt.getResponseMessage();
+    }
+    throw new IllegalStateException("source must be one of message, request, response.");
+  }
+
+  private List<String> getFieldList(MessageContext msgCtxt) throws Exception {
+    // if not set, the first row gives the field list
+    List<String> list = splitNames(_getStringProperty(msgCtxt, "fieldlist", null));
+    return list.isEmpty() ? null : list;
+  }
+
+  private String getParser(MessageContext msgCtxt) throws Exception {
+    String parser = _getStringProperty(msgCtxt, "parser", "commons").toLowerCase();
+    if (!parser.equals("commons") && !parser.equals("fast")) {
+      throw new IllegalStateException("parser must be one of commons, fast.");
+    }
+    return parser;
+  }
+
+  /**
+   * What to compute: the columns to group by, and the aggregates for each group. Each aggregate
+   * is one of count, count(col), sum(col), avg(col), min(col), max(col), distinct(col), or
+   * pNN(col) for a percentile, such as p50, p95, or p99.9.
+   */
+  static final class Aggregation {
+    private final List<String> groupBy;
+    private final List<String> names; // the aggregates as written, which name them in the result
+    private final List<String> functions;
+    private final List<String> arguments; // the column of each aggregate, or null
+    private final List<String> columns; // the distinct columns that the aggregation reads
+
+    private Aggregation(
+        List<String> groupBy, List<String> names, List<String> functions, List<String> arguments) {
+      this.groupBy = groupBy;
+      this.names = names;
+      this.functions = functions;
+      this.arguments = arguments;
+      Set<String> columns = new LinkedHashSet<String>(groupBy);
+      for (String argument : arguments) {
+        if (argument != null) {
+          columns.add(argument);
+        }
+      }
+      this.columns = new ArrayList<String>(columns);
+    }
+
+    static Aggregation parse(List<String> groupBy, String spec) {
+      if (new LinkedHashSet<String>(groupBy).size() != groupBy.size()) {
+        throw new IllegalStateException("group-by names a column twice.");
+      }
+      List<String> names = new ArrayList<String>();
+      List<String> functions = new ArrayList<String>();
+      List<String> arguments = new ArrayList<String>();
+      for (String part : spec.split(",")) {
+        part = part.trim();
+        if (part.equals("")) {
+          continue;
+        }
+        Matcher m = AGGREGATE.matcher(part);
+        if (!m.matches()) {
+          throw new IllegalStateException("aggregates: unsupported aggregate " + part);
+        }
+        String function = m.group(1);
+        String argument = (m.group(3) != null) ? m.group(3).trim() : null;
+        if (argument == null && !function.equals("count")) {
+          throw new IllegalStateException("aggregates: " + function + " needs a column");
+        }
+        if (m.group(2) != null && Double.parseDouble(m.group(2)) > 100) {
+          throw new IllegalStateException("aggregates: percentile over 100 in " + part);
+        }
+        names.add(part);
+        functions.add(function);
+        arguments.add(argument);
+      }
+      if (names.isEmpty()) {
+        throw new IllegalStateException("aggregates: nothing to compute.");
+      }
+      return new Aggregation(groupBy, names, functions, arguments);
+    }
+
+    /** The columns to read from each record, in the order that add() expects their values. */
+    List<String> getColumns() {
+      return columns;
+    }
+
+    Groups newGroups(int maxGroups) {
+      return new Groups(this, maxGroups);
+    }
+  }
+
+  /** One accumulator per aggregate per group; each holds only primitives or a fixed sketch. */
+  private abstract static class Accumulator {
+    abstract void add(String cell);
+
+    abstract void write(JsonGenerator gen) throws IOException;
+
+    static Accumulator create(String function, String argument) {
+      if (function.equals("count")) {
+        return new Count(argument == null);
+      }
+      if (function.equals("distinct")) {
+        return new Distinct();
+      }
+      if (function.startsWith("p")) {
+        return new Percentile(Double.parseDouble(function.substring(1)) / 100);
+      }
+      return new Numeric(function);
+    }
+  }
+
+  /** Writes a number as an integer when it is one, so that sums of integers look like them. */
+  private static void writeNumber(JsonGenerator gen, double value) throws IOException {
+    if (Double.isNaN(value)) {
+      gen.writeNull();
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      gen.writeNumber((long) value);
+    } else {
+      gen.writeNumber(value);
+    }
+  }
+
+  private static double parseNumber(String cell) {
+    if (cell == null || cell.isEmpty()) {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(cell);
+    } catch (NumberFormatException exc1) {
+      return Double.NaN;
+    }
+  }
+
+  /** count counts every record; count(col) counts the records with a value in the column. */
+  private static final class Count extends Accumulator {
+    private final boolean everyRecord;
+    private long count = 0;
+
+    Count(boolean everyRecord) {
+      this.everyRecord = everyRecord;
+    }
+
+    void add(String cell) {
+      if (everyRecord || (cell != null && !cell.isEmpty())) {
+        count++;
+      }
+    }
+
+    void write(JsonGenerator gen) throws IOException {
+      gen.writeNumber(count);
+    }
+  }
+
+  /** sum, avg, min and max, over the values that are numbers; others are skipped. */
+  private static final class Numeric extends Accumulator {
+    private final String function;
+    private long count = 0;
+    private double sum = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    Numeric(String function) {
+      this.function = function;
+    }
+
+    void add(String cell) {
+      double value = parseNumber(cell);
+      if (!Double.isNaN(value)) {
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+    }
+
+    void write(JsonGenerator gen) throws IOException {
+      if (function.equals("sum")) {
+        writeNumber(gen, sum);
+      } else if (count == 0) {
+        gen.writeNull();
+      } else if (function.equals("avg")) {
+        writeNumber(gen, sum / count);
+      } else {
+        writeNumber(gen, function.equals("min") ? min : max);
+      }
+    }
+  }
+
+  private static final class Distinct extends Accumulator {
+    private final DistinctCounter counter = new DistinctCounter();
+
+    void add(String cell) {
+      if (cell != null && !cell.isEmpty()) {
+        counter.add(cell);
+      }
+    }
+
+    void write(JsonGenerator gen) throws IOException {
+      gen.writeNumber(counter.estimate());
+    }
+  }
+
+  private static final class Percentile extends Accumulator {
+    private final double fraction;
+    private final QuantileSketch sketch = new QuantileSketch();
+
+    Percentile(double fraction) {
+      this.fraction = fraction;
+    }
+
+    void add(String cell) {
+      double value = parseNumber(cell);
+      if (!Double.isNaN(value)) {
+        sketch.add(value);
+      }
+    }
+
+    void write(JsonGenerator gen) throws IOException {
+      writeNumber(gen, sketch.quantile(fraction));
+    }
+  }
+
+  /** The groups seen so far, in order of first appearance, each with its accumulators. */
+  static final class Groups {
+    private final Aggregation aggregation;
+    private final int maxGroups;
+    private final int[] argumentIndexes; // per aggregate, the position of its column, or -1
+    private final Map<List<String>, Accumulator[]> groups =
+        new LinkedHashMap<List<String>, Accumulator[]>();
+    private long rows = 0;
+
+    private Groups(Aggregation aggregation, int maxGroups) {
+      this.aggregation = aggregation;
+      this.maxGroups = maxGroups;
+      this.argumentIndexes = new int[aggregation.arguments.size()];
+      for (int i = 0; i < argumentIndexes.length; i++) {
+        String argument = aggregation.arguments.get(i);
+        argumentIndexes[i] = (argument == null) ? -1 : aggregation.columns.indexOf(argument);
+      }
+    }
+
+    /** Adds one record, given the values of the aggregation's columns, in order. */
+    void add(String[] values) {
+      rows++;
+      int n = aggregation.groupBy.size();
+      // the group-by columns come first among the columns
+      List<String> key =
+          (n == 0)
+              ? Collections.<String>emptyList()
+              : (n == 1)
+                  ? Collections.singletonList(values[0])
+                  : Arrays.asList(Arrays.copyOf(values, n));
+      Accumulator[] accumulators = groups.get(key);
+      if (accumulators == null) {
+        if (groups.size() >= maxGroups) {
+          throw new IllegalStateException("the data has more than max-groups (" + maxGroups + ").");
+        }
+        accumulators = new Accumulator[aggregation.functions.size()];
+        for (int i = 0; i < accumulators.length; i++) {
+          accumulators[i] =
+              Accumulator.create(aggregation.functions.get(i), aggregation.arguments.get(i));
+        }
+        groups.put(key, accumulators);
+      }
+      for (int i = 0; i < accumulators.length; i++) {
+        accumulators[i].add((argumentIndexes[i] < 0) ? null : values[argumentIndexes[i]]);
+      }
+    }
+
+    long getRows() {
+      return rows;
+    }
+
+    int size() {
+      return groups.size();
+    }
+
+    /** Writes an array with one object per group: the group-by values, then the aggregates. */
+    void write(JsonGenerator gen) throws IOException {
+      gen.writeStartArray();
+      for (Map.Entry<List<String>, Accumulator[]> entry : groups.entrySet()) {
+        gen.writeStartObject();
+        for (int i = 0; i < aggregation.groupBy.size(); i++) {
+          gen.writeStringField(aggregation.groupBy.get(i), entry.getKey().get(i));
+        }
+        Accumulator[] accumulators = entry.getValue();
+        for (int i = 0; i < accumulators.length; i++) {
+          gen.writeFieldName(aggregation.names.get(i));
+          accumulators[i].write(gen);
+        }
+        gen.writeEndObject();
+      }
+      gen.writeEndArray();
+    }
+  }
+
+  private void aggregateRecords(MessageContext msgCtxt, Aggregation aggregation, Groups groups)
+      throws Exception {
+    Limits limits =
+        new Limits(
+            _getIntProperty(msgCtxt, "max-bytes", 0),
+            _getIntProperty(msgCtxt, "max-rows", 0),
+            _getIntProperty(msgCtxt, "max-cells", 0));
+    Message msg = getSourceMessage(msgCtxt);
+    limits.checkContentLength(msg.getHeader("content-length"));
+    RowReader records =
+        CsvShredder.getRowReader(
+            getParser(msgCtxt),
+            limits.limitBytes(metrics().countBytes(getDecodedContent(msgCtxt, msg))),
+            getFieldList(msgCtxt),
+            _getBooleanProperty(msgCtxt, "trim-spaces", false));
+    records = limits.limitRows(metrics().countRows(records));
+    for (String column : aggregation.getColumns()) {
+      if (!records.getHeaderNames().contains(column)) {
+        records.close();
+        throw new IllegalStateException("there is no column named " + column);
+      }
+    }
+    String where = _getStringProperty(msgCtxt, "where", null);
+    records =
+        RowSelection.of(
+            records,
+            aggregation.getColumns(),
+            (where != null) ? RowSelection.Where.parse(where) : null);
+    try {
+      String[] values = new String[aggregation.getColumns().size()];
+      while (records.next()) {
+        int n = records.size();
+        for (int i = 0; i < values.length; i++) {
+          values[i] = (i < n) ? records.get(i) : null;
+        }
+        groups.add(values);
+      }
+    } finally {
+      records.close();
+    }
+  }
+
+  private void aggregateMap(MessageContext msgCtxt, String mapVariable, Groups groups)
+      throws Exception {
+    Object source = msgCtxt.getVariable(mapVariable);
+    if (source instanceof byte[]) {
+      source = TableSnapshot.open((byte[]) source);
+    }
+    Iterable<?> rows;
+    if (source instanceof Map) {
+      rows = ((Map<?, ?>) source).values();
+    } else if (source instanceof List) {
+      rows = (List<?>) source;
+    } else {
+      throw new IllegalStateException("mapVariable " + mapVariable + " does not hold a table.");
+    }
+    if (_getStringProperty(msgCtxt, "where", null) != null) {
+      throw new IllegalStateException("where applies only when aggregating the message content.");
+    }
+    List<String> columns = groups.aggregation.getColumns();
+    String[] values = new String[columns.size()];
+    for (Object row : rows) {
+      if (!(row instanceof Map)) {
+        throw new IllegalStateException("mapVariable " + mapVariable + " does not hold rows.");
+      }
+      Map<?, ?> cells = (Map<?, ?>) row;
+      for (int i = 0; i < values.length; i++) {
+        Object value = cells.get(columns.get(i));
+        values[i] = (value != null) ? value.toString() : null;
+      }
+      groups.add(values);
+    }
+  }
+
+  public ExecutionResult execute0(final MessageContext msgCtxt) throws Exception {
+    Aggregation aggregation = getAggregation(msgCtxt);
+    Groups groups =
+        aggregation.newGroups(_getIntProperty(msgCtxt, "max-groups", DEFAULT_MAX_GROUPS));
+
+    long t = metrics().now();
+    String mapVariable = _getStringProperty(msgCtxt, "mapVariable", null);
+    try {
+      if (mapVariable != null) {
+        aggregateMap(msgCtxt, mapVariable, groups);
+      } else {
+        aggregateRecords(msgCtxt, aggregation, groups);
+      }
+    } catch (Limits.ExceededException exc1) {
+      msgCtxt.setVariable(varName("limit_exceeded"), exc1.getLimit());
+      throw exc1;
+    }
+    metrics().addTime("aggregate", t);
+
+    t = metrics().now();
+    StringWriter out = new StringWriter();
+    try (JsonGenerator gen = om.getFactory().createGenerator(out)) {
+      if (!_getStringProperty(msgCtxt, "json-output", "pretty").equalsIgnoreCase("compact")) {
+        gen.useDefaultPrettyPrinter();
+      }
+      groups.write(gen);
+    }
+    msgCtxt.setVariable(varName("result_json"), out.toString());
+    msgCtxt.setVariable(varName("rows_read"), String.format("%d", groups.getRows()));
+    msgCtxt.setVariable(varName("groups"), String.format("%d", groups.size()));
+    metrics().addTime("json", t);
+    return ExecutionResult.SUCCESS;
+  }
+}
@@ -26,17 +26,88 @@ import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
 
 public class CsvShredder extends CalloutBase implements Execution {
+  private static final int DEFAULT_CACHE_TTL = 300;
+  // bounds the caches below, for properties that resolve to many different values
+  private static final int MAX_CACHED_VARIANTS = 64;
+  // how many times to re-apply a delta when another request updates the same cached table
+  private static final int MAX_DELTA_ATTEMPTS = 3;
+
+  // the factories are thread-safe, and costly enough to create that they are shared
+  private static final JsonFactory cborFactory = new CBORFactory();
+  private static final JsonFactory smileFactory = new SmileFactory();
+
+  // CSVFormat is immutable, so one instance serves every request with the same fieldlist and trim
+  private static final Map<List<Object>, CSVFormat> csvFormats =
+      new ConcurrentHashMap<List<Object>, CSVFormat>();
+
+  // resolved property value => the column names in it
+  private final Map<String, List<String>> columnLists =
+      new ConcurrentHashMap<String, List<String>>();
+
+  // resolved property value => the parsed schema
+  private final Map<String, TableSchema> schemas = new ConcurrentHashMap<String, TableSchema>();
+
+  // resolved property value => the parsed predicate
+  private final Map<String, RowSelection.Where> wheres =
+      new ConcurrentHashMap<String, RowSelection.Where>();
+
+  // the variables a shred sets that are replayed for a repeated upload, when using dedup
+  private static final String[] DEDUP_VARIABLES = {
+    "result_format",
+    "result_java",
+    "result_json",
+    "rows_read",
+    "rows_filtered",
+    "schema_error_count",
+    "schema_errors",
+    "result_rowjson",
+    "result_indexes",
+    "result_snapshot"
+  };
+
+  // the properties that make no difference to the result, and so are not part of the dedup key
+  private static final List<String> NOT_IN_DEDUP_KEY =
+      Arrays.asList("debug", "metrics", "parser", "parallel-threshold");
+
+  // the names of the properties in the dedup key, sorted, so the key is the same every time
+  private final List<String> dedupKeyProperties;
+
   public CsvShredder(Map properties) {
-    super(properties);
+    this(properties, false);
+  }
+
+  /** @param literal if true, the properties hold values resolved already, as for a job. */
+  CsvShredder(Map properties, boolean literal) {
+    super(properties, literal);
+    List<String> names = new ArrayList<String>(this.properties.keySet());
+    names.removeAll(NOT_IN_DEDUP_KEY);
+    Collections.sort(names);
+    this.dedupKeyProperties = Collections.unmodifiableList(names);
   }
 
   public String getVarnamePrefix() {
@@ -51,64 +122,257 @@ public class CsvShredder extends CalloutBase implements Execution {
     return _getBooleanProperty(msgCtxt, "contrive-primary-key", false);
   }
 
+  private String getCacheName(MessageContext msgCtxt) throws Exception {
+    return _getStringProperty(msgCtxt, "cache-name", null);
+  }
+
+  private int getCacheTtl(MessageContext msgCtxt) throws Exception {
+    return _getIntProperty(msgCtxt, "cache-ttl", DEFAULT_CACHE_TTL);
+  }
+
+  private String getTenant(MessageContext msgCtxt) throws Exception {
+    return _getStringProperty(msgCtxt, "tenant", null);
+  }
+
+  private int getKeepVersions(MessageContext msgCtxt) throws Exception {
+    int keepVersions = _getIntProperty(msgCtxt, "keep-versions", 0);
+    if (keepVersions < 0) {
+      throw new IllegalStateException("keep-versions must not be negative.");
+    }
+    return keepVersions;
+  }
+
+  /** Sets the variables that describe a table just published to, or reactivated in, the cache. */
+  private void setCacheVersionVariables(MessageContext msgCtxt, TableCache.Entry entry) {
+    msgCtxt.setVariable(varName("cache_version"), Long.toString(entry.version));
+    StringBuilder versions = new StringBuilder();
+    for (Long version : TableCache.getInstance().versions(entry.tenant, entry.name)) {
+      versions.append((versions.length() == 0) ? "" : ",").append(version);
+    }
+    msgCtxt.setVariable(varName("cache_versions"), versions.toString());
+  }
+
+  /** Makes a kept version of a cached table current again, without reading any CSV. */
+  private ExecutionResult activateVersion(MessageContext msgCtxt, String version)
+      throws Exception {
+    String cacheName = getCacheName(msgCtxt);
+    if (cacheName == null) {
+      throw new IllegalStateException("activate-version requires cache-name.");
+    }
+    long number;
+    try {
+      number = Long.parseLong(version.trim());
+    } catch (NumberFormatException exc1) {
+      throw new IllegalStateException("activate-version is not a number: " + version);
+    }
+    TableCache.Entry entry =
+        TableCache.getInstance().activate(getTenant(msgCtxt), cacheName, number);
+    if (entry == null) {
+      throw new IllegalStateException(
+          String.format("version %d of the cached table %s is not kept.", number, cacheName));
+    }
+    setCacheVersionVariables(msgCtxt, entry);
+    msgCtxt.setVariable(varName("content_hash"), entry.contentHash);
+    return ExecutionResult.SUCCESS;
+  }
+
+  private boolean getPrecomputeRowJson(MessageContext msgCtxt) throws Exception {
+    return _getBooleanProperty(msgCtxt, "precompute-row-json", false);
+  }
+
+  /** Serializes each row once, in the same form that MapExtractor would emit it. */
+  private RowJson precomputeRowJson(Map<String, ? extends Map<String, String>> table)
+      throws Exception {
+    ObjectWriter writer = om.writer().withDefaultPrettyPrinter();
+    Map<String, String> rowJson = new HashMap<String, String>((int) (table.size() / 0.75f) + 1);
+    for (Map.Entry<String, ? extends Map<String, String>> entry : table.entrySet()) {
+      rowJson.put(entry.getKey(), writer.writeValueAsString(entry.getValue()));
+    }
+    return new RowJson(rowJson);
+  }
+
+  private boolean getSnapshot(MessageContext msgCtxt) throws Exception {
+    return _getBooleanProperty(msgCtxt, "snapshot", false);
+  }
+
+  private JsonRecordStream.Mode getStreamOutput(MessageContext msgCtxt) throws Exception {
+    String value = _getStringProperty(msgCtxt, "stream-output", null);
+    if (value == null) {
+      return null;
+    }
+    if (value.equalsIgnoreCase("json-array")) {
+      return JsonRecordStream.Mode.JSON_ARRAY;
+    }
+    if (value.equalsIgnoreCase("ndjson")) {
+      return JsonRecordStream.Mode.NDJSON;
+    }
+    throw new IllegalArgumentException("stream-output");
+  }
+
+  static enum OutputEncoding {
+    JSON("application/json"),
+    CBOR("application/cbor"),
+    SMILE("application/x-jackson-smile"),
+    COLUMNAR("application/x-csv-columnar");
+
+    final String contentType;
+
+    OutputEncoding(String contentType) {
+      this.contentType = contentType;
+    }
+  }
+
+  private OutputEncoding getOutputEncoding(MessageContext msgCtxt) throws Exception {
+    String value = _getStringProperty(msgCtxt, "output-encoding", "json");
+    try {
+      return OutputEncoding.valueOf(value.toUpperCase());
+    } catch (IllegalArgumentException exc1) {
+      throw new IllegalStateException(
+          "output-encoding must be one of json, cbor, smile, columnar.");
+    }
+  }
+
+  /** Returns a stream that encodes the records as they are read, in the given encoding. */
+  private RecordStream newRecordStream(
+      RowReader records, JsonRecordStream.Mode mode, OutputEncoding encoding) throws Exception {
+    switch (encoding) {
+      case CBOR:
+        return new JsonRecordStream(cborFactory, records, mode);
+      case SMILE:
+        return new JsonRecordStream(smileFactory, records, mode);
+      case COLUMNAR:
+        return new ColumnarRecordStream(records);
+      default:
+        return new JsonRecordStream(om.getFactory(), records, mode);
+    }
+  }
+
+  private Message getSourceMessage(MessageContext msgCtxt) throws Exception {
+    String source = _getStringProperty(msgCtxt, "source", "message");
+    if (source.equals("message")) {
+      return msgCtxt.getMessage();
+    }
+    if (source.equals("request")) {
+      return msgCtxt.getRequestMessage();
+    }
+    if (source.equals("response")) {
+      return msgCtxt.getResponseMessage();
+    }
+    throw new IllegalStateException("source must be one of message, request, response.");
+  }
+
   static enum OutputFormat {
     MAP,
     LIST,
+    TABLE,
     NOTSPECIFIED
   }
 
   private OutputFormat getOutputFormat(MessageContext msgCtxt) throws Exception {
-    String value = (String) this.properties.get("output-format");
-    if (value == null || value.equals("")) {
-      return OutputFormat.MAP;
-    }
-    value = resolveVariableReferences(value, msgCtxt);
-    if (value == null || value.equals("")) {
+    String value = _getStringProperty(msgCtxt, "output-format", null);
+    if (value == null) {
       return OutputFormat.MAP;
     }
-
     if (value.equalsIgnoreCase("list")) {
       return OutputFormat.LIST;
     }
     if (value.equalsIgnoreCase("map")) {
       return OutputFormat.MAP;
     }
+    if (value.equalsIgnoreCase("table")) {
+      return OutputFormat.TABLE;
+    }
     throw new IllegalArgumentException("output-format");
   }
 
-  private List<String> getFieldList(MessageContext msgCtxt) throws IllegalStateException {
-    String fieldlist = (String) this.properties.get("fieldlist");
-    if (fieldlist == null || fieldlist.equals("")) {
-      return null; // assume the first row gives the field list
+  static enum JsonOutput {
+    NONE,
+    COMPACT,
+    PRETTY,
+    LAZY
+  }
+
+  private JsonOutput getJsonOutput(MessageContext msgCtxt) throws Exception {
+    String value = _getStringProperty(msgCtxt, "json-output", null);
+    if (value == null) {
+      return JsonOutput.PRETTY;
     }
-    fieldlist = resolveVariableReferences(fieldlist, msgCtxt);
-    if (fieldlist == null || fieldlist.equals("")) {
-      return null; // assume the first row gives the field list
+    try {
+      return JsonOutput.valueOf(value.toUpperCase());
+    } catch (IllegalArgumentException exc1) {
+      throw new IllegalArgumentException("json-output");
     }
+  }
 
-    // now split by commas (spaces are ok)
-    String[] parts = fieldlist.split(" *, *");
-    List<String> list = new ArrayList<String>();
-    for (int i = 0; i < parts.length; i++) {
-      list.add(parts[i].trim());
+  private void setJsonResult(MessageContext msgCtxt, Object result) throws Exception {
+    long t = metrics().now();
+    JsonOutput jsonOutput = getJsonOutput(msgCtxt);
+    switch (jsonOutput) {
+      case NONE:
+        msgCtxt.removeVariable(varName("result_json"));
+        break;
+      case COMPACT:
+        msgCtxt.setVariable(varName("result_json"), om.writer().writeValueAsString(result));
+        break;
+      case LAZY:
+        msgCtxt.setVariable(
+            varName("result_json"), new LazyJson(om.writer().withDefaultPrettyPrinter(), result));
+        break;
+      default:
+        msgCtxt.setVariable(
+            varName("result_json"),
+            om.writer().withDefaultPrettyPrinter().writeValueAsString(result));
+        break;
     }
-    return list;
+    metrics().addTime("json", t);
   }
 
-  private static String padLeft(String s, int length, char c) {
-    int L = s.length();
-    if (L >= length) {
-      return s;
+  /** Returns the comma-separated list of names in the given property, or null if not set. */
+  private List<String> getColumnList(MessageContext msgCtxt, String propName) throws Exception {
+    String value = _getStringProperty(msgCtxt, propName, null);
+    if (value == null) {
+      return null;
     }
-    StringBuilder sb = new StringBuilder();
-    while (sb.length() < length - L) {
-      sb.append(c);
+    List<String> list = columnLists.get(value);
+    if (list == null) {
+      // now split by commas (spaces are ok)
+      String[] parts = value.split(" *, *");
+      list = new ArrayList<String>();
+      for (int i = 0; i < parts.length; i++) {
+        list.add(parts[i].trim());
+      }
+      list = Collections.unmodifiableList(list);
+      if (columnLists.size() < MAX_CACHED_VARIANTS) {
+        columnLists.put(value, list);
+      }
     }
-    sb.append(s);
-    return sb.toString();
+    return list;
+  }
+
+  private List<String> getFieldList(MessageContext msgCtxt) throws Exception {
+    // if not set, assume the first row gives the field list
+    return getColumnList(msgCtxt, "fieldlist");
+  }
+
+  /**
+   * Returns the contrived primary key for a record: its number, zero-padded to 10 digits, which
+   * holds any int. The digits are written into the given array, so the String is the only
+   * allocation per record.
+   */
+  static String contrivedKey(int number, char[] digits) {
+    for (int i = digits.length - 1; i >= 0; i--) {
+      digits[i] = (char) ('0' + number % 10);
+      number /= 10;
+    }
+    return new String(digits);
   }
 
-  CSVFormat getCsvReader(List<String> fieldList, boolean trimSpaces) {
+  static CSVFormat getCsvReader(List<String> fieldList, boolean trimSpaces) {
+    List<Object> key = Arrays.<Object>asList(fieldList, trimSpaces);
+    CSVFormat format = csvFormats.get(key);
+    if (format != null) {
+      return format;
+    }
     CSVFormat.Builder builder = CSVFormat.Builder.create();
     if (trimSpaces) {
       builder.setIgnoreSurroundingSpaces(true);
@@ -119,63 +383,776 @@ public class CsvShredder extends CalloutBase implements Execution {
     } else {
       builder.setHeader(fieldList.toArray(new String[1]));
     }
-    return builder.build();
+    format = builder.build();
+    if (csvFormats.size() < MAX_CACHED_VARIANTS) {
+      csvFormats.put(key, format);
+    }
+    return format;
   }
 
-  public ExecutionResult execute0(final MessageContext msgCtxt) throws Exception {
-    Message msg = msgCtxt.getMessage();
-    List<String> fieldList = getFieldList(msgCtxt);
+  private TableSchema getSchema(MessageContext msgCtxt) throws Exception {
+    String value = _getStringProperty(msgCtxt, "schema", null);
+    if (value == null) {
+      return null;
+    }
+    TableSchema schema = schemas.get(value);
+    if (schema == null) {
+      schema = TableSchema.parse(value);
+      if (schemas.size() < MAX_CACHED_VARIANTS) {
+        schemas.put(value, schema);
+      }
+    }
+    return schema;
+  }
+
+  /** Collects the values that do not parse as the type of their column, by record number. */
+  private static final class SchemaErrors implements CsvTable.Builder.ErrorListener {
+    private static final int MAX_REPORTED = 100;
+    private final boolean fail;
+    private final List<Map<String, Object>> reported = new ArrayList<Map<String, Object>>();
+    private int count = 0;
+    int record; // the current data record, counting from 1
+
+    SchemaErrors(boolean fail) {
+      this.fail = fail;
+    }
+
+    public void onError(String key, String column, String value, String reason) {
+      if (fail) {
+        throw new IllegalStateException(
+            String.format("record %d, column %s: %s: %s", record, column, reason, value));
+      }
+      count++;
+      if (reported.size() < MAX_REPORTED) {
+        Map<String, Object> error = new LinkedHashMap<String, Object>();
+        error.put("record", record);
+        error.put("key", key);
+        error.put("column", column);
+        error.put("value", value);
+        error.put("error", reason);
+        reported.add(error);
+      }
+    }
+  }
+
+  private RowSelection.Where getWhere(MessageContext msgCtxt) throws Exception {
+    String value = _getStringProperty(msgCtxt, "where", null);
+    if (value == null) {
+      return null;
+    }
+    RowSelection.Where where = wheres.get(value);
+    if (where == null) {
+      where = RowSelection.Where.parse(value);
+      if (wheres.size() < MAX_CACHED_VARIANTS) {
+        wheres.put(value, where);
+      }
+    }
+    return where;
+  }
+
+  /** Sets the number of records the where predicate dropped, if there is one. */
+  private void setRowsFiltered(MessageContext msgCtxt, RowReader records) {
+    if (records instanceof RowSelection) {
+      msgCtxt.setVariable(
+          varName("rows_filtered"), String.format("%d", ((RowSelection) records).getDropped()));
+    }
+  }
+
+  private Limits getLimits(MessageContext msgCtxt) throws Exception {
+    return new Limits(
+        _getIntProperty(msgCtxt, "max-bytes", 0),
+        _getIntProperty(msgCtxt, "max-rows", 0),
+        _getIntProperty(msgCtxt, "max-cells", 0));
+  }
+
+  private int getSpillThreshold(MessageContext msgCtxt) throws Exception {
+    return _getIntProperty(msgCtxt, "spill-threshold", 0);
+  }
+
+  private File getSpillDirectory(MessageContext msgCtxt) throws Exception {
+    String directory = _getStringProperty(msgCtxt, "spill-directory", null);
+    return (directory != null) ? new File(directory) : null;
+  }
+
+  private String getParser(MessageContext msgCtxt) throws Exception {
+    String parser = _getStringProperty(msgCtxt, "parser", "commons").toLowerCase();
+    if (!parser.equals("commons") && !parser.equals("fast")) {
+      throw new IllegalStateException("parser must be one of commons, fast.");
+    }
+    return parser;
+  }
+
+  /** Returns the hash to use to recognize a repeated upload, fast or sha-256, or null if none. */
+  private String getDedup(MessageContext msgCtxt) throws Exception {
+    String dedup = _getStringProperty(msgCtxt, "dedup", "none").toLowerCase();
+    if (!dedup.equals("none") && !dedup.equals("fast") && !dedup.equals("sha-256")) {
+      throw new IllegalStateException("dedup must be one of none, fast, sha-256.");
+    }
+    return dedup.equals("none") ? null : dedup;
+  }
+
+  /** Returns the resolved value of every property that can make a difference to the result. */
+  private String getEffectiveConfiguration(MessageContext msgCtxt) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (String name : dedupKeyProperties) {
+      String value = _getStringProperty(msgCtxt, name, null);
+      if (value != null) {
+        sb.append(name).append('=').append(value).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Makes a map or list result, and each of its rows, read-only, in place: each row is wrapped,
+   * and the wrapped rows are held in a read-only view of the original collection.
+   */
+  @SuppressWarnings("unchecked")
+  private static Object readOnly(Object result) {
+    if (result instanceof List) {
+      List<Map<String, String>> list = (List<Map<String, String>>) result;
+      for (ListIterator<Map<String, String>> it = list.listIterator(); it.hasNext(); ) {
+        it.set(Collections.unmodifiableMap(it.next()));
+      }
+      return Collections.unmodifiableList(list);
+    }
+    Map<String, Map<String, String>> map = (Map<String, Map<String, String>>) result;
+    for (Map.Entry<String, Map<String, String>> entry : map.entrySet()) {
+      entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+    }
+    return Collections.unmodifiableMap(map);
+  }
 
-    // 1. we want to read the content as a stream
-    InputStreamReader in = new InputStreamReader(msg.getContentAsStream());
+  /**
+   * Sets the variables of a result built for an earlier upload of the same content, and, if
+   * caching, publishes that result again under cache-name, as a shred would.
+   */
+  private ExecutionResult replay(
+      MessageContext msgCtxt, ShredResultCache.Result result, String cacheName) throws Exception {
+    for (Map.Entry<String, Object> variable : result.variables.entrySet()) {
+      if (variable.getValue() == null) {
+        msgCtxt.removeVariable(varName(variable.getKey()));
+      } else {
+        msgCtxt.setVariable(varName(variable.getKey()), variable.getValue());
+      }
+    }
+    if (cacheName != null) {
+      RowJson rowJson = (RowJson) result.variables.get("result_rowjson");
+      TableCache.Entry entry =
+          TableCache.getInstance()
+              .put(
+                  new TableCache.Entry(
+                      getTenant(msgCtxt),
+                      cacheName,
+                      result.contentHash,
+                      result.variables.get("result_java"),
+                      rowJson,
+                      (TableIndexes) result.variables.get("result_indexes"),
+                      result.cells,
+                      getCacheTtl(msgCtxt)),
+                  getKeepVersions(msgCtxt));
+      msgCtxt.setVariable(varName("content_hash"), entry.contentHash);
+      setCacheVersionVariables(msgCtxt, entry);
+    }
+    return ExecutionResult.SUCCESS;
+  }
+
+  private int getParallelThreshold(MessageContext msgCtxt) throws Exception {
+    return _getIntProperty(msgCtxt, "parallel-threshold", 0);
+  }
 
+  /** Opens a reader over the CSV, with the named parser, either commons or fast. */
+  static RowReader getRowReader(
+      String parser, InputStream content, List<String> fieldList, boolean trimSpaces)
+      throws Exception {
+    if (parser.equals("fast")) {
+      return new FastCsvReader(content, fieldList, trimSpaces);
+    }
     // see info for handling header records here:
     // https://commons.apache.org/proper/commons-csv/apidocs/org/apache/commons/csv/CSVFormat.html
+    InputStreamReader in = new InputStreamReader(content, StandardCharsets.UTF_8);
+    return RowReader.of(getCsvReader(fieldList, trimSpaces).parse(in));
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[64 * 1024];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private boolean hasIndexColumns(MessageContext msgCtxt) throws Exception {
+    return getColumnList(msgCtxt, "index-columns") != null
+        || getColumnList(msgCtxt, "sorted-index-columns") != null;
+  }
+
+  private TableIndexes buildIndexes(
+      MessageContext msgCtxt, Map<String, ? extends Map<String, String>> table) throws Exception {
+    List<String> hashIndexColumns = getColumnList(msgCtxt, "index-columns");
+    List<String> sortedIndexColumns = getColumnList(msgCtxt, "sorted-index-columns");
+    return TableIndexes.build(
+        table,
+        (hashIndexColumns != null) ? hashIndexColumns : Collections.<String>emptyList(),
+        (sortedIndexColumns != null) ? sortedIndexColumns : Collections.<String>emptyList());
+  }
+
+  static enum UpdateMode {
+    REPLACE,
+    DELTA
+  }
+
+  private UpdateMode getUpdateMode(MessageContext msgCtxt) throws Exception {
+    String value = _getStringProperty(msgCtxt, "update-mode", "replace");
+    try {
+      return UpdateMode.valueOf(value.toUpperCase());
+    } catch (IllegalArgumentException exc1) {
+      throw new IllegalArgumentException("update-mode");
+    }
+  }
+
+  private String getOpColumn(MessageContext msgCtxt) throws Exception {
+    return _getStringProperty(msgCtxt, "op-column", "op");
+  }
+
+  /** Derives the hash of an updated table from the hash of its base and that of the delta. */
+  private static String combineHashes(String baseHash, long deltaChecksum) {
+    CRC32 crc = new CRC32();
+    crc.update(baseHash.getBytes(StandardCharsets.UTF_8));
+    crc.update(String.format("%08x", deltaChecksum).getBytes(StandardCharsets.UTF_8));
+    return String.format("%08x", crc.getValue());
+  }
+
+  /**
+   * Applies the records, as a delta, to an existing table: either the table in the variable named
+   * by base-variable, or the table in the JVM-local cache under cache-name. The existing table is
+   * not modified; the new one replaces it in the cache, only if no other request replaced it in
+   * the meantime, so concurrent readers always see one whole version or the other.
+   */
+  private ExecutionResult executeDelta(
+      MessageContext msgCtxt, RowReader records, String cacheName, CheckedInputStream checked)
+      throws Exception {
+    if (getContrivePrimaryKey(msgCtxt)) {
+      throw new IllegalStateException(
+          "update-mode delta cannot be used with contrive-primary-key.");
+    }
+    TableDelta delta = TableDelta.read(records, getOpColumn(msgCtxt));
+    ObjectWriter writer = om.writer().withDefaultPrettyPrinter();
+    boolean precomputeRowJson = getPrecomputeRowJson(msgCtxt);
+    String baseVariable = _getStringProperty(msgCtxt, "base-variable", null);
+    TableDelta.Result result = null;
+    TableIndexes indexes = null;
+    TableCache.Entry entry = null;
+
+    if (baseVariable != null) {
+      Object base = msgCtxt.getVariable(baseVariable);
+      if (base instanceof byte[]) {
+        base = TableSnapshot.open((byte[]) base);
+      }
+      if (!(base instanceof Map)) {
+        throw new IllegalStateException("base-variable " + baseVariable + " does not hold a map.");
+      }
+      @SuppressWarnings("unchecked")
+      Map<String, Map<String, String>> table = (Map<String, Map<String, String>>) base;
+      result = delta.apply(table, null, writer);
+    } else if (cacheName != null) {
+      String tenant = getTenant(msgCtxt);
+      for (int attempt = 0; attempt < MAX_DELTA_ATTEMPTS && entry == null; attempt++) {
+        TableCache.Entry base = TableCache.getInstance().get(tenant, cacheName);
+        if (base == null) {
+          throw new IllegalStateException("no table cached with name " + cacheName);
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Map<String, String>> table = (Map<String, Map<String, String>>) base.table;
+        result = delta.apply(table, base.rowJson, writer);
+        indexes = hasIndexColumns(msgCtxt) ? buildIndexes(msgCtxt, result.table) : null;
+        TableCache.Entry replacement =
+            new TableCache.Entry(
+                tenant,
+                cacheName,
+                combineHashes(base.contentHash, checked.getChecksum().getValue()),
+                result.table,
+                (result.rowJson == null && precomputeRowJson)
+                    ? precomputeRowJson(result.table)
+                    : result.rowJson,
+                indexes,
+                cellCount(result.table, delta),
+                getCacheTtl(msgCtxt));
+        entry = TableCache.getInstance().replace(base, replacement, getKeepVersions(msgCtxt));
+      }
+      if (entry == null) {
+        throw new IllegalStateException("the cached table " + cacheName + " changed concurrently.");
+      }
+    } else {
+      throw new IllegalStateException("update-mode delta requires base-variable or cache-name.");
+    }
+
+    msgCtxt.setVariable(
+        varName("result_format"), (result.table instanceof CsvTable) ? "table" : "map");
+    msgCtxt.setVariable(varName("result_java"), result.table);
+    msgCtxt.setVariable(varName("rows_read"), String.format("%d", delta.size()));
+    msgCtxt.setVariable(varName("rows_inserted"), String.format("%d", result.inserted));
+    msgCtxt.setVariable(varName("rows_updated"), String.format("%d", result.updated));
+    msgCtxt.setVariable(varName("rows_deleted"), String.format("%d", result.deleted));
+    setJsonResult(msgCtxt, result.table);
+
+    RowJson rowJson = (entry != null) ? entry.rowJson : result.rowJson;
+    if (rowJson == null && precomputeRowJson) {
+      rowJson = precomputeRowJson(result.table);
+    }
+    if (rowJson != null) {
+      msgCtxt.setVariable(varName("result_rowjson"), rowJson);
+    }
+    if (entry == null && hasIndexColumns(msgCtxt)) {
+      indexes = buildIndexes(msgCtxt, result.table);
+    }
+    if (indexes != null) {
+      msgCtxt.setVariable(varName("result_indexes"), indexes);
+    }
+    if (getSnapshot(msgCtxt)) {
+      msgCtxt.setVariable(varName("result_snapshot"), TableSnapshot.write(result.table));
+    }
+    if (entry != null) {
+      msgCtxt.setVariable(varName("content_hash"), entry.contentHash);
+      setCacheVersionVariables(msgCtxt, entry);
+    }
+    return ExecutionResult.SUCCESS;
+  }
+
+  private static long cellCount(Map<String, Map<String, String>> table, TableDelta delta) {
+    int columns =
+        (table instanceof CsvTable) ? ((CsvTable) table).getHeader().size() : delta.columnCount();
+    return (long) table.size() * Math.max(1, columns);
+  }
+
+  public ExecutionResult execute0(final MessageContext msgCtxt) throws Exception {
+    String activateVersion = _getStringProperty(msgCtxt, "activate-version", null);
+    if (activateVersion != null) {
+      return activateVersion(msgCtxt, activateVersion);
+    }
+    try {
+      if (_getBooleanProperty(msgCtxt, "async", false)) {
+        return submitJob(msgCtxt);
+      }
+      return shred(msgCtxt);
+    } catch (Limits.ExceededException exc1) {
+      msgCtxt.setVariable(varName("limit_exceeded"), exc1.getLimit());
+      throw exc1;
+    }
+  }
+
+  /**
+   * Buffers the body, and queues a job to shred it in the background, with the properties as
+   * resolved now. The job publishes the result under cache-name; ShredJobStatus reports on it.
+   */
+  private ExecutionResult submitJob(MessageContext msgCtxt) throws Exception {
+    if (getCacheName(msgCtxt) == null) {
+      throw new IllegalStateException("async requires cache-name.");
+    }
+    if (getStreamOutput(msgCtxt) != null) {
+      throw new IllegalStateException("async cannot be used with stream-output.");
+    }
+    final Map<String, String> resolved = new HashMap<String, String>();
+    for (String name : properties.keySet()) {
+      String value = _getStringProperty(msgCtxt, name, null);
+      if (value != null) {
+        resolved.put(name, value);
+      }
+    }
+    resolved.remove("async");
+    resolved.put("json-output", "none"); // the result is read from the table cache, not as JSON
+
+    Message msg = getSourceMessage(msgCtxt);
+    Limits limits = getLimits(msgCtxt);
+    limits.checkContentLength(msg.getHeader("content-length"));
+    long t = metrics().now();
+    // max-bytes applies to the body as received, so that a chunked upload with no content-length
+    // cannot make this thread buffer more than that; the job applies it again after decoding
+    final byte[] body = readAll(limits.limitBytes(msg.getContentAsStream()));
+    metrics().addTime("read", t);
+    // the job decodes the body, so it needs the headers that say how
+    final Map<String, String> headers = new HashMap<String, String>();
+    for (String name : new String[] {"content-type", "content-encoding"}) {
+      String value = msg.getHeader(name);
+      if (value != null) {
+        headers.put(name, value);
+      }
+    }
 
-    // 2. read the CSV, maybe treat the first line as a header
-    Iterable<CSVRecord> records = getCsvReader(fieldList, getTrimSpaces(msgCtxt)).parse(in);
+    ShredJobs.Job job =
+        ShredJobs.getInstance()
+            .submit(
+                getTenant(msgCtxt),
+                body.length,
+                new ShredJobs.Task() {
+                  public boolean run(Map<String, Object> variables) {
+                    MessageContext jobCtxt = JobContext.create(variables, body, headers);
+                    // the values are resolved already; resolving them again against the job's
+                    // variables would change any that contain braces
+                    return new CsvShredder(resolved, true).execute(jobCtxt, null)
+                        == ExecutionResult.SUCCESS;
+                  }
+                });
+    msgCtxt.setVariable(varName("job_id"), job.id);
+    msgCtxt.setVariable(varName("job_status"), "queued");
+    return ExecutionResult.SUCCESS;
+  }
 
+  private ExecutionResult shred(final MessageContext msgCtxt) throws Exception {
+    Metrics metrics = metrics();
+    Message msg = getSourceMessage(msgCtxt);
+    List<String> fieldList = getFieldList(msgCtxt);
+
+    // 1. we want to read the content as a stream, and stop reading it if it proves too large.
+    // If caching, checksum it as it is read.
+    Limits limits = getLimits(msgCtxt);
+    limits.checkContentLength(msg.getHeader("content-length"));
+    String cacheName = getCacheName(msgCtxt);
+    InputStream content =
+        limits.limitBytes(metrics.countBytes(getDecodedContent(msgCtxt, msg)));
+    CheckedInputStream checked = null;
+    if (cacheName != null) {
+      content = checked = new CheckedInputStream(content, new CRC32());
+    }
+
+    // 2. read the CSV, maybe treat the first line as a header. Large bodies may be parsed in
+    // chunks, in parallel; the records still come back in order.
+    final String parser = getParser(msgCtxt);
+    final boolean trimSpaces = getTrimSpaces(msgCtxt);
+    JsonRecordStream.Mode streamOutput = getStreamOutput(msgCtxt);
+    OutputEncoding outputEncoding = getOutputEncoding(msgCtxt);
+    if (outputEncoding != OutputEncoding.JSON
+        && streamOutput != JsonRecordStream.Mode.JSON_ARRAY) {
+      throw new IllegalStateException(
+          "output-encoding "
+              + outputEncoding.name().toLowerCase()
+              + " requires stream-output json-array.");
+    }
     OutputFormat desiredOutputFormat = getOutputFormat(msgCtxt);
-    if (desiredOutputFormat == OutputFormat.LIST) {
-      // 3. convert the Iterable to a List
-      List<Map<String, String>> list = new ArrayList<Map<String, String>>();
-      for (CSVRecord record : records) {
-        list.add(record.toMap()); // Map<String,String>
-      }
-
-      msgCtxt.setVariable(varName("result_format"), "list");
-
-      // 4a. set a variable to hold the generated List<Map>
-      msgCtxt.setVariable(varName("result_java"), list);
-
-      // 4b. set a variable to hold the number of rows read
-      msgCtxt.setVariable(varName("rows_read"), String.format("%d", list.size()));
-      // 5. for diagnostic purposes, serialize to JSON as well
-      String jsonResult = om.writer().withDefaultPrettyPrinter().writeValueAsString(list);
-      msgCtxt.setVariable(varName("result_json"), jsonResult);
-    } else if (desiredOutputFormat == OutputFormat.MAP) {
-      // 3. process each record in the CSV, convert to an element in a map
-      Map<String, Object> map = new HashMap<String, Object>();
-      Boolean contrivePk = getContrivePrimaryKey(msgCtxt);
-      int c = 0;
-      for (CSVRecord record : records) {
-        String primaryKey =
-            contrivePk
-                ? padLeft(String.format("%d", c), 10, '0')
-                : record.get(0); // by default, first field is PK
-        map.put(primaryKey, record.toMap()); // Map<String,String>
-        c++;
-      }
-
-      msgCtxt.setVariable(varName("result_format"), "map");
-      // 4a. set a variable to hold the generated Map<String, Map>
-      msgCtxt.setVariable(varName("result_java"), map);
-
-      // 4b. set a variable to hold the number of rows read
-      msgCtxt.setVariable(varName("rows_read"), String.format("%d", map.size()));
-      // 5. for diagnostic purposes, serialize to JSON as well
-      String jsonResult = om.writer().withDefaultPrettyPrinter().writeValueAsString(map);
-      msgCtxt.setVariable(varName("result_json"), jsonResult);
+    int parallelThreshold = getParallelThreshold(msgCtxt);
+    List<String> selectColumns = getColumnList(msgCtxt, "select-columns");
+    String dedup = getDedup(msgCtxt);
+    if (dedup != null && (streamOutput != null || getUpdateMode(msgCtxt) == UpdateMode.DELTA)) {
+      throw new IllegalStateException(
+          "dedup cannot be used with stream-output or update-mode delta.");
+    }
+    // for dedup, the body is hashed as it is read. It must be read in full, and the digest looked
+    // up, before any parsing, as parsing is the work that a repeated upload saves.
+    ContentHash.HashingInputStream hashing = null;
+    if (dedup != null) {
+      content = hashing = new ContentHash.HashingInputStream(content, dedup.equals("sha-256"));
+    }
+    byte[] bytes = null;
+    if (dedup != null || (parallelThreshold > 0 && streamOutput == null)) {
+      long t = metrics.now();
+      bytes = readAll(content);
+      metrics.addTime("read", t);
+    }
+
+    // a body seen before, to be shredded the same way, need not be parsed again
+    String dedupKey = null;
+    if (dedup != null) {
+      metrics.add("hash_ns", hashing.getNanos());
+      dedupKey =
+          ShredResultCache.key(
+              getTenant(msgCtxt), hashing.digest(), getEffectiveConfiguration(msgCtxt));
+      ShredResultCache.Result previous = ShredResultCache.getInstance().get(dedupKey);
+      msgCtxt.setVariable(varName("cache_hit"), Boolean.toString(previous != null));
+      if (previous != null) {
+        return replay(msgCtxt, previous, cacheName);
+      }
+    }
+
+    RowReader records;
+    if (bytes != null && parallelThreshold > 0 && bytes.length >= parallelThreshold) {
+      records =
+          new ParallelRowReader(
+              bytes,
+              fieldList,
+              trimSpaces,
+              desiredOutputFormat != OutputFormat.TABLE && selectColumns == null,
+              new ParallelRowReader.Factory() {
+                public RowReader open(InputStream in, List<String> header) throws Exception {
+                  return getRowReader(parser, in, header, trimSpaces);
+                }
+              });
+    } else if (bytes != null) {
+      records = getRowReader(parser, new ByteArrayInputStream(bytes), fieldList, trimSpaces);
+    } else {
+      records = getRowReader(parser, content, fieldList, trimSpaces);
+    }
+
+    // from here on, close the reader however the shred ends: that stops the parsing of any chunks
+    // still under way, and lets the next request on this thread reuse the parser's buffers
+    boolean streaming = false;
+    Object result = null;
+    int rows = 0;
+    long buildStart;
+    boolean precomputeRowJson;
+    try {
+      ShredJobs.Job job = ShredJobs.current();
+      if (job != null) {
+        // a background job; count the records as they are read, for ShredJobStatus
+        records = job.countRows(records);
+      }
+      if (streamOutput == null) {
+        // when streaming, the records are read only after the callout returns
+        records = metrics.countRows(records);
+      }
+      records = limits.limitRows(records);
+      // keep only the wanted records and cells, as they are read
+      records = RowSelection.of(records, selectColumns, getWhere(msgCtxt));
+
+      TableSchema schema = getSchema(msgCtxt);
+      int spillThreshold = getSpillThreshold(msgCtxt);
+      if (spillThreshold > 0
+          && (desiredOutputFormat != OutputFormat.TABLE
+              || streamOutput != null
+              || schema != null
+              || getUpdateMode(msgCtxt) == UpdateMode.DELTA)) {
+        throw new IllegalStateException(
+            "spill-threshold requires output-format table, without schema, stream-output or"
+                + " update-mode delta.");
+      }
+      if (schema != null
+          && (desiredOutputFormat != OutputFormat.TABLE
+              || streamOutput != null
+              || getUpdateMode(msgCtxt) == UpdateMode.DELTA)) {
+        throw new IllegalStateException(
+            "schema requires output-format table, without stream-output or update-mode delta.");
+      }
+
+      if (getUpdateMode(msgCtxt) == UpdateMode.DELTA) {
+        if (streamOutput != null) {
+          throw new IllegalStateException("update-mode delta cannot be used with stream-output.");
+        }
+        // 3. apply the records as changes to an existing table, rather than as a new table
+        long t = metrics.now();
+        ExecutionResult outcome = executeDelta(msgCtxt, records, cacheName, checked);
+        metrics.addTime("delta", t);
+        setRowsFiltered(msgCtxt, records);
+        return outcome;
+      }
+
+      if (streamOutput != null) {
+        // 3. do not collect anything. Set the current message content to a stream that
+        // converts one record at a time, as the runtime reads it.
+        Message target = msgCtxt.getMessage();
+        target.setContent(newRecordStream(records, streamOutput, outputEncoding));
+        streaming = true; // the stream closes the records when it is done
+        if (streamOutput == JsonRecordStream.Mode.NDJSON) {
+          target.setHeader("content-type", "application/x-ndjson");
+          msgCtxt.setVariable(varName("result_format"), "ndjson");
+        } else {
+          target.setHeader("content-type", outputEncoding.contentType);
+          msgCtxt.setVariable(
+              varName("result_format"),
+              (outputEncoding == OutputEncoding.JSON)
+                  ? "json-array"
+                  : outputEncoding.name().toLowerCase());
+        }
+        return ExecutionResult.SUCCESS;
+      }
+
+      buildStart = metrics.now();
+      precomputeRowJson = getPrecomputeRowJson(msgCtxt);
+      if (precomputeRowJson && desiredOutputFormat == OutputFormat.LIST) {
+        throw new IllegalStateException("precompute-row-json requires output-format map or table.");
+      }
+      if (desiredOutputFormat == OutputFormat.LIST) {
+        // 3. convert the Iterable to a List
+        List<Map<String, String>> list = new ArrayList<Map<String, String>>();
+        while (records.next()) {
+          list.add(records.toMap()); // Map<String,String>
+        }
+
+        msgCtxt.setVariable(varName("result_format"), "list");
+
+        // 4a. set a variable to hold the generated List<Map>
+        msgCtxt.setVariable(varName("result_java"), list);
+
+        // 4b. set a variable to hold the number of rows read
+        msgCtxt.setVariable(varName("rows_read"), String.format("%d", list.size()));
+        // 5. for diagnostic purposes, serialize to JSON as well, if desired
+        setJsonResult(msgCtxt, list);
+        result = list;
+        rows = list.size();
+      } else if (desiredOutputFormat == OutputFormat.MAP) {
+        // 3. process each record in the CSV, convert to an element in a map
+        Map<String, Map<String, String>> map = new HashMap<String, Map<String, String>>();
+        Boolean contrivePk = getContrivePrimaryKey(msgCtxt);
+        char[] digits = new char[10];
+        int c = 0;
+        while (records.next()) {
+          // by default, the first field is the primary key
+          String primaryKey = contrivePk ? contrivedKey(c, digits) : records.get(0);
+          map.put(primaryKey, records.toMap()); // Map<String,String>
+          c++;
+        }
+
+        msgCtxt.setVariable(varName("result_format"), "map");
+        // 4a. set a variable to hold the generated Map<String, Map>
+        msgCtxt.setVariable(varName("result_java"), map);
+
+        // 4b. set a variable to hold the number of rows read
+        msgCtxt.setVariable(varName("rows_read"), String.format("%d", map.size()));
+        // 5. for diagnostic purposes, serialize to JSON as well, if desired
+        setJsonResult(msgCtxt, map);
+        result = map;
+        rows = map.size();
+      } else if (desiredOutputFormat == OutputFormat.TABLE) {
+        // 3. accumulate the records into a columnar table, with one shared header. Columns with a
+        // type in the schema are parsed as they are added.
+        String[] header = records.getHeaderNames().toArray(new String[0]);
+        CsvTable.Builder builder = new CsvTable.Builder(header, schema);
+        SchemaErrors errors = null;
+        if (schema != null) {
+          errors = new SchemaErrors(_getBooleanProperty(msgCtxt, "fail-on-schema-error", false));
+          builder.setErrorListener(errors);
+        }
+        Boolean contrivePk = getContrivePrimaryKey(msgCtxt);
+        String[] values = new String[header.length];
+        char[] digits = new char[10];
+        // past the spill threshold, the rows move to a file, and only the keys stay on the heap
+        SpilledTable.Writer spill = null;
+        int c = 0;
+        try {
+          while (records.next()) {
+            int n = Math.min(records.size(), values.length);
+            for (int i = 0; i < n; i++) {
+              values[i] = records.get(i);
+            }
+            String primaryKey = contrivePk ? contrivedKey(c, digits) : records.get(0);
+            if (errors != null) {
+              errors.record = c + 1;
+            }
+            if (spill == null && spillThreshold > 0 && builder.size() >= spillThreshold) {
+              spill = new SpilledTable.Writer(getSpillDirectory(msgCtxt), header);
+              spill.addAll(builder.build());
+              builder = null;
+            }
+            if (spill != null) {
+              spill.add(primaryKey, values, n);
+            } else {
+              builder.add(primaryKey, values, n);
+            }
+            c++;
+          }
+        } catch (Exception exc1) {
+          if (spill != null) {
+            spill.delete();
+          }
+          throw exc1;
+        }
+        Map<String, Map<String, String>> table = (spill != null) ? spill.finish() : builder.build();
+        if (errors != null) {
+          msgCtxt.setVariable(varName("schema_error_count"), String.format("%d", errors.count));
+          msgCtxt.setVariable(
+              varName("schema_errors"), om.writer().writeValueAsString(errors.reported));
+        }
+
+        msgCtxt.setVariable(varName("result_format"), (spill != null) ? "spilled" : "table");
+        // 4a. set a variable to hold the table, which is also a read-only Map<String, Map>
+        msgCtxt.setVariable(varName("result_java"), table);
+
+        // 4b. set a variable to hold the number of rows read
+        msgCtxt.setVariable(varName("rows_read"), String.format("%d", table.size()));
+        // 5. for diagnostic purposes, serialize to JSON as well, if desired
+        setJsonResult(msgCtxt, table);
+        result = table;
+        rows = table.size();
+      }
+
+    } finally {
+      if (!streaming) {
+        records.close();
+      }
+    }
+    setRowsFiltered(msgCtxt, records);
+    if (metrics.isEnabled()) {
+      // the time to collect the records, apart from reading them and serializing the result
+      metrics.add(
+          "build_ns",
+          System.nanoTime() - buildStart - metrics.get("parse_ns") - metrics.get("json_ns"));
+    }
+
+    if (dedupKey != null && result != null && desiredOutputFormat != OutputFormat.TABLE) {
+      // the result is shared with every later upload of the same content, so no request may
+      // change it. A table is read-only already.
+      result = readOnly(result);
+      msgCtxt.setVariable(varName("result_java"), result);
+    }
+
+    // 6. optionally, serialize each row now, so that MapExtractor need not do so per lookup
+    RowJson rowJson = null;
+    if (precomputeRowJson) {
+      long t = metrics.now();
+      @SuppressWarnings("unchecked")
+      Map<String, Map<String, String>> table = (Map<String, Map<String, String>>) result;
+      rowJson = precomputeRowJson(table);
+      msgCtxt.setVariable(varName("result_rowjson"), rowJson);
+      metrics.addTime("rowjson", t);
+    }
+
+    // 7. optionally, build secondary indexes on other columns, for queries via MapExtractor
+    TableIndexes indexes = null;
+    if (hasIndexColumns(msgCtxt)) {
+      if (desiredOutputFormat == OutputFormat.LIST) {
+        throw new IllegalStateException("indexes require output-format map or table.");
+      }
+      @SuppressWarnings("unchecked")
+      Map<String, Map<String, String>> table = (Map<String, Map<String, String>>) result;
+      long t = metrics.now();
+      indexes = buildIndexes(msgCtxt, table);
+      msgCtxt.setVariable(varName("result_indexes"), indexes);
+      metrics.addTime("index", t);
+    }
+
+    // 8. optionally, encode the table compactly, for storing in a distributed cache
+    if (getSnapshot(msgCtxt)) {
+      if (desiredOutputFormat == OutputFormat.LIST) {
+        throw new IllegalStateException("snapshot requires output-format map or table.");
+      }
+      @SuppressWarnings("unchecked")
+      Map<String, Map<String, String>> table = (Map<String, Map<String, String>>) result;
+      long t = metrics.now();
+      msgCtxt.setVariable(varName("result_snapshot"), TableSnapshot.write(table));
+      metrics.addTime("snapshot", t);
+    }
+
+    // 9. optionally, publish the result into the JVM-local table cache, for MapExtractor, as the
+    // next version of the name. Readers switch from the previous version in one step.
+    String contentHash =
+        (checked != null) ? String.format("%08x", checked.getChecksum().getValue()) : null;
+    long cells = (long) rows * Math.max(1, records.getHeaderNames().size());
+    if (cacheName != null && result != null) {
+      TableCache.Entry entry =
+          TableCache.getInstance()
+              .put(
+                  new TableCache.Entry(
+                      getTenant(msgCtxt),
+                      cacheName,
+                      contentHash,
+                      result,
+                      rowJson,
+                      indexes,
+                      cells,
+                      getCacheTtl(msgCtxt)),
+                  getKeepVersions(msgCtxt));
+      msgCtxt.setVariable(varName("content_hash"), contentHash);
+      setCacheVersionVariables(msgCtxt, entry);
+    }
+
+    // 10. optionally, remember the result, for the next upload of the same content
+    if (dedupKey != null) {
+      Map<String, Object> variables = new LinkedHashMap<String, Object>();
+      for (String name : DEDUP_VARIABLES) {
+        variables.put(name, msgCtxt.getVariable(varName(name)));
+      }
+      ShredResultCache.getInstance()
+          .put(dedupKey, new ShredResultCache.Result(variables, contentHash, cells));
     }
 
     return ExecutionResult.SUCCESS;
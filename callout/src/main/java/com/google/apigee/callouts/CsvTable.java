@@ -0,0 +1,521 @@
+// CsvTable.java
+//
+// A compact, column-oriented representation of a shredded CSV. It
+// presents itself as a read-only Map<String, Map<String,String>>, keyed
+// by primary key, so it can be used anywhere the map produced by
+// CsvShredder is used: in MapExtractor, in PopulateCache/LookupCache, or
+// in a JSON serializer. Columns declared with a type in the schema hold
+// parsed values, in TypedColumns, and are written to JSON as such.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+public class CsvTable extends AbstractMap<String, Map<String, String>> implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String[] header;
+  private final String[] keys; // keys[row]
+  private final String[][] columns; // columns[col][row]; null for a typed column
+  private final TypedColumn[] typed; // typed[col], null for a string column; null if none
+  private final int rowCount;
+
+  // open-addressing index, from hash(key) to (row + 1); 0 means empty.
+  private transient int[] slots;
+  private transient Map<String, Integer> columnIndex;
+  private transient Set<Map.Entry<String, Map<String, String>>> entrySet;
+
+  /** @param slots a key index that is valid for these keys, or null to build one. */
+  private CsvTable(
+      String[] header,
+      String[] keys,
+      String[][] columns,
+      TypedColumn[] typed,
+      int rowCount,
+      int[] slots) {
+    this.header = header;
+    this.keys = keys;
+    this.columns = columns;
+    this.typed = typed;
+    this.rowCount = rowCount;
+    this.slots = slots;
+    buildIndexes();
+  }
+
+  private void buildIndexes() {
+    Map<String, Integer> m = new HashMap<String, Integer>();
+    for (int i = 0; i < header.length; i++) {
+      m.put(header[i], i); // as with CSVRecord.toMap(), the last duplicate name wins
+    }
+    columnIndex = m;
+    if (slots == null) {
+      slots = new int[tableSizeFor(rowCount)];
+      for (int row = 0; row < rowCount; row++) {
+        slots[findSlot(slots, keys, keys[row])] = row + 1;
+      }
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    slots = null;
+    buildIndexes();
+  }
+
+  private static int tableSizeFor(int n) {
+    int size = 16;
+    while (size < n * 2) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  private static int spread(int h) {
+    return h ^ (h >>> 16);
+  }
+
+  /** Returns the slot that holds the given key, or the empty slot where it belongs. */
+  private static int findSlot(int[] slots, String[] keys, Object key) {
+    int mask = slots.length - 1;
+    int i = spread(key.hashCode()) & mask;
+    while (slots[i] != 0 && !keys[slots[i] - 1].equals(key)) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private int rowOf(Object key) {
+    if (!(key instanceof String)) {
+      return -1;
+    }
+    return slots[findSlot(slots, keys, key)] - 1;
+  }
+
+  public List<String> getHeader() {
+    return Collections.unmodifiableList(Arrays.asList(header));
+  }
+
+  /**
+   * Returns the type of a column, as named in the schema: "string" unless the schema declared
+   * another type. Returns null if there is no such column.
+   */
+  public String getColumnType(String columnName) {
+    Integer col = columnIndex.get(columnName);
+    if (col == null) {
+      return null;
+    }
+    return (typed != null && typed[col] != null) ? typed[col].typeName() : "string";
+  }
+
+  private String cell(int col, int row) {
+    return (columns[col] != null) ? columns[col][row] : typed[col].get(row);
+  }
+
+  /**
+   * Returns the value of one cell, or null if the row or the column does not exist. The value of
+   * a typed cell is formatted as text.
+   */
+  public String getCell(String key, String columnName) {
+    int row = rowOf(key);
+    Integer col = columnIndex.get(columnName);
+    return (row < 0 || col == null) ? null : cell(col, row);
+  }
+
+  @Override
+  public int size() {
+    return rowCount;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return rowOf(key) >= 0;
+  }
+
+  @Override
+  public Map<String, String> get(Object key) {
+    int row = rowOf(key);
+    return (row < 0) ? null : new Row(row);
+  }
+
+  @Override
+  public Set<Map.Entry<String, Map<String, String>>> entrySet() {
+    if (entrySet == null) {
+      entrySet =
+          new AbstractSet<Map.Entry<String, Map<String, String>>>() {
+            public int size() {
+              return rowCount;
+            }
+
+            public Iterator<Map.Entry<String, Map<String, String>>> iterator() {
+              return new Iterator<Map.Entry<String, Map<String, String>>>() {
+                private int row = 0;
+
+                public boolean hasNext() {
+                  return row < rowCount;
+                }
+
+                public Map.Entry<String, Map<String, String>> next() {
+                  if (row >= rowCount) {
+                    throw new NoSuchElementException();
+                  }
+                  Row r = new Row(row++);
+                  return new SimpleImmutableEntry<String, Map<String, String>>(keys[r.row], r);
+                }
+              };
+            }
+          };
+    }
+    return entrySet;
+  }
+
+  /**
+   * A read-only view of one row, keyed by column name. Missing cells are absent. As a Map, the
+   * row holds text; serialized to JSON, the values of typed columns are numbers or booleans.
+   */
+  @JsonSerialize(using = RowSerializer.class)
+  private final class Row extends AbstractMap<String, String> {
+    private final int row;
+
+    Row(int row) {
+      this.row = row;
+    }
+
+    @Override
+    public String get(Object name) {
+      Integer col = columnIndex.get(name);
+      return (col == null) ? null : cell(col, row);
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+      return get(name) != null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+      return new AbstractSet<Map.Entry<String, String>>() {
+        public int size() {
+          int n = 0;
+          for (int col = 0; col < header.length; col++) {
+            if (isVisible(col)) n++;
+          }
+          return n;
+        }
+
+        public Iterator<Map.Entry<String, String>> iterator() {
+          return new Iterator<Map.Entry<String, String>>() {
+            private int col = advance(0);
+
+            private int advance(int c) {
+              while (c < header.length && !isVisible(c)) c++;
+              return c;
+            }
+
+            public boolean hasNext() {
+              return col < header.length;
+            }
+
+            public Map.Entry<String, String> next() {
+              if (col >= header.length) {
+                throw new NoSuchElementException();
+              }
+              Map.Entry<String, String> e =
+                  new SimpleImmutableEntry<String, String>(header[col], cell(col, row));
+              col = advance(col + 1);
+              return e;
+            }
+          };
+        }
+      };
+    }
+
+    // a column is visible if it has a value, and is not shadowed by a later duplicate name
+    private boolean isVisible(int col) {
+      boolean has = (columns[col] != null) ? columns[col][row] != null : typed[col].has(row);
+      return has && columnIndex.get(header[col]) == col;
+    }
+
+    void writeJson(JsonGenerator gen) throws IOException {
+      gen.writeStartObject();
+      for (int col = 0; col < header.length; col++) {
+        if (isVisible(col)) {
+          gen.writeFieldName(header[col]);
+          if (columns[col] != null) {
+            gen.writeString(columns[col][row]);
+          } else {
+            typed[col].write(gen, row);
+          }
+        }
+      }
+      gen.writeEndObject();
+    }
+  }
+
+  static final class RowSerializer extends JsonSerializer<Row> {
+    @Override
+    public void serialize(Row row, JsonGenerator gen, SerializerProvider provider)
+        throws IOException {
+      row.writeJson(gen);
+    }
+  }
+
+  /**
+   * Accumulates rows column by column. Values are de-duplicated per column, until a column proves
+   * to have too many distinct values for that to pay off. Values for typed columns are parsed as
+   * they are added.
+   */
+  static final class Builder {
+    private static final int DEDUP_SAMPLE = 1024;
+
+    /** Told of each value that does not parse as the type of its column. */
+    interface ErrorListener {
+      void onError(String key, String column, String value, String reason);
+    }
+
+    private final String[] header;
+    private final String[][] columns;
+    private final TypedColumn[] typed;
+    private final Map<String, String>[] interners;
+    private String[] keys = new String[64];
+    private int[] slots = new int[128];
+    private int rowCount = 0;
+    private BitSet deleted; // rows removed since the builder started; null if none
+    private ErrorListener errorListener;
+
+    Builder(String[] header) {
+      this(header, null);
+    }
+
+    /** @param schema the types of the columns, or null if all are strings. */
+    @SuppressWarnings("unchecked")
+    Builder(String[] header, TableSchema schema) {
+      this.header = header.clone();
+      this.typed = (schema != null) ? schema.columnsFor(this.header, 64) : null;
+      this.columns = new String[header.length][];
+      this.interners = new Map[header.length];
+      for (int i = 0; i < header.length; i++) {
+        if (typed == null || typed[i] == null) {
+          columns[i] = new String[64];
+          interners[i] = new HashMap<String, String>();
+        }
+      }
+    }
+
+    /**
+     * Starts from a copy of an existing table, which is not modified. The header must begin with
+     * the header of the base table; any further names become new, empty columns, of strings.
+     * Copying the arrays of references costs far less than re-parsing the CSV.
+     */
+    @SuppressWarnings("unchecked")
+    Builder(CsvTable base, String[] header) {
+      if (header.length < base.header.length
+          || !Arrays.equals(Arrays.copyOf(header, base.header.length), base.header)) {
+        throw new IllegalArgumentException("header must extend the header of the base table");
+      }
+      int capacity = base.rowCount + base.rowCount / 16 + 64;
+      this.header = header.clone();
+      this.columns = new String[header.length][];
+      this.typed = (base.typed != null) ? new TypedColumn[header.length] : null;
+      for (int col = 0; col < header.length; col++) {
+        if (col >= base.header.length) {
+          columns[col] = new String[capacity];
+        } else if (base.columns[col] != null) {
+          columns[col] = Arrays.copyOf(base.columns[col], capacity);
+        } else {
+          typed[col] = base.typed[col].copy(base.rowCount, capacity);
+        }
+      }
+      this.interners = new Map[header.length]; // no de-duplication for the few rows added later
+      this.keys = Arrays.copyOf(base.keys, capacity);
+      this.slots = base.slots.clone();
+      this.rowCount = base.rowCount;
+    }
+
+    /**
+     * Sets the listener for values that do not parse; such a cell is left absent. Without a
+     * listener, add() throws IllegalStateException for such a value.
+     */
+    void setErrorListener(ErrorListener errorListener) {
+      this.errorListener = errorListener;
+    }
+
+    int size() {
+      return rowCount - ((deleted != null) ? deleted.cardinality() : 0);
+    }
+
+    private int rowOf(String key) {
+      int row = slots[findSlot(slots, keys, key)] - 1;
+      return (row >= 0 && (deleted == null || !deleted.get(row))) ? row : -1;
+    }
+
+    boolean contains(String key) {
+      return rowOf(key) >= 0;
+    }
+
+    /** Removes the row with the given key. Returns false if there is no such row. */
+    boolean remove(String key) {
+      int row = rowOf(key);
+      if (row < 0) {
+        return false;
+      }
+      if (deleted == null) {
+        deleted = new BitSet(rowCount);
+      }
+      deleted.set(row);
+      return true;
+    }
+
+    /**
+     * Adds a row. If the key is already present, the row replaces the previous one with that key,
+     * the same as putting into a map. Values beyond the width of the header are ignored.
+     */
+    void add(String key, String[] values, int count) {
+      int slot = findSlot(slots, keys, key);
+      int row;
+      if (slots[slot] != 0) {
+        row = slots[slot] - 1;
+        if (deleted != null) {
+          deleted.clear(row); // a removed key that comes back keeps its place
+        }
+      } else {
+        row = rowCount++;
+        ensureCapacity(rowCount);
+        keys[row] = key;
+        if (rowCount * 2 > slots.length) {
+          rehash();
+        } else {
+          slots[slot] = row + 1;
+        }
+      }
+      for (int col = 0; col < header.length; col++) {
+        String value = (col < count) ? values[col] : null;
+        if (columns[col] != null) {
+          columns[col][row] = dedup(col, value);
+        } else {
+          setTyped(key, col, row, value);
+        }
+      }
+    }
+
+    private void setTyped(String key, int col, int row, String value) {
+      try {
+        typed[col].set(row, value);
+      } catch (IllegalArgumentException exc1) {
+        String reason = "not a valid " + typed[col].typeName();
+        if (errorListener == null) {
+          throw new IllegalStateException(
+              "the value of " + header[col] + " for key " + key + " is " + reason + ": " + value);
+        }
+        errorListener.onError(key, header[col], value, reason);
+      }
+    }
+
+    private String dedup(int col, String value) {
+      Map<String, String> interner = interners[col];
+      if (interner == null || value == null) {
+        return value;
+      }
+      String existing = interner.putIfAbsent(value, value);
+      if (rowCount == DEDUP_SAMPLE && interner.size() > DEDUP_SAMPLE / 2) {
+        interners[col] = null; // mostly unique; stop paying for the interner
+      }
+      return (existing != null) ? existing : value;
+    }
+
+    private void ensureCapacity(int n) {
+      if (n <= keys.length) {
+        return;
+      }
+      int newLength = keys.length * 2;
+      keys = Arrays.copyOf(keys, newLength);
+      for (int col = 0; col < columns.length; col++) {
+        if (columns[col] != null) {
+          columns[col] = Arrays.copyOf(columns[col], newLength);
+        } else {
+          typed[col].ensureCapacity(newLength);
+        }
+      }
+    }
+
+    private void rehash() {
+      slots = new int[tableSizeFor(rowCount)];
+      for (int row = 0; row < rowCount; row++) {
+        slots[findSlot(slots, keys, keys[row])] = row + 1;
+      }
+    }
+
+    CsvTable build() {
+      if (deleted == null || deleted.isEmpty()) {
+        String[][] trimmed = new String[columns.length][];
+        TypedColumn[] trimmedTyped = (typed != null) ? new TypedColumn[typed.length] : null;
+        for (int col = 0; col < columns.length; col++) {
+          if (columns[col] != null) {
+            trimmed[col] = Arrays.copyOf(columns[col], rowCount);
+          } else {
+            trimmedTyped[col] = typed[col].copy(rowCount, rowCount);
+          }
+        }
+        // the builder's key index stays valid, since rows keep their positions
+        return new CsvTable(
+            header, Arrays.copyOf(keys, rowCount), trimmed, trimmedTyped, rowCount, slots);
+      }
+      // close the gaps left by removed rows, keeping the order of the rest
+      int n = size();
+      int[] kept = new int[n];
+      String[] compactKeys = new String[n];
+      int j = 0;
+      for (int row = 0; row < rowCount; row++) {
+        if (!deleted.get(row)) {
+          compactKeys[j] = keys[row];
+          kept[j++] = row;
+        }
+      }
+      String[][] compact = new String[columns.length][];
+      TypedColumn[] compactTyped = (typed != null) ? new TypedColumn[typed.length] : null;
+      for (int col = 0; col < columns.length; col++) {
+        if (columns[col] != null) {
+          compact[col] = new String[n];
+          for (int i = 0; i < n; i++) {
+            compact[col][i] = columns[col][kept[i]];
+          }
+        } else {
+          compactTyped[col] = typed[col].select(kept, n);
+        }
+      }
+      return new CsvTable(header, compactKeys, compact, compactTyped, n, null);
+    }
+  }
+}
@@ -0,0 +1,393 @@
+// FastCsvReader.java
+//
+// A byte-oriented CSV tokenizer, for UTF-8 (or ASCII) input. It scans
+// the raw bytes of the message, records the start and end of each cell
+// in the current record, and creates a String for a cell only when
+// that cell is asked for. It follows RFC 4180, and treats the edge
+// cases the same way that commons-csv does with the format that
+// CsvShredder uses: quoted fields may contain delimiters, doubled
+// quotes and line breaks; CR, LF and CRLF all end a record; empty lines
+// are skipped; and a quote is special only at the start of a field.
+//
+// The byte buffer and the per-cell arrays are pooled, one set per
+// thread: a reader takes the set of the thread that opens it, and
+// close() hands the set to the thread that closes it. So a thread that
+// handles one request after another parses each without allocating
+// them again; only the Strings for the cells are new.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class FastCsvReader extends RowReader {
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  private static final int EOF = -1;
+  private static final byte COMMA = ',';
+  private static final byte QUOTE = '"';
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+  // cell arrays grown past this, for an unusually wide record, are not kept
+  private static final int MAX_POOLED_CELLS = 4096;
+
+  private static final ThreadLocal<Buffers> pool = new ThreadLocal<Buffers>();
+
+  /** The arrays a reader parses into, which outlive it. */
+  private static final class Buffers {
+    byte[] buf;
+    int[] starts = new int[16];
+    int[] ends = new int[16];
+    boolean[] escaped = new boolean[16];
+    String[] values = new String[16];
+
+    Buffers(int bufferSize) {
+      buf = new byte[bufferSize];
+    }
+  }
+
+  /** Takes the set of this thread, if it has one of the given size, or else makes one. */
+  private static Buffers takeBuffers(int bufferSize) {
+    Buffers buffers = pool.get();
+    if (buffers == null || buffers.buf.length != bufferSize) {
+      return new Buffers(bufferSize);
+    }
+    pool.remove();
+    return buffers;
+  }
+
+  /** The set of buffers pooled for this thread, if any. */
+  static Object pooledBuffers() {
+    return pool.get();
+  }
+
+  private final InputStream in;
+  private final boolean trimSpaces;
+  private Buffers buffers;
+  private byte[] buf;
+  private int pos = 0; // next byte to read
+  private int limit = 0; // end of valid bytes
+  private int rowStart = 0; // bytes before this may be discarded on refill
+  private boolean eof = false;
+  private long lineNumber = 1;
+
+  // the cells of the current record, as offsets into buf
+  private int cellCount = 0;
+  private int[] starts;
+  private int[] ends;
+  private boolean[] escaped; // contains doubled quotes
+  private String[] values;
+
+  FastCsvReader(InputStream in, List<String> fieldList, boolean trimSpaces) throws IOException {
+    this(in, fieldList, trimSpaces, DEFAULT_BUFFER_SIZE);
+  }
+
+  FastCsvReader(InputStream in, List<String> fieldList, boolean trimSpaces, int bufferSize)
+      throws IOException {
+    this.in = in;
+    this.trimSpaces = trimSpaces;
+    this.buffers = takeBuffers(bufferSize);
+    this.buf = buffers.buf;
+    this.starts = buffers.starts;
+    this.ends = buffers.ends;
+    this.escaped = buffers.escaped;
+    this.values = buffers.values;
+    try {
+      if (fieldList != null) {
+        setHeaderNames(fieldList);
+      } else if (next()) {
+        List<String> names = new ArrayList<String>(cellCount);
+        for (int i = 0; i < cellCount; i++) {
+          String name = get(i);
+          if (name.trim().isEmpty()) {
+            throw new IllegalArgumentException("A header name is missing in " + names);
+          }
+          names.add(name);
+        }
+        setHeaderNames(names);
+      }
+    } catch (IOException | RuntimeException exc1) {
+      releaseBuffers(); // the caller gets no reader to close
+      throw exc1;
+    }
+  }
+
+  int size() {
+    return cellCount;
+  }
+
+  String get(int i) {
+    if (i < 0 || i >= cellCount) {
+      throw new ArrayIndexOutOfBoundsException(i);
+    }
+    String value = values[i];
+    if (value == null) {
+      value = escaped[i] ? unescape(starts[i], ends[i]) : decode(starts[i], ends[i]);
+      values[i] = value;
+    }
+    return value;
+  }
+
+  private String decode(int start, int end) {
+    return (start == end) ? "" : new String(buf, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  // collapse each doubled quote into one
+  private String unescape(int start, int end) {
+    byte[] b = new byte[end - start];
+    int n = 0;
+    for (int i = start; i < end; i++) {
+      b[n++] = buf[i];
+      if (buf[i] == QUOTE) {
+        i++; // skip the second quote of the pair
+      }
+    }
+    return new String(b, 0, n, StandardCharsets.UTF_8);
+  }
+
+  /** The same set of characters as Character.isWhitespace, restricted to single bytes. */
+  private static boolean isWhitespace(int b) {
+    return b == ' ' || b == '\t' || b == 0x0B || b == 0x0C || (b >= 0x1C && b <= 0x1F);
+  }
+
+  private int read() throws IOException {
+    if (pos == limit && !fill()) {
+      return EOF;
+    }
+    return buf[pos++] & 0xff;
+  }
+
+  private int peek() throws IOException {
+    if (pos == limit && !fill()) {
+      return EOF;
+    }
+    return buf[pos] & 0xff;
+  }
+
+  /**
+   * Reads more input into the buffer, preserving the bytes of the current record. Cell offsets
+   * recorded so far are shifted to match. Returns false at the end of the input.
+   */
+  private boolean fill() throws IOException {
+    if (eof) {
+      return false;
+    }
+    if (rowStart > 0) {
+      System.arraycopy(buf, rowStart, buf, 0, limit - rowStart);
+      for (int i = 0; i < cellCount; i++) {
+        starts[i] -= rowStart;
+        ends[i] -= rowStart;
+      }
+      pos -= rowStart;
+      limit -= rowStart;
+      rowStart = 0;
+    }
+    if (limit == buf.length) {
+      buf = Arrays.copyOf(buf, buf.length * 2); // one record larger than the buffer
+    }
+    int n = in.read(buf, limit, buf.length - limit);
+    while (n == 0) {
+      n = in.read(buf, limit, buf.length - limit);
+    }
+    if (n < 0) {
+      eof = true;
+      return false;
+    }
+    limit += n;
+    return true;
+  }
+
+  private void addCell(int start, int end, boolean hasEscapes) {
+    if (cellCount == starts.length) {
+      int newLength = starts.length * 2;
+      starts = Arrays.copyOf(starts, newLength);
+      ends = Arrays.copyOf(ends, newLength);
+      escaped = Arrays.copyOf(escaped, newLength);
+      values = Arrays.copyOf(values, newLength);
+    }
+    starts[cellCount] = start;
+    ends[cellCount] = end;
+    escaped[cellCount] = hasEscapes;
+    values[cellCount] = null;
+    cellCount++;
+  }
+
+  boolean next() throws IOException {
+    cellCount = 0;
+    // skip empty lines
+    int c;
+    while (true) {
+      rowStart = pos;
+      c = peek();
+      if (c == EOF) {
+        return false;
+      }
+      if (c == CR || c == LF) {
+        consumeEndOfLine(read());
+      } else {
+        break;
+      }
+    }
+
+    while (true) {
+      if (trimSpaces) {
+        while (isWhitespace(peek())) {
+          pos++;
+        }
+      }
+      c = peek();
+      int terminator = (c == QUOTE) ? readQuotedCell() : readSimpleCell();
+      if (terminator == COMMA) {
+        continue;
+      }
+      if (terminator == CR || terminator == LF) {
+        consumeEndOfLine(terminator);
+      }
+      return true;
+    }
+  }
+
+  private void consumeEndOfLine(int c) throws IOException {
+    if (c == CR && peek() == LF) {
+      pos++;
+    }
+    lineNumber++;
+  }
+
+  /** Reads an unquoted cell, and returns the byte that ended it: a comma, CR, LF or EOF. */
+  private int readSimpleCell() throws IOException {
+    int start = pos;
+    int c;
+    while (true) {
+      if (pos == limit) {
+        int offset = pos - start;
+        boolean more = fill();
+        start = pos - offset; // fill() may have moved the bytes, even at the end of input
+        if (!more) {
+          c = EOF;
+          break;
+        }
+      }
+      c = buf[pos] & 0xff;
+      if (c == COMMA || c == CR || c == LF) {
+        break;
+      }
+      pos++;
+    }
+    int end = pos;
+    if (c != EOF) {
+      pos++; // consume the terminator
+    }
+    if (trimSpaces) {
+      while (end > start && isWhitespace(buf[end - 1] & 0xff)) {
+        end--;
+      }
+    }
+    addCell(start, end, false);
+    return c;
+  }
+
+  /** Reads a quoted cell, and returns the byte that ended it: a comma, CR, LF or EOF. */
+  private int readQuotedCell() throws IOException {
+    long startLine = lineNumber;
+    pos++; // the opening quote
+    int start = pos;
+    boolean hasEscapes = false;
+    while (true) {
+      if (pos == limit) {
+        int offset = pos - start;
+        if (!fill()) {
+          throw new IOException(
+              "(startline " + startLine + ") EOF reached before encapsulated token finished");
+        }
+        start = pos - offset;
+      }
+      int c = buf[pos] & 0xff;
+      if (c == QUOTE) {
+        if (pos + 1 == limit) {
+          int offset = pos - start;
+          fill();
+          start = pos - offset;
+        }
+        if (pos + 1 < limit && buf[pos + 1] == QUOTE) {
+          hasEscapes = true;
+          pos += 2;
+          continue;
+        }
+        break;
+      }
+      if (c == LF || (c == CR && !(pos + 1 < limit && buf[pos + 1] == LF))) {
+        lineNumber++;
+      }
+      pos++;
+    }
+    int end = pos;
+    pos++; // the closing quote
+    addCell(start, end, hasEscapes);
+
+    // only whitespace may come between the closing quote and the delimiter
+    while (true) {
+      int c = read();
+      if (c == COMMA || c == CR || c == LF || c == EOF) {
+        return c;
+      }
+      if (!isWhitespace(c)) {
+        throw new IOException(
+            "(line " + lineNumber + ") invalid char between encapsulated token and delimiter");
+      }
+    }
+  }
+
+  /**
+   * Closes the input, and gives the buffers to the current thread, unless it already holds a
+   * set. The reader must not be used afterwards.
+   */
+  public void close() throws IOException {
+    try {
+      in.close();
+    } finally {
+      releaseBuffers();
+    }
+  }
+
+  private void releaseBuffers() {
+    if (buffers == null) {
+      return; // closed already
+    }
+    Arrays.fill(values, null); // do not keep the cells of the last record reachable
+    if (buffers.values != values) {
+      Arrays.fill(buffers.values, null);
+    }
+    cellCount = 0;
+    // a byte buffer grown for a long record is dropped; the set keeps the original one
+    if (pool.get() == null) {
+      if (starts.length <= MAX_POOLED_CELLS) {
+        buffers.starts = starts;
+        buffers.ends = ends;
+        buffers.escaped = escaped;
+        buffers.values = values;
+      }
+      pool.set(buffers);
+    }
+    buffers = null;
+  }
+}
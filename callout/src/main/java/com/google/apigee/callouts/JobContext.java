@@ -0,0 +1,116 @@
+// JobContext.java
+//
+// The MessageContext in which a background shred job runs, after the
+// request that submitted it has moved on. It holds the job's variables
+// in a plain map, and presents the body that the request buffered, with
+// the headers that say how to decode it, as the message. Like the
+// stand-ins in the benchmarks, these are dynamic proxies, as the
+// callout uses only a few methods of each interface.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+final class JobContext {
+  private JobContext() {}
+
+  /**
+   * @param variables where the job sets its variables
+   * @param content the buffered body
+   * @param headers the headers of the message, by lowercase name
+   */
+  static MessageContext create(
+      final Map<String, Object> variables,
+      final byte[] content,
+      final Map<String, String> headers) {
+    final Message message =
+        (Message)
+            Proxy.newProxyInstance(
+                Message.class.getClassLoader(),
+                new Class<?>[] {Message.class},
+                new InvocationHandler() {
+                  public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                      case "getContentAsStream":
+                        return new ByteArrayInputStream(content);
+                      case "getContent":
+                        return new String(content, StandardCharsets.UTF_8);
+                      case "getHeader":
+                        return headers.get(((String) args[0]).toLowerCase());
+                      default:
+                        return common(proxy, method, args, "Message(job)");
+                    }
+                  }
+                });
+    return (MessageContext)
+        Proxy.newProxyInstance(
+            MessageContext.class.getClassLoader(),
+            new Class<?>[] {MessageContext.class},
+            new InvocationHandler() {
+              public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                  case "getVariable":
+                    return variables.get((String) args[0]);
+                  case "setVariable":
+                    variables.put((String) args[0], args[1]);
+                    return true;
+                  case "removeVariable":
+                    return variables.remove((String) args[0]) != null;
+                  case "getMessage":
+                  case "getRequestMessage":
+                  case "getResponseMessage":
+                    return message;
+                  default:
+                    return common(proxy, method, args, "MessageContext(job)");
+                }
+              }
+            });
+  }
+
+  // the Object methods, and a neutral value for anything else, which the callout does not use
+  private static Object common(Object proxy, Method method, Object[] args, String name) {
+    switch (method.getName()) {
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      case "toString":
+        return name;
+      default:
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+          return false;
+        }
+        if (type == int.class) {
+          return 0;
+        }
+        if (type == long.class) {
+          return 0L;
+        }
+        return null;
+    }
+  }
+}
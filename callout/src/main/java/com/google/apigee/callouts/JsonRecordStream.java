@@ -0,0 +1,81 @@
+// JsonRecordStream.java
+//
+// An InputStream that produces JSON from CSV records on demand, as it
+// is read. Set as the content of a message, it lets the runtime pull
+// the JSON row by row, so that the converted document is never held in
+// memory as a whole; only a small buffer, refilled a few rows at a
+// time, is. Given a CBOR or Smile factory, it produces the same
+// document in that binary form.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import java.io.IOException;
+
+class JsonRecordStream extends RecordStream {
+
+  static enum Mode {
+    JSON_ARRAY,
+    NDJSON
+  }
+
+  private final Mode mode;
+  private final JsonGenerator gen;
+  private long rows = 0;
+
+  JsonRecordStream(JsonFactory factory, RowReader records, Mode mode) throws IOException {
+    super(records);
+    this.mode = mode;
+    this.gen = factory.createGenerator(buffer);
+    if (mode == Mode.NDJSON) {
+      gen.setRootValueSeparator(new SerializedString("\n"));
+    } else {
+      gen.writeStartArray();
+    }
+  }
+
+  protected boolean fill() throws IOException {
+    buffer.clear();
+    boolean more = true;
+    while (buffer.size() < CHUNK_SIZE && (more = records.next())) {
+      gen.writeStartObject();
+      int n = records.size();
+      for (int j = 0; j < header.length; j++) {
+        String value = (columns[j] < n) ? records.get(columns[j]) : null;
+        if (value != null) {
+          gen.writeStringField(header[j], value);
+        }
+      }
+      gen.writeEndObject();
+      gen.flush();
+      rows++;
+    }
+    if (!more) {
+      if (mode == Mode.JSON_ARRAY) {
+        gen.writeEndArray();
+      } else if (rows > 0) {
+        gen.writeRaw('\n');
+      }
+      gen.close();
+    }
+    return more;
+  }
+}
@@ -0,0 +1,58 @@
+// LazyJson.java
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * A context variable value that serializes the wrapped object to JSON only when it is first
+ * read. Apigee converts non-string variable values with toString() when they are referenced in a
+ * message template, so a flow that never reads the variable never pays for the serialization.
+ */
+class LazyJson {
+  private final ObjectWriter writer;
+  private Object value;
+  private volatile String json;
+
+  LazyJson(ObjectWriter writer, Object value) {
+    this.writer = writer;
+    this.value = value;
+  }
+
+  @Override
+  public String toString() {
+    String result = json;
+    if (result == null) {
+      synchronized (this) {
+        result = json;
+        if (result == null) {
+          try {
+            result = writer.writeValueAsString(value);
+          } catch (JsonProcessingException e) {
+            throw new IllegalStateException("cannot serialize to JSON", e);
+          }
+          json = result;
+          value = null; // no longer needed
+        }
+      }
+    }
+    return result;
+  }
+}
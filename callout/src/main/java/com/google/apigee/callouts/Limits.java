@@ -0,0 +1,149 @@
+// Limits.java
+//
+// Bounds on the size of the CSV that CsvShredder will accept: bytes,
+// records, and cells. Each is checked as the content is read, so an
+// oversized upload is rejected as soon as it crosses the limit, before
+// the callout has built much of anything from it, and when the request
+// declares its length, before reading at all.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+final class Limits {
+  private final long maxBytes;
+  private final long maxRows;
+  private final long maxCells;
+
+  /** Each limit is zero, for no limit, or positive. */
+  Limits(long maxBytes, long maxRows, long maxCells) {
+    this.maxBytes = maxBytes;
+    this.maxRows = maxRows;
+    this.maxCells = maxCells;
+  }
+
+  /** Thrown when the content crosses a limit; names the property that set the limit. */
+  static final class ExceededException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+    private final String limit;
+
+    ExceededException(String limit, long value) {
+      super(String.format("the content exceeds %s (%d).", limit, value));
+      this.limit = limit;
+    }
+
+    String getLimit() {
+      return limit;
+    }
+  }
+
+  /** Rejects the content at once if its declared length is over the limit. */
+  void checkContentLength(String contentLength) {
+    if (maxBytes <= 0 || contentLength == null) {
+      return;
+    }
+    try {
+      if (Long.parseLong(contentLength.trim()) > maxBytes) {
+        throw new ExceededException("max-bytes", maxBytes);
+      }
+    } catch (NumberFormatException exc1) {
+      // the stream is counted anyway
+    }
+  }
+
+  InputStream limitBytes(InputStream in) {
+    if (maxBytes <= 0) {
+      return in;
+    }
+    return new FilterInputStream(in) {
+      private long count = 0;
+
+      private void add(long n) {
+        count += n;
+        if (count > maxBytes) {
+          throw new ExceededException("max-bytes", maxBytes);
+        }
+      }
+
+      public int read() throws IOException {
+        int c = super.read();
+        if (c >= 0) {
+          add(1);
+        }
+        return c;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          add(n);
+        }
+        return n;
+      }
+    };
+  }
+
+  RowReader limitRows(final RowReader records) {
+    if (maxRows <= 0 && maxCells <= 0) {
+      return records;
+    }
+    return new RowReader() {
+      private long rows = 0;
+      private long cells = 0;
+
+      {
+        setHeaderNames(records.getHeaderNames());
+      }
+
+      boolean next() throws IOException {
+        if (!records.next()) {
+          return false;
+        }
+        rows++;
+        cells += records.size();
+        if (maxRows > 0 && rows > maxRows) {
+          throw new ExceededException("max-rows", maxRows);
+        }
+        if (maxCells > 0 && cells > maxCells) {
+          throw new ExceededException("max-cells", maxCells);
+        }
+        return true;
+      }
+
+      int size() {
+        return records.size();
+      }
+
+      String get(int i) {
+        return records.get(i);
+      }
+
+      Map<String, String> toMap() {
+        return records.toMap();
+      }
+
+      public void close() throws IOException {
+        records.close();
+      }
+    };
+  }
+}
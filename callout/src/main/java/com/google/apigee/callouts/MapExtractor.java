@@ -7,9 +7,23 @@ package com.google.apigee.callouts;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class MapExtractor extends CalloutBase implements Execution {
+  private static final String EMPTY_JSON = "{}";
+  private static final int DEFAULT_MAX_RESULTS = 1000;
+
+  private final ObjectWriter writer = om.writer().withDefaultPrettyPrinter();
 
   public MapExtractor(Map properties) {
     super(properties);
@@ -41,24 +55,276 @@ public class MapExtractor extends CalloutBase implements Execution {
     return mapVariable;
   }
 
-  public ExecutionResult execute0(final MessageContext msgCtxt) throws Exception {
-    String fieldname = msgCtxt.getVariable(getFieldnameVariable(msgCtxt));
-    fieldname = java.net.URLDecoder.decode(fieldname, "UTF-8");
+  private String getCacheName(MessageContext msgCtxt) throws Exception {
+    return _getStringProperty(msgCtxt, "cache-name", null);
+  }
+
+  /**
+   * Returns the entry for cache-name, or null. A request looks up the entry just once, and uses
+   * both its table and its indexes, so even if a new version is published meanwhile, the request
+   * sees one consistent version.
+   */
+  private TableCache.Entry getCacheEntry(MessageContext msgCtxt) throws Exception {
+    String cacheName = getCacheName(msgCtxt);
+    if (cacheName == null) {
+      return null;
+    }
+    String tenant = _getStringProperty(msgCtxt, "tenant", null);
+    String version = _getStringProperty(msgCtxt, "cache-version", null);
+    TableCache.Entry entry;
+    if (version != null) {
+      try {
+        entry = TableCache.getInstance().get(tenant, cacheName, Long.parseLong(version.trim()));
+      } catch (NumberFormatException exc1) {
+        throw new IllegalStateException("cache-version is not a number: " + version);
+      }
+    } else {
+      entry = TableCache.getInstance().get(tenant, cacheName);
+    }
+    msgCtxt.setVariable(varName("cache_hit"), Boolean.toString(entry != null));
+    if (entry != null) {
+      msgCtxt.setVariable(varName("cache_version"), Long.toString(entry.version));
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the map to query. The values in the map are either rows, as Map<String,String>, or
+   * the pre-serialized JSON for rows, as a RowJson, when CsvShredder was told to precompute it. The
+   * map variable may also hold a TableSnapshot, encoded as byte[].
+   */
+  private Map<String, ?> getMap(MessageContext msgCtxt, TableCache.Entry entry)
+      throws Exception {
+    long t = metrics().now();
+    try {
+      return getMap0(msgCtxt, entry);
+    } finally {
+      metrics().addTime("load", t);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, ?> getMap0(MessageContext msgCtxt, TableCache.Entry entry)
+      throws Exception {
+    if (entry != null) {
+      return (entry.rowJson != null) ? entry.rowJson : (Map<String, ?>) entry.table;
+    }
+    String cacheName = getCacheName(msgCtxt);
+    if (cacheName != null) {
+      if (this.properties.get("mapVariable") == null) {
+        throw new IllegalStateException("no table cached with name " + cacheName);
+      }
+    }
+    Object map = msgCtxt.getVariable(getMapVariable(msgCtxt));
+    if (map instanceof byte[]) {
+      // a snapshot from CsvShredder; opening it decodes nothing but the header
+      return TableSnapshot.open((byte[]) map);
+    }
+    return (Map<String, ?>) map;
+  }
 
-    @SuppressWarnings("unchecked")
-    Map<String, Object> map = (Map<String, Object>) msgCtxt.getVariable(getMapVariable(msgCtxt));
+  /** Returns the JSON of a row from the map; precomputed JSON is returned as it is. */
+  private String toJson(Map<String, ?> map, Object row) throws Exception {
+    if (row == null) {
+      return EMPTY_JSON;
+    }
+    if (map instanceof RowJson) {
+      return (String) row;
+    }
+    return writer.writeValueAsString(row);
+  }
 
-    if (map.containsKey(fieldname)) {
-      @SuppressWarnings("unchecked")
-      Map<String, String> map1 = (Map<String, String>) map.get(fieldname);
+  private String getKeysVariable(MessageContext msgCtxt) throws IllegalStateException {
+    String keysVariable = (String) this.properties.get("keysVariable");
+    if (keysVariable == null || keysVariable.equals("")) {
+      return null;
+    }
+    if (keysVariable.indexOf(" ") != -1) {
+      throw new IllegalStateException("keysVariable includes a space.");
+    }
+    return keysVariable;
+  }
 
-      String jsonResult = om.writer().withDefaultPrettyPrinter().writeValueAsString(map1);
+  private boolean getKeysFromBody(MessageContext msgCtxt) throws Exception {
+    return _getBooleanProperty(msgCtxt, "keys-from-body", false);
+  }
 
-      // set another variable to hold the json representation
-      msgCtxt.setVariable(varName("result_json"), jsonResult);
+  /**
+   * Returns the keys for a batch lookup, in order and without duplicates, or null. Keys from a
+   * JSON body are used as given. Keys from a variable are URL-decoded, as for a single lookup; the
+   * list is split at commas before that, so a key may itself hold an encoded comma.
+   */
+  private Collection<String> getBatchKeys(MessageContext msgCtxt) throws Exception {
+    Set<String> keys = new LinkedHashSet<String>();
+    if (getKeysFromBody(msgCtxt)) {
+      JsonNode node = om.readTree(msgCtxt.getMessage().getContentAsStream());
+      if (node == null || !node.isArray()) {
+        throw new IllegalStateException("the message body is not a JSON array.");
+      }
+      for (JsonNode element : node) {
+        keys.add(element.asText());
+      }
+      return keys;
+    }
+    String keysVariable = getKeysVariable(msgCtxt);
+    if (keysVariable == null) {
+      return null;
+    }
+    String value = msgCtxt.getVariable(keysVariable);
+    if (value == null) {
+      throw new IllegalStateException("the variable " + keysVariable + " is not set.");
+    }
+    for (String key : value.split(",")) {
+      key = key.trim();
+      if (!key.equals("")) {
+        keys.add(java.net.URLDecoder.decode(key, "UTF-8"));
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Looks up all the keys, and streams the matches into a single JSON object, of the form {
+   * "found": { key: row, ... }, "missing": [ key, ... ] }.
+   */
+  private void executeBatch(
+      MessageContext msgCtxt, Collection<String> keys, TableCache.Entry entry) throws Exception {
+    Map<String, ?> map = getMap(msgCtxt, entry);
+    StringWriter out = new StringWriter();
+    List<String> missing = new ArrayList<String>();
+    int found = 0;
+    try (JsonGenerator gen = om.getFactory().createGenerator(out)) {
+      gen.useDefaultPrettyPrinter();
+      gen.writeStartObject();
+      gen.writeFieldName("found");
+      gen.writeStartObject();
+      for (String key : keys) {
+        Object row = map.get(key);
+        if (row == null) {
+          missing.add(key);
+          continue;
+        }
+        writeRow(gen, map, key, row);
+        found++;
+      }
+      gen.writeEndObject();
+      gen.writeArrayFieldStart("missing");
+      for (String key : missing) {
+        gen.writeString(key);
+      }
+      gen.writeEndArray();
+      gen.writeEndObject();
+    }
+    msgCtxt.setVariable(varName("result_json"), out.toString());
+    msgCtxt.setVariable(varName("keys_found"), Integer.toString(found));
+    msgCtxt.setVariable(varName("keys_missing"), Integer.toString(missing.size()));
+  }
+
+  private static void writeRow(JsonGenerator gen, Map<String, ?> map, String key, Object row)
+      throws IOException {
+    gen.writeFieldName(key);
+    if (map instanceof RowJson) {
+      gen.writeRawValue((String) row);
+    } else {
+      gen.writeObject(row);
+    }
+  }
+
+  private TableIndexes getIndexes(MessageContext msgCtxt, TableCache.Entry entry)
+      throws Exception {
+    if (entry != null && entry.indexes != null) {
+      return entry.indexes;
+    }
+    String indexVariable = _getStringProperty(msgCtxt, "indexVariable", null);
+    if (indexVariable == null) {
+      throw new IllegalStateException("no indexes are available for the query.");
+    }
+    TableIndexes indexes = msgCtxt.getVariable(indexVariable);
+    if (indexes == null) {
+      throw new IllegalStateException("the variable " + indexVariable + " is not set.");
+    }
+    return indexes;
+  }
+
+  /**
+   * Queries on a column other than the primary key, using an index built by CsvShredder, and
+   * streams the matching rows into a JSON object of the form { "matches": { key: row, ... },
+   * "truncated": false }.
+   */
+  private void executeQuery(MessageContext msgCtxt, String column, TableCache.Entry entry)
+      throws Exception {
+    TableIndexes indexes = getIndexes(msgCtxt, entry);
+    int maxResults = _getIntProperty(msgCtxt, "max-results", DEFAULT_MAX_RESULTS);
+    String value = _getStringProperty(msgCtxt, "where-value", null);
+    String prefix = _getStringProperty(msgCtxt, "where-prefix", null);
+    String from = _getStringProperty(msgCtxt, "where-from", null);
+    String to = _getStringProperty(msgCtxt, "where-to", null);
+
+    // ask for one more than the maximum, to know whether the result is truncated
+    List<String> keys;
+    if (value != null) {
+      keys = indexes.equalTo(column, value, maxResults + 1);
+    } else if (prefix != null) {
+      keys = indexes.prefix(column, prefix, maxResults + 1);
+    } else if (from != null || to != null) {
+      keys = indexes.range(column, from, to, maxResults + 1);
     } else {
-      msgCtxt.setVariable(varName("result_json"), "{}");
+      throw new IllegalStateException("specify one of where-value, where-prefix, where-from/to.");
     }
+    boolean truncated = keys.size() > maxResults;
+    if (truncated) {
+      keys = keys.subList(0, maxResults);
+    }
+
+    Map<String, ?> map = getMap(msgCtxt, entry);
+    StringWriter out = new StringWriter();
+    try (JsonGenerator gen = om.getFactory().createGenerator(out)) {
+      gen.useDefaultPrettyPrinter();
+      gen.writeStartObject();
+      gen.writeFieldName("matches");
+      gen.writeStartObject();
+      for (String key : keys) {
+        writeRow(gen, map, key, map.get(key));
+      }
+      gen.writeEndObject();
+      gen.writeBooleanField("truncated", truncated);
+      gen.writeEndObject();
+    }
+    msgCtxt.setVariable(varName("result_json"), out.toString());
+    msgCtxt.setVariable(varName("rows_matched"), Integer.toString(keys.size()));
+  }
+
+  public ExecutionResult execute0(final MessageContext msgCtxt) throws Exception {
+    TableCache.Entry entry = getCacheEntry(msgCtxt);
+    String whereColumn = _getStringProperty(msgCtxt, "where-column", null);
+    if (whereColumn != null) {
+      long t = metrics().now();
+      executeQuery(msgCtxt, whereColumn, entry);
+      metrics().addTime("query", t);
+      return ExecutionResult.SUCCESS;
+    }
+
+    Collection<String> batchKeys = getBatchKeys(msgCtxt);
+    if (batchKeys != null) {
+      long t = metrics().now();
+      executeBatch(msgCtxt, batchKeys, entry);
+      metrics().addTime("query", t);
+      return ExecutionResult.SUCCESS;
+    }
+
+    String fieldname = msgCtxt.getVariable(getFieldnameVariable(msgCtxt));
+    fieldname = java.net.URLDecoder.decode(fieldname, "UTF-8");
+
+    // a single lookup; the map may be a CsvTable, where each get() builds a row view
+    Map<String, ?> map = getMap(msgCtxt, entry);
+    long t = metrics().now();
+    Object row = map.get(fieldname);
+    metrics().addTime("lookup", t);
+
+    // set another variable to hold the json representation
+    t = metrics().now();
+    msgCtxt.setVariable(varName("result_json"), toJson(map, row));
+    metrics().addTime("json", t);
 
     return ExecutionResult.SUCCESS;
   }
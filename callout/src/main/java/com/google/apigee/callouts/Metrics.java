@@ -0,0 +1,193 @@
+// Metrics.java
+//
+// Measurements of a single callout invocation: the time spent in each
+// stage, bytes read, rows and cells parsed, and the bytes allocated by
+// the request thread. Collected only when the callout is configured
+// with metrics=true; otherwise the callouts use DISABLED, which records
+// nothing and costs next to nothing.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class Metrics {
+  static final Metrics DISABLED = new Metrics(false);
+
+  private static final com.sun.management.ThreadMXBean threads = allocationCounter();
+
+  private final boolean enabled;
+  private final long start;
+  private final long startAllocated;
+  private final Map<String, Long> values = new LinkedHashMap<String, Long>();
+
+  private Metrics(boolean enabled) {
+    this.enabled = enabled;
+    this.start = enabled ? System.nanoTime() : 0;
+    this.startAllocated = enabled ? allocatedBytes() : -1;
+  }
+
+  static Metrics start() {
+    return new Metrics(true);
+  }
+
+  /** Returns the bean that reports per-thread allocation, or null where the JVM lacks it. */
+  private static com.sun.management.ThreadMXBean allocationCounter() {
+    try {
+      java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+        if (b.isThreadAllocatedMemorySupported() && b.isThreadAllocatedMemoryEnabled()) {
+          return b;
+        }
+      }
+    } catch (Throwable exc1) {
+      // not available on this JVM, or not permitted
+    }
+    return null;
+  }
+
+  private static long allocatedBytes() {
+    return (threads != null) ? threads.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Returns a timestamp to pass to addTime, or 0 when disabled. */
+  long now() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /** Adds the time since the given timestamp to the named stage. */
+  void addTime(String stage, long since) {
+    if (enabled) {
+      add(stage + "_ns", System.nanoTime() - since);
+    }
+  }
+
+  void add(String name, long amount) {
+    if (enabled) {
+      Long value = values.get(name);
+      values.put(name, (value == null) ? amount : value + amount);
+    }
+  }
+
+  long get(String name) {
+    Long value = values.get(name);
+    return (value == null) ? 0 : value;
+  }
+
+  /** Wraps the stream, to count the bytes read from it. */
+  InputStream countBytes(InputStream in) {
+    if (!enabled) {
+      return in;
+    }
+    values.put("bytes_read", 0L);
+    return new FilterInputStream(in) {
+      public int read() throws IOException {
+        int c = super.read();
+        if (c >= 0) {
+          add("bytes_read", 1);
+        }
+        return c;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          add("bytes_read", n);
+        }
+        return n;
+      }
+    };
+  }
+
+  /** Wraps the reader, to count rows and cells and to time the parsing of each record. */
+  RowReader countRows(final RowReader records) {
+    if (!enabled) {
+      return records;
+    }
+    values.put("rows", 0L);
+    values.put("cells", 0L);
+    return new RowReader() {
+      {
+        setHeaderNames(records.getHeaderNames());
+      }
+
+      boolean next() throws IOException {
+        long t = System.nanoTime();
+        boolean more = records.next();
+        addTime("parse", t);
+        if (more) {
+          add("rows", 1);
+          add("cells", records.size());
+        }
+        return more;
+      }
+
+      int size() {
+        return records.size();
+      }
+
+      String get(int i) {
+        return records.get(i);
+      }
+
+      Map<String, String> toMap() {
+        return records.toMap();
+      }
+
+      public void close() throws IOException {
+        records.close();
+      }
+    };
+  }
+
+  /**
+   * Sets a variable for each measurement, then records the total time into the histogram and sets
+   * variables for its percentiles.
+   */
+  void publish(MessageContext msgCtxt, String prefix, RollingHistogram histogram) {
+    if (!enabled) {
+      return;
+    }
+    long total = System.nanoTime() - start;
+    for (Map.Entry<String, Long> entry : values.entrySet()) {
+      msgCtxt.setVariable(prefix + entry.getKey(), Long.toString(entry.getValue()));
+    }
+    msgCtxt.setVariable(prefix + "total_ns", Long.toString(total));
+    if (startAllocated >= 0) {
+      msgCtxt.setVariable(
+          prefix + "allocated_bytes", Long.toString(allocatedBytes() - startAllocated));
+    }
+    histogram.record(total);
+    RollingHistogram.Snapshot snapshot = histogram.snapshot();
+    msgCtxt.setVariable(prefix + "window_count", Long.toString(snapshot.count()));
+    msgCtxt.setVariable(prefix + "p50_ns", Long.toString(snapshot.percentile(0.50)));
+    msgCtxt.setVariable(prefix + "p90_ns", Long.toString(snapshot.percentile(0.90)));
+    msgCtxt.setVariable(prefix + "p99_ns", Long.toString(snapshot.percentile(0.99)));
+  }
+}
@@ -0,0 +1,261 @@
+// ParallelRowReader.java
+//
+// A RowReader that parses a buffered CSV body in several chunks at
+// once, on a shared, bounded pool of threads, and then returns the
+// records in their original order. The body is split only at record
+// boundaries; the split tracks quoting, so a line break within a quoted
+// field never starts a chunk. Because the records come back in order,
+// everything downstream of the reader, including the numbering for
+// contrive-primary-key, is the same as for a sequential parse.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+class ParallelRowReader extends RowReader {
+  private static final int MIN_CHUNK_BYTES = 16 * 1024;
+
+  private static final ForkJoinPool POOL =
+      new ForkJoinPool(
+          Integer.getInteger("csv.parallel.threads", Runtime.getRuntime().availableProcessors()));
+
+  /** Opens a sequential reader over one chunk, with the given header. */
+  static interface Factory {
+    RowReader open(InputStream in, List<String> header) throws Exception;
+  }
+
+  /** The records of one chunk, and optionally their maps, built on a pool thread. */
+  private static final class Chunk {
+    final List<String[]> rows = new ArrayList<String[]>();
+    final List<Map<String, String>> maps;
+
+    Chunk(boolean withMaps) {
+      maps = withMaps ? new ArrayList<Map<String, String>>() : null;
+    }
+  }
+
+  private final List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+  // set when the reader is closed, perhaps early, so that chunks still being parsed stop; a
+  // ForkJoinPool does not interrupt a task it cancels
+  private volatile boolean closed = false;
+  private int chunkIndex = -1;
+  private Chunk chunk;
+  private int row = -1;
+
+  /**
+   * @param header the header to use, or null to read it from the first record.
+   * @param withMaps whether to build the map for each record on the pool too, for callers that
+   *     will call toMap() on every record.
+   */
+  ParallelRowReader(
+      byte[] content,
+      List<String> header,
+      boolean trimSpaces,
+      boolean withMaps,
+      final Factory factory)
+      throws Exception {
+    int start = 0;
+    if (header == null) {
+      while (start < content.length && (content[start] == '\r' || content[start] == '\n')) {
+        start++;
+      }
+      int end = nextRecordBoundary(content, start, content.length, start + 1, trimSpaces);
+      RowReader headerReader = factory.open(new ByteArrayInputStream(content, 0, end), null);
+      header = headerReader.getHeaderNames();
+      headerReader.close();
+      start = end;
+    }
+    setHeaderNames(header);
+
+    final List<String> names = getHeaderNames();
+    final boolean buildMaps = withMaps;
+    int chunks = chunkCount(content.length - start);
+    int[] bounds = split(content, start, content.length, chunks, trimSpaces);
+    for (int i = 0; i + 1 < bounds.length; i++) {
+      final InputStream in =
+          new ByteArrayInputStream(content, bounds[i], bounds[i + 1] - bounds[i]);
+      futures.add(
+          POOL.submit(
+              new Callable<Chunk>() {
+                public Chunk call() throws Exception {
+                  Chunk chunk = new Chunk(buildMaps);
+                  RowReader reader = factory.open(in, names);
+                  try {
+                    while (!closed && reader.next()) {
+                      String[] cells = new String[reader.size()];
+                      for (int j = 0; j < cells.length; j++) {
+                        cells[j] = reader.get(j);
+                      }
+                      chunk.rows.add(cells);
+                      if (buildMaps) {
+                        chunk.maps.add(reader.toMap());
+                      }
+                    }
+                  } finally {
+                    reader.close();
+                  }
+                  return chunk;
+                }
+              }));
+    }
+  }
+
+  /** A few chunks per thread, so that uneven chunks still keep every thread busy. */
+  static int chunkCount(int length) {
+    int byThreads = POOL.getParallelism() * 4;
+    int bySize = Math.max(1, length / MIN_CHUNK_BYTES);
+    return Math.min(byThreads, bySize);
+  }
+
+  /** The same set of characters as Character.isWhitespace, restricted to single bytes. */
+  private static boolean isWhitespace(int b) {
+    return b == ' ' || b == '\t' || b == 0x0B || b == 0x0C || (b >= 0x1C && b <= 0x1F);
+  }
+
+  /**
+   * Returns the position just past the end of the first record that ends at or after the target,
+   * scanning from the start of a record. A quote is special only at the start of a field (after
+   * leading whitespace, if trimming), as with the parsers.
+   */
+  static int nextRecordBoundary(byte[] b, int from, int end, int target, boolean trimSpaces) {
+    boolean fieldStart = true;
+    boolean quoted = false;
+    for (int i = from; i < end; i++) {
+      byte c = b[i];
+      if (quoted) {
+        if (c == '"') {
+          if (i + 1 < end && b[i + 1] == '"') {
+            i++;
+          } else {
+            quoted = false;
+          }
+        }
+      } else if (c == ',') {
+        fieldStart = true;
+      } else if (c == '\n' || c == '\r') {
+        int boundary = (c == '\r' && i + 1 < end && b[i + 1] == '\n') ? i + 2 : i + 1;
+        if (boundary >= target) {
+          return boundary;
+        }
+        i = boundary - 1;
+        fieldStart = true;
+      } else if (c == '"' && fieldStart) {
+        quoted = true;
+        fieldStart = false;
+      } else if (!(fieldStart && trimSpaces && isWhitespace(c))) {
+        fieldStart = false;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Splits the content into about the given number of chunks, at record boundaries. Returns the
+   * boundaries, starting with start and ending with end. The scan is sequential, but it is far
+   * cheaper than parsing.
+   */
+  static int[] split(byte[] b, int start, int end, int chunks, boolean trimSpaces) {
+    List<Integer> bounds = new ArrayList<Integer>(chunks + 1);
+    bounds.add(start);
+    int position = start;
+    long length = end - start;
+    for (int k = 1; k < chunks && position < end; k++) {
+      int target = start + (int) (length * k / chunks);
+      if (target > position) {
+        position = nextRecordBoundary(b, position, end, target, trimSpaces);
+        if (position < end) {
+          bounds.add(position);
+        }
+      }
+    }
+    bounds.add(end);
+    int[] result = new int[bounds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = bounds.get(i);
+    }
+    return result;
+  }
+
+  private Chunk await(Future<Chunk> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException exc1) {
+      Thread.currentThread().interrupt();
+      throw new IOException(exc1);
+    } catch (ExecutionException exc1) {
+      Throwable cause = exc1.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  boolean next() throws IOException {
+    row++;
+    while (chunk == null || row >= chunk.rows.size()) {
+      if (chunkIndex >= futures.size()) {
+        return false;
+      }
+      if (chunkIndex >= 0) {
+        futures.set(chunkIndex, null); // let the finished chunk be collected
+      }
+      if (++chunkIndex >= futures.size()) {
+        chunk = null;
+        return false;
+      }
+      chunk = await(futures.get(chunkIndex));
+      row = 0;
+    }
+    return true;
+  }
+
+  int size() {
+    return chunk.rows.get(row).length;
+  }
+
+  String get(int i) {
+    return chunk.rows.get(row)[i];
+  }
+
+  Map<String, String> toMap() {
+    return (chunk.maps != null) ? chunk.maps.get(row) : super.toMap();
+  }
+
+  public void close() {
+    closed = true;
+    for (Future<Chunk> future : futures) {
+      if (future != null) {
+        future.cancel(true);
+      }
+    }
+  }
+}
@@ -0,0 +1,126 @@
+// QuantileSketch.java
+//
+// Approximate quantiles of a stream of numbers, in bounded memory. Each
+// value falls into a logarithmic bucket, as in DDSketch, so a quantile
+// is within 1% of the true value, relative to that value. The buckets
+// for each sign are held in a primitive array of at most 2048 counts;
+// if the values span a wider range than that, the buckets nearest zero
+// are merged, losing accuracy only for the smallest magnitudes.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+final class QuantileSketch {
+  private static final double RELATIVE_ACCURACY = 0.01;
+  private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+  private static final double LOG_GAMMA = Math.log(GAMMA);
+  private static final int MAX_BUCKETS = 2048;
+
+  private final Store positive = new Store();
+  private final Store negative = new Store();
+  private long zeros = 0;
+  private long count = 0;
+
+  void add(double value) {
+    if (value > 0) {
+      positive.add(index(value));
+    } else if (value < 0) {
+      negative.add(index(-value));
+    } else {
+      zeros++;
+    }
+    count++;
+  }
+
+  long count() {
+    return count;
+  }
+
+  private static int index(double magnitude) {
+    return (int) Math.ceil(Math.log(magnitude) / LOG_GAMMA);
+  }
+
+  // the value that represents a bucket, within the relative accuracy of every value in it
+  private static double value(int index) {
+    return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+  }
+
+  /** Returns the value at the given fraction of the way through the sorted values. */
+  double quantile(double fraction) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    long rank = (long) Math.floor(fraction * (count - 1));
+    long seen = 0;
+    // from the most negative, through zero, to the most positive
+    for (int i = negative.counts.length - 1; i >= 0; i--) {
+      seen += negative.counts[i];
+      if (seen > rank) {
+        return -value(negative.offset + i);
+      }
+    }
+    seen += zeros;
+    if (seen > rank) {
+      return 0;
+    }
+    for (int i = 0; i < positive.counts.length; i++) {
+      seen += positive.counts[i];
+      if (seen > rank) {
+        return value(positive.offset + i);
+      }
+    }
+    return value(positive.offset + positive.counts.length - 1);
+  }
+
+  /** Counts per bucket index, for a contiguous range of indexes. */
+  private static final class Store {
+    long[] counts = new long[0];
+    int offset = 0; // the bucket index of counts[0]
+
+    void add(int index) {
+      if (counts.length == 0) {
+        counts = new long[64];
+        offset = index - 32;
+      } else if (index < offset || index >= offset + counts.length) {
+        index = grow(index);
+      }
+      counts[index - offset]++;
+    }
+
+    /** Widens the range to include the index, and returns the index to count it in. */
+    private int grow(int index) {
+      int min = Math.min(offset, index);
+      int max = Math.max(offset + counts.length - 1, index);
+      if (max - min + 1 > MAX_BUCKETS) {
+        min = max - MAX_BUCKETS + 1; // merge the buckets nearest zero into the lowest one kept
+      }
+      int length = Math.min(MAX_BUCKETS, Math.max(counts.length * 2, max - min + 1));
+      if (min + length - 1 < max) {
+        min = max - length + 1;
+      }
+      long[] grown = new long[length];
+      for (int i = 0; i < counts.length; i++) {
+        int target = Math.max(offset + i, min) - min;
+        grown[target] += counts[i];
+      }
+      counts = grown;
+      offset = min;
+      return Math.max(index, min);
+    }
+  }
+}
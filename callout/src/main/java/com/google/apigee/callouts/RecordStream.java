@@ -0,0 +1,125 @@
+// RecordStream.java
+//
+// The base of the InputStreams that encode CSV records on demand, as
+// they are read. A subclass encodes a few records at a time into a
+// small buffer, which the runtime drains before asking for more, so the
+// encoded document is never held in memory as a whole.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+abstract class RecordStream extends InputStream {
+  static final int CHUNK_SIZE = 16 * 1024;
+
+  /** A ByteArrayOutputStream that can be drained without copying. */
+  static final class Buffer extends ByteArrayOutputStream {
+    private int position = 0;
+
+    Buffer(int size) {
+      super(size);
+    }
+
+    int available() {
+      return count - position;
+    }
+
+    int read() {
+      return (position < count) ? (buf[position++] & 0xff) : -1;
+    }
+
+    int read(byte[] b, int off, int len) {
+      int n = Math.min(len, count - position);
+      System.arraycopy(buf, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    void clear() {
+      reset();
+      position = 0;
+    }
+  }
+
+  protected final RowReader records;
+  // the fields of each encoded record, as in RowReader.toMap(): the distinct header names, and
+  // the position in the record of each, so the last of any duplicated names wins
+  protected final String[] header;
+  protected final int[] columns;
+  protected final Buffer buffer = new Buffer(CHUNK_SIZE + 1024);
+  private boolean finished = false;
+
+  RecordStream(RowReader records) {
+    this.records = records;
+    this.header = records.getUniqueNames();
+    this.columns = records.getUniqueIndexes();
+  }
+
+  /**
+   * Clears the buffer, and encodes records into it until it holds about CHUNK_SIZE bytes. Returns
+   * false once it has encoded the last of them, and the end of the document.
+   */
+  protected abstract boolean fill() throws IOException;
+
+  private void refill() throws IOException {
+    if (!fill()) {
+      records.close();
+      finished = true;
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (buffer.available() == 0) {
+      if (finished) {
+        return -1;
+      }
+      refill();
+    }
+    return buffer.read();
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (buffer.available() == 0) {
+      if (finished) {
+        return -1;
+      }
+      refill();
+    }
+    return buffer.read(b, off, len);
+  }
+
+  @Override
+  public int available() {
+    return buffer.available();
+  }
+
+  @Override
+  public void close() throws IOException {
+    finished = true;
+    buffer.clear();
+    records.close();
+  }
+}
@@ -0,0 +1,130 @@
+// RollingHistogram.java
+//
+// A latency histogram over a recent window of time, cheap enough to
+// update on every request. Values fall into logarithmic buckets, four
+// per power of two, so a percentile is accurate to within about 12%.
+// Two windows are kept, the current one and the one before it; a
+// percentile covers both, so it always reflects between one and two
+// windows' worth of requests.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+final class RollingHistogram {
+  private static final int SUB_BUCKETS = 4;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+  private final long windowMillis;
+  private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+  private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+  private volatile long windowStart;
+
+  RollingHistogram(long windowMillis) {
+    this.windowMillis = windowMillis;
+    this.windowStart = System.currentTimeMillis();
+  }
+
+  /** Values below 4 have a bucket each; above that, each power of two has four buckets. */
+  static int bucketFor(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) Math.max(0, value);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+    return (exponent - 1) * SUB_BUCKETS + sub;
+  }
+
+  /** Returns the largest value that falls into the bucket. */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + 1;
+    int sub = bucket % SUB_BUCKETS;
+    long lower = (long) (SUB_BUCKETS + sub) << (exponent - 2);
+    return lower + (1L << (exponent - 2)) - 1;
+  }
+
+  private void rotate(long now) {
+    if (now - windowStart < windowMillis) {
+      return;
+    }
+    synchronized (this) {
+      long elapsed = now - windowStart;
+      if (elapsed < windowMillis) {
+        return;
+      }
+      previous = (elapsed < 2 * windowMillis) ? current : new AtomicLongArray(BUCKETS);
+      current = new AtomicLongArray(BUCKETS);
+      windowStart = now;
+    }
+  }
+
+  void record(long value) {
+    rotate(System.currentTimeMillis());
+    current.incrementAndGet(bucketFor(value));
+  }
+
+  /** A point-in-time copy of the counts, from which to read percentiles. */
+  Snapshot snapshot() {
+    rotate(System.currentTimeMillis());
+    AtomicLongArray a = previous;
+    AtomicLongArray b = current;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = a.get(i) + b.get(i);
+    }
+    return new Snapshot(counts);
+  }
+
+  static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+
+    Snapshot(long[] counts) {
+      this.counts = counts;
+      long n = 0;
+      for (long c : counts) {
+        n += c;
+      }
+      this.count = n;
+    }
+
+    long count() {
+      return count;
+    }
+
+    /** Returns the value at or below which the given fraction of the values fall. */
+    long percentile(double fraction) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(fraction * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return upperBound(i);
+        }
+      }
+      return upperBound(counts.length - 1);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+// RowJson.java
+//
+// The rows of a shredded table, each serialized to JSON once, when the
+// table is built, by primary key. MapExtractor returns a row from here
+// as it is, so a lookup is a map get with nothing to serialize or
+// decode. The JSON is held as a String, the form that setVariable
+// takes. The map is read-only, as it may be shared by many requests.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+final class RowJson extends AbstractMap<String, String> {
+  private final Map<String, String> rows;
+
+  /** @param rows the JSON of each row, by key; the caller must not change it afterwards. */
+  RowJson(Map<String, String> rows) {
+    this.rows = rows;
+  }
+
+  /** Returns a copy of the rows, to change, as for a delta. */
+  Map<String, String> copyRows() {
+    return new HashMap<String, String>(rows);
+  }
+
+  public String get(Object key) {
+    return rows.get(key);
+  }
+
+  public boolean containsKey(Object key) {
+    return rows.containsKey(key);
+  }
+
+  public int size() {
+    return rows.size();
+  }
+
+  public Set<Map.Entry<String, String>> entrySet() {
+    return Collections.unmodifiableMap(rows).entrySet();
+  }
+}
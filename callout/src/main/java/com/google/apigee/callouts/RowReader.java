@@ -0,0 +1,130 @@
+// RowReader.java
+//
+// The parse engine behind CsvShredder. It reads one CSV record at a
+// time, and exposes the cells of the current record by position. There
+// are two implementations: one that wraps the commons-csv CSVParser,
+// and FastCsvReader, which tokenizes UTF-8 bytes directly.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+abstract class RowReader implements Closeable {
+  private List<String> headerNames = Collections.<String>emptyList();
+  // the distinct header names, in order of first appearance, and the last position of each
+  private String[] uniqueNames = new String[0];
+  private int[] uniqueIndexes = new int[0];
+
+  protected void setHeaderNames(List<String> names) {
+    headerNames = Collections.unmodifiableList(new ArrayList<String>(names));
+    Map<String, Integer> m = new LinkedHashMap<String, Integer>();
+    for (int i = 0; i < names.size(); i++) {
+      m.put(names.get(i), i);
+    }
+    uniqueNames = m.keySet().toArray(new String[m.size()]);
+    uniqueIndexes = new int[m.size()];
+    int j = 0;
+    for (Integer index : m.values()) {
+      uniqueIndexes[j++] = index;
+    }
+  }
+
+  List<String> getHeaderNames() {
+    return headerNames;
+  }
+
+  /** Returns the distinct header names, in the order that toMap() puts them. */
+  String[] getUniqueNames() {
+    return uniqueNames.clone();
+  }
+
+  /** Returns the position in the record of each of the distinct names: the last, if repeated. */
+  int[] getUniqueIndexes() {
+    return uniqueIndexes.clone();
+  }
+
+  /** Advances to the next record. Returns false at the end of the input. */
+  abstract boolean next() throws IOException;
+
+  /** Returns the number of cells in the current record. */
+  abstract int size();
+
+  /** Returns the value of a cell in the current record, or null if the record lacks it. */
+  abstract String get(int i);
+
+  /**
+   * Returns the current record as a map of header name to value, with the same semantics as
+   * CSVRecord.toMap(): the last of any duplicated names wins, and cells missing from a short
+   * record are absent.
+   */
+  Map<String, String> toMap() {
+    int n = size();
+    Map<String, String> map = new LinkedHashMap<String, String>(n * 4 / 3 + 1);
+    for (int j = 0; j < uniqueNames.length; j++) {
+      int i = uniqueIndexes[j];
+      String value = (i < n) ? get(i) : null;
+      if (value != null) {
+        map.put(uniqueNames[j], value);
+      }
+    }
+    return map;
+  }
+
+  static RowReader of(CSVParser parser) {
+    return new CommonsRowReader(parser);
+  }
+
+  private static final class CommonsRowReader extends RowReader {
+    private final CSVParser parser;
+    private final Iterator<CSVRecord> records;
+    private CSVRecord current;
+
+    CommonsRowReader(CSVParser parser) {
+      this.parser = parser;
+      this.records = parser.iterator();
+      setHeaderNames(parser.getHeaderNames());
+    }
+
+    boolean next() {
+      current = records.hasNext() ? records.next() : null;
+      return current != null;
+    }
+
+    int size() {
+      return current.size();
+    }
+
+    String get(int i) {
+      return current.get(i);
+    }
+
+    public void close() throws IOException {
+      parser.close();
+    }
+  }
+}
@@ -0,0 +1,371 @@
+// RowSelection.java
+//
+// A RowReader that passes on only some of the records of another, and
+// only some of their cells, as configured with the select-columns and
+// where properties of CsvShredder. Filtering and projecting happen as
+// each record is read, so the records and cells that are dropped never
+// become map entries, table cells or JSON.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+final class RowSelection extends RowReader {
+  private final RowReader records;
+  private final int[] columns; // the selected cells, as positions in the underlying records
+  private final boolean allColumns;
+  private final Condition[] conditions;
+  private long dropped = 0;
+
+  private RowSelection(
+      RowReader records, List<String> names, int[] columns, boolean allColumns, Condition[] bound) {
+    this.records = records;
+    this.columns = columns;
+    this.allColumns = allColumns;
+    this.conditions = bound;
+    setHeaderNames(names);
+  }
+
+  /**
+   * Wraps the records. Either argument may be null, to keep all the columns or all the records.
+   * Throws IllegalStateException if either names a column that the records lack.
+   */
+  static RowReader of(RowReader records, List<String> selectColumns, Where where) {
+    if (selectColumns == null && where == null) {
+      return records;
+    }
+    List<String> header = records.getHeaderNames();
+    List<String> names = (selectColumns != null) ? selectColumns : header;
+    int[] columns = new int[names.size()];
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = (selectColumns != null) ? indexOf(header, names.get(i), "select-columns") : i;
+    }
+    Condition[] bound = new Condition[(where != null) ? where.conditions.size() : 0];
+    for (int i = 0; i < bound.length; i++) {
+      Condition c = where.conditions.get(i);
+      bound[i] = c.bind(indexOf(header, c.column, "where"));
+    }
+    return new RowSelection(records, names, columns, selectColumns == null, bound);
+  }
+
+  private static int indexOf(List<String> header, String name, String property) {
+    int index = header.lastIndexOf(name); // as with CSVRecord.toMap(), the last duplicate wins
+    if (index < 0) {
+      throw new IllegalStateException(property + ": there is no column named " + name);
+    }
+    return index;
+  }
+
+  /** The number of records that did not match the where predicate. */
+  long getDropped() {
+    return dropped;
+  }
+
+  boolean next() throws IOException {
+    while (records.next()) {
+      if (matches()) {
+        return true;
+      }
+      dropped++;
+    }
+    return false;
+  }
+
+  private boolean matches() {
+    int n = records.size();
+    for (Condition c : conditions) {
+      if (!c.matches((c.index < n) ? records.get(c.index) : null)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The selected cells up to the last one that a short record holds. When the selection is not in
+   * the order of the header, a cell before that may be missing too, and get() returns null for it.
+   */
+  int size() {
+    int n = records.size();
+    int size = columns.length;
+    while (size > 0 && columns[size - 1] >= n) {
+      size--;
+    }
+    return size;
+  }
+
+  String get(int i) {
+    int column = columns[i];
+    return (column < records.size()) ? records.get(column) : null;
+  }
+
+  @Override
+  Map<String, String> toMap() {
+    // the underlying reader may have built the map already
+    return allColumns ? records.toMap() : super.toMap();
+  }
+
+  public void close() throws IOException {
+    records.close();
+  }
+
+  /**
+   * A predicate over records: one or more conditions, joined with "and". Each condition is one
+   * of
+   *
+   * <pre>
+   *   column = value        column != value
+   *   column in (v1, v2)    column not in (v1, v2)
+   *   column &lt; number     column &lt;= number    column &gt; number    column &gt;= number
+   * </pre>
+   *
+   * A value that holds spaces, commas, or parentheses is quoted in single quotes, with '' for a
+   * quote inside it. Equality compares text exactly; the comparisons compare numbers, and a cell
+   * that is not a number never matches one. A cell missing from a short record matches only !=
+   * and not in.
+   */
+  static final class Where {
+    private final List<Condition> conditions;
+
+    private Where(List<Condition> conditions) {
+      this.conditions = conditions;
+    }
+
+    /** Parses the predicate. Throws IllegalStateException if it is not valid. */
+    static Where parse(String spec) {
+      Lexer lexer = new Lexer(spec);
+      List<Condition> conditions = new ArrayList<Condition>();
+      do {
+        conditions.add(parseCondition(lexer));
+      } while (lexer.acceptWord("and"));
+      if (!lexer.atEnd()) {
+        throw lexer.error("expected and");
+      }
+      return new Where(Collections.unmodifiableList(conditions));
+    }
+
+    private static Condition parseCondition(Lexer lexer) {
+      String column = lexer.value("a column name");
+      boolean negate = lexer.acceptWord("not");
+      if (lexer.acceptWord("in")) {
+        lexer.expect('(');
+        Set<String> values = new HashSet<String>();
+        do {
+          values.add(lexer.value("a value"));
+        } while (lexer.accept(','));
+        lexer.expect(')');
+        return new Condition(column, negate ? Op.NOT_IN : Op.IN, null, values, 0);
+      }
+      if (negate) {
+        throw lexer.error("expected in");
+      }
+      Op op = lexer.operator();
+      String value = lexer.value("a value");
+      double number = 0;
+      if (op.isNumeric) {
+        try {
+          number = Double.parseDouble(value);
+        } catch (NumberFormatException exc1) {
+          throw lexer.error("expected a number, found " + value);
+        }
+      }
+      return new Condition(column, op, value, null, number);
+    }
+  }
+
+  private static enum Op {
+    EQ(false),
+    NE(false),
+    IN(false),
+    NOT_IN(false),
+    LT(true),
+    LE(true),
+    GT(true),
+    GE(true);
+
+    final boolean isNumeric;
+
+    Op(boolean isNumeric) {
+      this.isNumeric = isNumeric;
+    }
+  }
+
+  private static final class Condition {
+    final String column;
+    final Op op;
+    final String value;
+    final Set<String> values;
+    final double number;
+    final int index; // the position of the column in the records, once bound
+
+    Condition(String column, Op op, String value, Set<String> values, double number) {
+      this(column, op, value, values, number, -1);
+    }
+
+    private Condition(
+        String column, Op op, String value, Set<String> values, double number, int index) {
+      this.column = column;
+      this.op = op;
+      this.value = value;
+      this.values = values;
+      this.number = number;
+      this.index = index;
+    }
+
+    Condition bind(int index) {
+      return new Condition(column, op, value, values, number, index);
+    }
+
+    boolean matches(String cell) {
+      switch (op) {
+        case EQ:
+          return value.equals(cell);
+        case NE:
+          return !value.equals(cell);
+        case IN:
+          return cell != null && values.contains(cell);
+        case NOT_IN:
+          return cell == null || !values.contains(cell);
+        default:
+          break;
+      }
+      if (cell == null) {
+        return false;
+      }
+      double d;
+      try {
+        d = Double.parseDouble(cell);
+      } catch (NumberFormatException exc1) {
+        return false;
+      }
+      switch (op) {
+        case LT:
+          return d < number;
+        case LE:
+          return d <= number;
+        case GT:
+          return d > number;
+        default:
+          return d >= number;
+      }
+    }
+  }
+
+  private static final class Lexer {
+    private final String s;
+    private int pos = 0;
+
+    Lexer(String s) {
+      this.s = s;
+    }
+
+    private void skipSpaces() {
+      while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    boolean atEnd() {
+      skipSpaces();
+      return pos >= s.length();
+    }
+
+    IllegalStateException error(String message) {
+      return new IllegalStateException("where: " + message + " at position " + pos);
+    }
+
+    boolean accept(char c) {
+      skipSpaces();
+      if (pos < s.length() && s.charAt(pos) == c) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    void expect(char c) {
+      if (!accept(c)) {
+        throw error("expected " + c);
+      }
+    }
+
+    /** Accepts a keyword, in any case, if it is followed by a space or a parenthesis. */
+    boolean acceptWord(String word) {
+      skipSpaces();
+      int end = pos + word.length();
+      if (end <= s.length()
+          && s.regionMatches(true, pos, word, 0, word.length())
+          && (end == s.length() || Character.isWhitespace(s.charAt(end)) || s.charAt(end) == '(')) {
+        pos = end;
+        return true;
+      }
+      return false;
+    }
+
+    Op operator() {
+      skipSpaces();
+      String[] symbols = {"!=", "<=", ">=", "=", "<", ">"};
+      Op[] ops = {Op.NE, Op.LE, Op.GE, Op.EQ, Op.LT, Op.GT};
+      for (int i = 0; i < symbols.length; i++) {
+        if (s.startsWith(symbols[i], pos)) {
+          pos += symbols[i].length();
+          return ops[i];
+        }
+      }
+      throw error("expected one of =, !=, <, <=, >, >=, in, not in");
+    }
+
+    /** Reads a quoted value, or a bare one that ends at a space, operator, comma or parenthesis. */
+    String value(String what) {
+      skipSpaces();
+      if (pos < s.length() && s.charAt(pos) == '\'') {
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while (true) {
+          if (pos >= s.length()) {
+            throw error("unterminated quote");
+          }
+          char c = s.charAt(pos++);
+          if (c == '\'') {
+            if (pos < s.length() && s.charAt(pos) == '\'') {
+              pos++;
+            } else {
+              return sb.toString();
+            }
+          }
+          sb.append(c);
+        }
+      }
+      int start = pos;
+      while (pos < s.length() && "=!<>,() \t\r\n".indexOf(s.charAt(pos)) < 0) {
+        pos++;
+      }
+      if (pos == start) {
+        throw error("expected " + what);
+      }
+      return s.substring(start, pos);
+    }
+  }
+}
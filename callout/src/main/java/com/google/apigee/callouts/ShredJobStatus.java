@@ -0,0 +1,87 @@
+// ShredJobStatus.java
+//
+// A Java callout for Apigee that reports on a job that CsvShredder,
+// with async=true, queued to shred a CSV in the background: whether it
+// is queued, running, done or failed, and how many records it has read
+// so far. Once the job is done, its result is in the JVM-local table
+// cache, under the cache-name it was submitted with, ready for
+// MapExtractor.
+//
+// Copyright 2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.MessageContext;
+import java.util.Map;
+
+public class ShredJobStatus extends CalloutBase implements Execution {
+
+  public ShredJobStatus(Map properties) {
+    super(properties);
+  }
+
+  public String getVarnamePrefix() {
+    return "csv";
+  }
+
+  private String getJobId(MessageContext msgCtxt) throws Exception {
+    String jobId = _getStringProperty(msgCtxt, "job-id", null);
+    if (jobId == null) {
+      throw new IllegalStateException("job-id is not set.");
+    }
+    return jobId.trim();
+  }
+
+  public ExecutionResult execute0(final MessageContext msgCtxt) throws Exception {
+    String jobId = getJobId(msgCtxt);
+    ShredJobs.Job job =
+        ShredJobs.getInstance().get(_getStringProperty(msgCtxt, "tenant", null), jobId);
+    if (job == null) {
+      // never submitted, submitted by another tenant, or finished long enough ago to be forgotten
+      msgCtxt.setVariable(varName("job_status"), "unknown");
+      return ExecutionResult.SUCCESS;
+    }
+    ShredJobs.Status status = job.getStatus();
+    msgCtxt.setVariable(varName("job_status"), status.name().toLowerCase());
+    msgCtxt.setVariable(varName("job_rows"), Long.toString(job.getRows()));
+    long now = System.currentTimeMillis();
+    long started = job.getStarted();
+    long finished = job.getFinished();
+    msgCtxt.setVariable(
+        varName("job_queued_ms"),
+        Long.toString(((started != 0) ? started : now) - job.submitted));
+    if (started != 0) {
+      msgCtxt.setVariable(
+          varName("job_elapsed_ms"), Long.toString(((finished != 0) ? finished : now) - started));
+    }
+    if (status == ShredJobs.Status.FAILED) {
+      msgCtxt.setVariable(varName("job_error"), job.getError());
+    }
+    if (status == ShredJobs.Status.DONE) {
+      // the variables the shred set that are plain values, such as csv_rows_read,
+      // csv_cache_version and csv_content_hash; the table itself is in the table cache
+      for (Map.Entry<String, Object> variable : job.getVariables().entrySet()) {
+        if (variable.getValue() instanceof String) {
+          msgCtxt.setVariable(variable.getKey(), variable.getValue());
+        }
+      }
+    }
+    return ExecutionResult.SUCCESS;
+  }
+}
@@ -0,0 +1,289 @@
+// ShredJobs.java
+//
+// A process-wide, bounded pool of threads that shreds CSV bodies in the
+// background, for CsvShredder with async=true, and the record of each
+// job, for ShredJobStatus. The request thread only buffers the body and
+// queues the job, so its latency does not depend on the size of the
+// CSV. The queue is bounded both in jobs and in the bytes of the bodies
+// it holds; when either bound is reached, a new job is refused, rather
+// than letting retries pile up work the pool cannot keep up with.
+//
+// A finished job is remembered for a while, so that its status can be
+// read, and then forgotten.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class ShredJobs {
+  private static final int DEFAULT_THREADS = 2;
+  private static final int DEFAULT_QUEUE = 16;
+  private static final long DEFAULT_MAX_QUEUED_BYTES = 256L * 1024 * 1024;
+  private static final long DEFAULT_RETAIN_SECONDS = 600;
+  private static final int MAX_RETAINED = 1000;
+
+  private static final ShredJobs INSTANCE =
+      new ShredJobs(
+          Integer.getInteger("csv.async.threads", DEFAULT_THREADS),
+          Integer.getInteger("csv.async.queue", DEFAULT_QUEUE),
+          Long.getLong("csv.async.maxQueuedBytes", DEFAULT_MAX_QUEUED_BYTES),
+          Long.getLong("csv.async.retainSeconds", DEFAULT_RETAIN_SECONDS));
+
+  static ShredJobs getInstance() {
+    return INSTANCE;
+  }
+
+  // the job running on this thread, if any, so the shred can report its progress
+  private static final ThreadLocal<Job> currentJob = new ThreadLocal<Job>();
+
+  static Job current() {
+    return currentJob.get();
+  }
+
+  static enum Status {
+    QUEUED,
+    RUNNING,
+    DONE,
+    FAILED
+  }
+
+  /** The work of a job. It sets its result variables into the given map. */
+  static interface Task {
+    /** Returns true if the work succeeded. */
+    boolean run(Map<String, Object> variables) throws Exception;
+  }
+
+  static final class Job {
+    final String id;
+    final String tenant;
+    final long size; // the bytes of the body the job holds until it finishes
+    final long submitted;
+    private final AtomicLong rows = new AtomicLong();
+    private final Map<String, Object> variables = new HashMap<String, Object>();
+    private volatile Status status = Status.QUEUED;
+    private volatile long started;
+    private volatile long finished;
+    private volatile String error;
+
+    Job(String tenant, long size) {
+      this.id = UUID.randomUUID().toString();
+      this.tenant = (tenant != null) ? tenant : TableCache.DEFAULT_TENANT;
+      this.size = size;
+      this.submitted = System.currentTimeMillis();
+    }
+
+    Status getStatus() {
+      return status;
+    }
+
+    /** The records read so far. */
+    long getRows() {
+      return rows.get();
+    }
+
+    long getStarted() {
+      return started;
+    }
+
+    long getFinished() {
+      return finished;
+    }
+
+    String getError() {
+      return error;
+    }
+
+    /**
+     * The variables the job set that hold strings, once it has finished; until then, an empty map.
+     */
+    Map<String, Object> getVariables() {
+      Status s = status; // read first; the variables were all set before it changed
+      return (s == Status.DONE || s == Status.FAILED)
+          ? Collections.unmodifiableMap(variables)
+          : Collections.<String, Object>emptyMap();
+    }
+
+    /** Wraps the reader, to count the records as they are read. */
+    RowReader countRows(final RowReader records) {
+      return new RowReader() {
+        {
+          setHeaderNames(records.getHeaderNames());
+        }
+
+        boolean next() throws IOException {
+          boolean more = records.next();
+          if (more) {
+            rows.incrementAndGet();
+          }
+          return more;
+        }
+
+        int size() {
+          return records.size();
+        }
+
+        String get(int i) {
+          return records.get(i);
+        }
+
+        public void close() throws IOException {
+          records.close();
+        }
+      };
+    }
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final long maxQueuedBytes;
+  private final long retainMillis;
+  private final AtomicLong queuedBytes = new AtomicLong();
+  // in order of submission
+  private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<String, Job>();
+
+  /**
+   * @param threads the jobs to run at once.
+   * @param queue the most jobs to hold waiting for a thread.
+   * @param maxQueuedBytes the most bytes of bodies to hold, across jobs waiting or running. A
+   *     single body larger than this is still accepted when nothing else is held.
+   * @param retainSeconds how long to remember a finished job.
+   */
+  ShredJobs(int threads, int queue, long maxQueuedBytes, long retainSeconds) {
+    final AtomicInteger count = new AtomicInteger();
+    this.executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, queue)),
+            new ThreadFactory() {
+              public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "csv-shred-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+    this.executor.allowCoreThreadTimeOut(true);
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.retainMillis = retainSeconds * 1000L;
+  }
+
+  /**
+   * Queues a task, and returns its job. Throws IllegalStateException if the queue is full, either
+   * of jobs or of bytes.
+   */
+  Job submit(String tenant, long size, final Task task) {
+    final Job job = new Job(tenant, size);
+    long held = queuedBytes.addAndGet(size);
+    if (held > maxQueuedBytes && held != size) {
+      queuedBytes.addAndGet(-size);
+      throw new IllegalStateException("the queue of shred jobs is full.");
+    }
+    synchronized (this) {
+      purge(System.currentTimeMillis());
+      jobs.put(job.id, job);
+    }
+    try {
+      executor.execute(
+          new Runnable() {
+            public void run() {
+              runJob(job, task);
+            }
+          });
+    } catch (RejectedExecutionException exc1) {
+      queuedBytes.addAndGet(-size);
+      synchronized (this) {
+        jobs.remove(job.id);
+      }
+      throw new IllegalStateException("the queue of shred jobs is full.");
+    }
+    return job;
+  }
+
+  private void runJob(Job job, Task task) {
+    job.started = System.currentTimeMillis();
+    job.status = Status.RUNNING;
+    currentJob.set(job);
+    Status outcome = Status.FAILED;
+    try {
+      if (task.run(job.variables)) {
+        outcome = Status.DONE;
+      } else {
+        Object error = job.variables.get("csv_error");
+        job.error = (error != null) ? error.toString() : "the job failed.";
+      }
+    } catch (Throwable exc1) {
+      job.error = exc1.toString();
+    } finally {
+      currentJob.remove();
+      // keep only the plain values, which ShredJobStatus publishes; the table itself must not
+      // stay reachable from the job after the table cache has evicted or replaced it
+      Iterator<Object> values = job.variables.values().iterator();
+      while (values.hasNext()) {
+        if (!(values.next() instanceof String)) {
+          values.remove();
+        }
+      }
+      queuedBytes.addAndGet(-job.size);
+      job.finished = System.currentTimeMillis();
+      job.status = outcome;
+    }
+  }
+
+  /** Returns the job with the given id, if it belongs to the given tenant; otherwise null. */
+  synchronized Job get(String tenant, String id) {
+    purge(System.currentTimeMillis());
+    Job job = jobs.get(id);
+    String t = (tenant != null) ? tenant : TableCache.DEFAULT_TENANT;
+    return (job != null && job.tenant.equals(t)) ? job : null;
+  }
+
+  /** The bytes of bodies held by jobs waiting or running. */
+  long getQueuedBytes() {
+    return queuedBytes.get();
+  }
+
+  /** Forgets finished jobs past their retention, and the oldest finished jobs past the limit. */
+  private void purge(long now) {
+    int excess = jobs.size() - MAX_RETAINED;
+    Iterator<Job> it = jobs.values().iterator();
+    while (it.hasNext()) {
+      Job job = it.next();
+      Status s = job.status;
+      boolean finished = s == Status.DONE || s == Status.FAILED;
+      if (finished && (excess > 0 || now - job.finished > retainMillis)) {
+        it.remove();
+        excess--;
+      }
+    }
+  }
+}
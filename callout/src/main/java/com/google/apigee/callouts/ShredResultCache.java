@@ -0,0 +1,121 @@
+// ShredResultCache.java
+//
+// A process-wide, size-bounded index of the results CsvShredder has
+// built, keyed by the digest of the request body together with the
+// tenant and the effective configuration. When the same CSV is shredded
+// again the same way, CsvShredder returns the result it built before,
+// rather than parsing the body again. Since the key covers everything
+// the result depends on, an entry never goes stale; entries leave only
+// to make room, least recently used first.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class ShredResultCache {
+  private static final int DEFAULT_MAX_ENTRIES = 32;
+  private static final long DEFAULT_MAX_CELLS = 20_000_000L;
+
+  private static final ShredResultCache INSTANCE =
+      new ShredResultCache(
+          Integer.getInteger("csv.dedup.maxEntries", DEFAULT_MAX_ENTRIES),
+          Long.getLong("csv.dedup.maxCells", DEFAULT_MAX_CELLS));
+
+  static ShredResultCache getInstance() {
+    return INSTANCE;
+  }
+
+  /** The variables a shred set, to be set again for a repeated upload. */
+  static final class Result {
+    final Map<String, Object> variables;
+    final String contentHash; // the checksum that cache-name records, or null
+    final long cells;
+
+    Result(Map<String, Object> variables, String contentHash, long cells) {
+      this.variables = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(variables));
+      this.contentHash = contentHash;
+      this.cells = cells;
+    }
+  }
+
+  private final int maxEntries;
+  private final long maxCells;
+  private long totalCells = 0;
+
+  // access-ordered, so iteration starts at the least-recently-used result
+  private final LinkedHashMap<String, Result> results =
+      new LinkedHashMap<String, Result>(16, 0.75f, true);
+
+  /**
+   * @param maxEntries the most results to hold.
+   * @param maxCells the most cells to hold, across all results. A result larger than this is not
+   *     held at all.
+   */
+  ShredResultCache(int maxEntries, long maxCells) {
+    this.maxEntries = maxEntries;
+    this.maxCells = maxCells;
+  }
+
+  /**
+   * Returns the key for a body with the given digest, shredded by the given tenant with the given
+   * configuration.
+   */
+  static String key(String tenant, String digest, String configuration) {
+    return ((tenant != null) ? tenant : TableCache.DEFAULT_TENANT)
+        + '\u0000'
+        + digest
+        + '\u0000'
+        + configuration;
+  }
+
+  synchronized Result get(String key) {
+    return results.get(key);
+  }
+
+  synchronized void put(String key, Result result) {
+    if (result.cells > maxCells || maxEntries <= 0) {
+      return;
+    }
+    Result previous = results.put(key, result);
+    if (previous != null) {
+      totalCells -= previous.cells;
+    }
+    totalCells += result.cells;
+    Iterator<Result> it = results.values().iterator();
+    while ((totalCells > maxCells || results.size() > maxEntries) && it.hasNext()) {
+      Result eldest = it.next();
+      if (eldest != result) {
+        it.remove();
+        totalCells -= eldest.cells;
+      }
+    }
+  }
+
+  synchronized int size() {
+    return results.size();
+  }
+
+  synchronized void clear() {
+    results.clear();
+    totalCells = 0;
+  }
+}
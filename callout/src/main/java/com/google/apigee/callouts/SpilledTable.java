@@ -0,0 +1,266 @@
+// SpilledTable.java
+//
+// A shredded table whose rows live in a memory-mapped temporary file,
+// rather than on the heap, for CSVs too large to hold there. Only the
+// primary keys, and the offset of each row in the file, stay on the
+// heap. Like CsvTable, it presents itself as a read-only
+// Map<String, Map<String,String>>, so MapExtractor can look up rows in
+// it directly; each lookup decodes just the one row it returns.
+//
+// The file is deleted as soon as it is mapped; the mapping, and so the
+// disk space, is released when the table is garbage collected. A
+// SpilledTable cannot be serialized; to store a large table in a
+// distributed cache, use a snapshot.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+ * Each row in the file is an int giving the number of cells, then for each cell an int giving
+ * the length of its UTF-8, or -1 if the cell is absent, followed by the UTF-8 itself.
+ */
+public class SpilledTable extends AbstractMap<String, Map<String, String>> {
+  private final String[] header;
+  private final String[] keys; // keys[row], in order of first appearance
+  private final int[] offsets; // offsets[row], the position of the row in the file
+  private final int[] slots; // open-addressing index, from hash(key) to (row + 1); 0 means empty
+  private final int rowCount;
+  private final ByteBuffer data;
+  private Set<Map.Entry<String, Map<String, String>>> entrySet;
+
+  private SpilledTable(
+      String[] header, String[] keys, int[] offsets, int[] slots, int rowCount, ByteBuffer data) {
+    this.header = header;
+    this.keys = keys;
+    this.offsets = offsets;
+    this.slots = slots;
+    this.rowCount = rowCount;
+    this.data = data;
+  }
+
+  private static int spread(int h) {
+    return h ^ (h >>> 16);
+  }
+
+  private static int findSlot(int[] slots, String[] keys, Object key) {
+    int mask = slots.length - 1;
+    int i = spread(key.hashCode()) & mask;
+    while (slots[i] != 0 && !keys[slots[i] - 1].equals(key)) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private int rowOf(Object key) {
+    if (!(key instanceof String)) {
+      return -1;
+    }
+    return slots[findSlot(slots, keys, key)] - 1;
+  }
+
+  public List<String> getHeader() {
+    return Collections.unmodifiableList(Arrays.asList(header));
+  }
+
+  private Map<String, String> row(int row) {
+    // a duplicate shares the mapping but not the position, so concurrent readers do not collide
+    ByteBuffer in = data.duplicate();
+    in.position(offsets[row]);
+    int count = in.getInt();
+    Map<String, String> map = new LinkedHashMap<String, String>(count * 4 / 3 + 1);
+    for (int col = 0; col < count; col++) {
+      int length = in.getInt();
+      if (length >= 0) {
+        byte[] utf8 = new byte[length];
+        in.get(utf8);
+        map.put(header[col], new String(utf8, StandardCharsets.UTF_8));
+      }
+    }
+    return map;
+  }
+
+  @Override
+  public int size() {
+    return rowCount;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return rowOf(key) >= 0;
+  }
+
+  @Override
+  public Map<String, String> get(Object key) {
+    int row = rowOf(key);
+    return (row < 0) ? null : row(row);
+  }
+
+  @Override
+  public Set<Map.Entry<String, Map<String, String>>> entrySet() {
+    if (entrySet == null) {
+      entrySet =
+          new AbstractSet<Map.Entry<String, Map<String, String>>>() {
+            public int size() {
+              return rowCount;
+            }
+
+            public Iterator<Map.Entry<String, Map<String, String>>> iterator() {
+              return new Iterator<Map.Entry<String, Map<String, String>>>() {
+                private int row = 0;
+
+                public boolean hasNext() {
+                  return row < rowCount;
+                }
+
+                public Map.Entry<String, Map<String, String>> next() {
+                  if (row >= rowCount) {
+                    throw new NoSuchElementException();
+                  }
+                  String key = keys[row];
+                  return new SimpleImmutableEntry<String, Map<String, String>>(key, row(row++));
+                }
+              };
+            }
+          };
+    }
+    return entrySet;
+  }
+
+  /**
+   * Appends rows to a temporary file, keeping only the key index on the heap. As with a map, a
+   * row replaces any earlier row with the same key.
+   */
+  static final class Writer {
+    private final String[] header;
+    private final File file;
+    private final DataOutputStream out;
+    private String[] keys = new String[1024];
+    private int[] offsets = new int[1024];
+    private int[] slots = new int[2048];
+    private int rowCount = 0;
+
+    /** @param directory where to create the file, or null for the default temporary directory */
+    Writer(File directory, String[] header) throws IOException {
+      this.header = header.clone();
+      this.file = File.createTempFile("csv-spill-", ".bin", directory);
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+    }
+
+    /** Writes every row of a table, in order. */
+    void addAll(Map<String, ? extends Map<String, String>> table) throws IOException {
+      String[] values = new String[header.length];
+      for (Map.Entry<String, ? extends Map<String, String>> entry : table.entrySet()) {
+        Map<String, String> row = entry.getValue();
+        for (int col = 0; col < header.length; col++) {
+          values[col] = row.get(header[col]);
+        }
+        add(entry.getKey(), values, header.length);
+      }
+    }
+
+    /** Values beyond the width of the header are ignored. */
+    void add(String key, String[] values, int count) throws IOException {
+      int offset = out.size();
+      if (offset < 0 || offset == Integer.MAX_VALUE) {
+        throw new IllegalStateException("the spill file exceeds 2 GB.");
+      }
+      int n = Math.min(count, header.length);
+      out.writeInt(n);
+      for (int col = 0; col < n; col++) {
+        if (values[col] == null) {
+          out.writeInt(-1);
+        } else {
+          byte[] utf8 = values[col].getBytes(StandardCharsets.UTF_8);
+          out.writeInt(utf8.length);
+          out.write(utf8);
+        }
+      }
+      int slot = findSlot(slots, keys, key);
+      if (slots[slot] != 0) {
+        offsets[slots[slot] - 1] = offset; // the earlier row stays in the file, unreferenced
+        return;
+      }
+      if (rowCount == keys.length) {
+        keys = Arrays.copyOf(keys, rowCount * 2);
+        offsets = Arrays.copyOf(offsets, rowCount * 2);
+      }
+      keys[rowCount] = key;
+      offsets[rowCount] = offset;
+      rowCount++;
+      if (rowCount * 2 > slots.length) {
+        slots = new int[slots.length * 2];
+        for (int row = 0; row < rowCount; row++) {
+          slots[findSlot(slots, keys, keys[row])] = row + 1;
+        }
+      } else {
+        slots[slot] = rowCount;
+      }
+    }
+
+    /** Maps the file, deletes it, and returns the table. */
+    SpilledTable finish() throws IOException {
+      out.close();
+      ByteBuffer data;
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+          FileChannel channel = raf.getChannel()) {
+        data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        delete();
+      }
+      return new SpilledTable(
+          header,
+          Arrays.copyOf(keys, rowCount),
+          Arrays.copyOf(offsets, rowCount),
+          slots,
+          rowCount,
+          data);
+    }
+
+    /** Removes the file, for when the table is abandoned. */
+    void delete() {
+      try {
+        out.close();
+      } catch (IOException exc1) {
+        // nothing more to do
+      }
+      if (!file.delete()) {
+        file.deleteOnExit(); // some platforms do not allow deleting a mapped file
+      }
+    }
+  }
+}
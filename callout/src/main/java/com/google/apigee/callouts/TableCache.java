@@ -0,0 +1,420 @@
+// TableCache.java
+//
+// A process-wide, size-bounded cache of shredded tables, shared by
+// CsvShredder (which populates it) and MapExtractor (which reads from
+// it). Unlike PopulateCache/LookupCache, a lookup here involves no
+// serialization; it returns the very object that CsvShredder produced.
+//
+// Tables are named within a tenant, and versioned. Publishing a table
+// swaps the reference to the current version of that name, so a reader
+// sees the whole of one version or the whole of the next, never a table
+// still being built. A lookup takes no lock: it reads the current
+// version of the name from a concurrent map, and stamps the name as
+// recently used; the bookkeeping of sizes and the eviction of the least
+// recently used names happen only when a table is published, activated
+// or removed. The previous versions of a name may be kept, to be
+// read or reactivated for a rollback. The size of every version counts
+// toward both the bound on the whole cache and the bound per tenant.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class TableCache {
+  private static final int DEFAULT_MAX_ENTRIES = 64;
+  private static final long DEFAULT_MAX_CELLS = 50_000_000L;
+  static final String DEFAULT_TENANT = "";
+
+  private static final TableCache INSTANCE =
+      new TableCache(
+          Integer.getInteger("csv.tablecache.maxEntries", DEFAULT_MAX_ENTRIES),
+          Long.getLong("csv.tablecache.maxCells", DEFAULT_MAX_CELLS),
+          Long.getLong("csv.tablecache.maxTenantCells", DEFAULT_MAX_CELLS));
+
+  static TableCache getInstance() {
+    return INSTANCE;
+  }
+
+  static final class Entry {
+    final String tenant;
+    final String name;
+    final long version; // assigned when the entry is published; 0 until then
+    final String contentHash;
+    final Object table;
+    final RowJson rowJson; // may be null
+    final TableIndexes indexes; // may be null
+    final long cells;
+    final long expiresAt; // 0 means never
+
+    /**
+     * @param tenant the tenant that owns the table, or null for the default tenant.
+     * @param cells the approximate size of the table, rows times columns, used to bound the total
+     *     size of the cache.
+     * @param ttlSeconds the time to live, like the TimeoutInSec of the ExpirySettings in
+     *     PopulateCache. Zero or less means the entry does not expire.
+     */
+    Entry(
+        String tenant,
+        String name,
+        String contentHash,
+        Object table,
+        RowJson rowJson,
+        TableIndexes indexes,
+        long cells,
+        int ttlSeconds) {
+      this.tenant = (tenant != null) ? tenant : DEFAULT_TENANT;
+      this.name = name;
+      this.version = 0;
+      this.contentHash = contentHash;
+      this.table = table;
+      this.rowJson = rowJson;
+      this.indexes = indexes;
+      this.cells = cells;
+      this.expiresAt = (ttlSeconds > 0) ? System.currentTimeMillis() + ttlSeconds * 1000L : 0;
+    }
+
+    private Entry(Entry entry, long version) {
+      this.tenant = entry.tenant;
+      this.name = entry.name;
+      this.version = version;
+      this.contentHash = entry.contentHash;
+      this.table = entry.table;
+      this.rowJson = entry.rowJson;
+      this.indexes = entry.indexes;
+      this.cells = entry.cells;
+      this.expiresAt = entry.expiresAt;
+    }
+
+    boolean isExpired(long now) {
+      return expiresAt != 0 && now >= expiresAt;
+    }
+  }
+
+  /**
+   * The current version of a name, and the versions it replaced, newest first. Only current is
+   * read without the cache's lock; the other fields are guarded by it, except lastAccess, which
+   * readers stamp without a lock.
+   */
+  private static final class Versions {
+    volatile Entry current;
+    final LinkedList<Entry> previous = new LinkedList<Entry>();
+    long lastVersion = 0;
+    // racy by design: a lost or stale stamp only makes the choice of what to evict less exact
+    long lastAccess;
+  }
+
+  private final int maxEntries;
+  private final long maxCells;
+  private final long maxTenantCells;
+  private long totalCells = 0;
+  private final Map<String, Long> tenantCells = new HashMap<String, Long>();
+
+  // a logical clock for recency; writers advance it by two under the lock, and a reader stamps
+  // one past it, so a read ranks after every write before it
+  private volatile long clock = 0;
+
+  // modified only under the lock; read without it
+  private final ConcurrentHashMap<String, Versions> tables =
+      new ConcurrentHashMap<String, Versions>();
+
+  TableCache(int maxEntries, long maxCells) {
+    this(maxEntries, maxCells, maxCells);
+  }
+
+  /**
+   * @param maxEntries the most names to hold, across all tenants.
+   * @param maxCells the most cells to hold, across all tenants and versions.
+   * @param maxTenantCells the most cells to hold for any one tenant, across its versions.
+   */
+  TableCache(int maxEntries, long maxCells, long maxTenantCells) {
+    this.maxEntries = maxEntries;
+    this.maxCells = maxCells;
+    this.maxTenantCells = maxTenantCells;
+  }
+
+  private static String key(String tenant, String name) {
+    return ((tenant != null) ? tenant : DEFAULT_TENANT) + '\u0000' + name;
+  }
+
+  private static boolean isLive(Entry entry) {
+    return entry != null && (entry.expiresAt == 0 || !entry.isExpired(System.currentTimeMillis()));
+  }
+
+  /** Stores an entry under its name, replacing any previous entry of that name. */
+  synchronized Entry put(Entry entry) {
+    return put(entry, 0);
+  }
+
+  /**
+   * Publishes an entry as the next version of its name, keeping up to the given number of the
+   * versions it replaces. Returns the published entry, which carries its version number.
+   */
+  synchronized Entry put(Entry entry, int keepVersions) {
+    String key = key(entry.tenant, entry.name);
+    Versions versions = tables.get(key);
+    if (versions == null) {
+      versions = new Versions();
+      tables.put(key, versions);
+    }
+    clock += 2;
+    versions.lastAccess = clock;
+    Entry published = new Entry(entry, ++versions.lastVersion);
+    if (versions.current != null) {
+      versions.previous.addFirst(versions.current);
+    }
+    versions.current = published;
+    account(published, 1);
+    while (versions.previous.size() > Math.max(0, keepVersions)) {
+      account(versions.previous.removeLast(), -1);
+    }
+    evict(key, published.tenant);
+    return published;
+  }
+
+  /**
+   * Publishes the replacement only if the current entry for its name is still the expected one
+   * (or, if the expected entry is null, if there is none). Returns the published entry, or null if
+   * another request changed it first.
+   */
+  synchronized Entry replace(Entry expected, Entry replacement, int keepVersions) {
+    if (get(replacement.tenant, replacement.name) != expected) {
+      return null;
+    }
+    return put(replacement, keepVersions);
+  }
+
+  synchronized boolean replace(Entry expected, Entry replacement) {
+    return replace(expected, replacement, 0) != null;
+  }
+
+  /**
+   * Returns the current live entry for the given name of the given tenant, or null. This takes no
+   * lock, and changes nothing but the recency stamp of the name; an expired entry is left for the
+   * next write to drop.
+   */
+  Entry get(String tenant, String name) {
+    Versions versions = tables.get(key(tenant, name));
+    if (versions == null) {
+      return null;
+    }
+    Entry current = versions.current;
+    if (!isLive(current)) {
+      return null;
+    }
+    long stamp = clock + 1;
+    if (versions.lastAccess != stamp) {
+      versions.lastAccess = stamp;
+    }
+    return current;
+  }
+
+  /** Returns the live entry for the given version of a name, current or kept, or null. */
+  Entry get(String tenant, String name, long version) {
+    Entry current = get(tenant, name);
+    if (current == null || current.version == version) {
+      return current;
+    }
+    synchronized (this) {
+      Versions versions = tables.get(key(tenant, name));
+      if (versions != null) {
+        for (Entry entry : versions.previous) {
+          if (entry.version == version) {
+            return isLive(entry) ? entry : null;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Makes a kept version the current one again, for a rollback; the version it replaces is kept
+   * in its place. Returns the reactivated entry, or null if that version is not kept.
+   */
+  synchronized Entry activate(String tenant, String name, long version) {
+    Entry target = get(tenant, name, version);
+    if (target == null) {
+      return null;
+    }
+    Versions versions = tables.get(key(tenant, name));
+    if (versions == null) {
+      return null;
+    }
+    clock += 2;
+    versions.lastAccess = clock;
+    if (versions.current != target) {
+      versions.previous.remove(target);
+      versions.previous.addFirst(versions.current);
+      versions.current = target;
+    }
+    return target;
+  }
+
+  /** Returns the versions held for a name, the current one first, then the kept ones. */
+  synchronized List<Long> versions(String tenant, String name) {
+    List<Long> list = new ArrayList<Long>();
+    Entry current = get(tenant, name);
+    if (current != null) {
+      list.add(current.version);
+      Versions versions = tables.get(key(tenant, name));
+      for (Entry entry : (versions != null) ? versions.previous : new LinkedList<Entry>()) {
+        list.add(entry.version);
+      }
+    }
+    return list;
+  }
+
+  /** Removes every version of a name; returns the current one, or null. */
+  synchronized Entry remove(String tenant, String name) {
+    Versions versions = tables.remove(key(tenant, name));
+    if (versions == null) {
+      return null;
+    }
+    account(versions.current, -1);
+    for (Entry entry : versions.previous) {
+      account(entry, -1);
+    }
+    return versions.current;
+  }
+
+  /** The number of live names held, across all tenants. */
+  synchronized int size() {
+    dropExpired();
+    return tables.size();
+  }
+
+  /** The cells held for a tenant, across all of its names and versions. */
+  synchronized long getTenantCells(String tenant) {
+    Long cells = tenantCells.get((tenant != null) ? tenant : DEFAULT_TENANT);
+    return (cells == null) ? 0 : cells;
+  }
+
+  synchronized void clear() {
+    tables.clear();
+    tenantCells.clear();
+    totalCells = 0;
+  }
+
+  private void account(Entry entry, int sign) {
+    totalCells += sign * entry.cells;
+    long cells = getTenantCells(entry.tenant) + sign * entry.cells;
+    if (cells == 0) {
+      tenantCells.remove(entry.tenant);
+    } else {
+      tenantCells.put(entry.tenant, cells);
+    }
+  }
+
+  private boolean overCells(String tenant) {
+    return (tenant == null) ? totalCells > maxCells : getTenantCells(tenant) > maxTenantCells;
+  }
+
+  private boolean overBound(String tenant) {
+    return overCells(tenant) || (tenant == null && tables.size() > maxEntries);
+  }
+
+  /** Drops expired entries, whether current or kept. */
+  private void dropExpired() {
+    long now = System.currentTimeMillis();
+    Iterator<Versions> it = tables.values().iterator();
+    while (it.hasNext()) {
+      Versions versions = it.next();
+      Iterator<Entry> kept = versions.previous.iterator();
+      while (kept.hasNext()) {
+        Entry entry = kept.next();
+        if (entry.isExpired(now)) {
+          kept.remove();
+          account(entry, -1);
+        }
+      }
+      if (versions.current.isExpired(now)) {
+        it.remove();
+        account(versions.current, -1);
+        for (Entry entry : versions.previous) {
+          account(entry, -1);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops expired entries, then trims the cache to its bounds: first for the whole cache, then for
+   * the tenant that just published. Kept versions go first, then whole names, least recently used
+   * first. The name just published is never evicted, even when it alone is over the bound.
+   */
+  private void evict(String publishedKey, String tenant) {
+    dropExpired();
+    trim(publishedKey, null);
+    trim(publishedKey, tenant);
+  }
+
+  /** The names held, least recently used first. */
+  private List<Map.Entry<String, Versions>> byRecency() {
+    List<Map.Entry<String, Versions>> list =
+        new ArrayList<Map.Entry<String, Versions>>(tables.entrySet());
+    final Map<Versions, Long> stamps = new IdentityHashMap<Versions, Long>();
+    for (Map.Entry<String, Versions> mapEntry : list) {
+      // read each stamp once, as readers may change it while this sorts
+      stamps.put(mapEntry.getValue(), mapEntry.getValue().lastAccess);
+    }
+    Collections.sort(
+        list,
+        new Comparator<Map.Entry<String, Versions>>() {
+          public int compare(Map.Entry<String, Versions> a, Map.Entry<String, Versions> b) {
+            return Long.compare(stamps.get(a.getValue()), stamps.get(b.getValue()));
+          }
+        });
+    return list;
+  }
+
+  /** Trims the cache, or the given tenant if not null, to its bound. */
+  private void trim(String publishedKey, String tenant) {
+    List<Map.Entry<String, Versions>> names = byRecency();
+    for (Map.Entry<String, Versions> mapEntry : names) {
+      Versions versions = mapEntry.getValue();
+      if (tenant == null || versions.current.tenant.equals(tenant)) {
+        while (overCells(tenant) && !versions.previous.isEmpty()) {
+          account(versions.previous.removeLast(), -1);
+        }
+      }
+    }
+    Iterator<Map.Entry<String, Versions>> it = names.iterator();
+    while (overBound(tenant) && it.hasNext()) {
+      Map.Entry<String, Versions> mapEntry = it.next();
+      Versions versions = mapEntry.getValue();
+      if (!mapEntry.getKey().equals(publishedKey)
+          && (tenant == null || versions.current.tenant.equals(tenant))) {
+        tables.remove(mapEntry.getKey());
+        account(versions.current, -1);
+        for (Entry entry : versions.previous) {
+          account(entry, -1);
+        }
+      }
+    }
+  }
+}
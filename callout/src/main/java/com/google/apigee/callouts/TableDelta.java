@@ -0,0 +1,201 @@
+// TableDelta.java
+//
+// A set of changes to a shredded table, read from a partial CSV: rows
+// to insert or replace, and keys to delete. Applying a delta never
+// modifies the table it is applied to; it produces a new table that
+// shares the unchanged rows (or, for a CsvTable, the unchanged cells)
+// with the old one. A MapExtractor that is reading the old table
+// continues to see a consistent snapshot.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+final class TableDelta {
+  private final List<String> columns; // the data columns of the delta, without the op column
+  private final List<String> keys = new ArrayList<String>();
+  // the new row for each key, or null to delete it
+  private final List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+
+  private TableDelta(List<String> columns) {
+    this.columns = columns;
+  }
+
+  /** The outcome of applying a delta: the new table, and what changed. */
+  static final class Result {
+    final Map<String, Map<String, String>> table;
+    RowJson rowJson; // null unless the base had it
+    int inserted;
+    int updated;
+    int deleted;
+
+    Result(Map<String, Map<String, String>> table) {
+      this.table = table;
+    }
+  }
+
+  int size() {
+    return keys.size();
+  }
+
+  int columnCount() {
+    return columns.size();
+  }
+
+  /**
+   * Reads the changes. The primary key of each row is the first column other than the op column.
+   * In the op column, an empty value, "upsert", "insert" or "update" means the row replaces any
+   * existing row with its key; "delete" means the row with that key is removed. Without an op
+   * column, every row is an upsert.
+   */
+  static TableDelta read(RowReader records, String opColumn) throws Exception {
+    List<String> header = records.getHeaderNames();
+    int opIndex = header.lastIndexOf(opColumn);
+    int keyIndex = (opIndex == 0) ? 1 : 0;
+    if (keyIndex >= header.size()) {
+      throw new IllegalStateException("the delta has no key column.");
+    }
+    List<String> columns = new ArrayList<String>(header);
+    if (opIndex >= 0) {
+      columns.remove(opIndex);
+    }
+    TableDelta delta = new TableDelta(columns);
+    while (records.next()) {
+      String key = records.get(keyIndex);
+      String op = (opIndex >= 0 && opIndex < records.size()) ? records.get(opIndex) : "";
+      if (op.equalsIgnoreCase("delete")) {
+        delta.keys.add(key);
+        delta.rows.add(null);
+      } else if (op.equals("")
+          || op.equalsIgnoreCase("upsert")
+          || op.equalsIgnoreCase("insert")
+          || op.equalsIgnoreCase("update")) {
+        Map<String, String> row = records.toMap();
+        if (opIndex >= 0) {
+          row.remove(opColumn);
+        }
+        delta.keys.add(key);
+        delta.rows.add(row);
+      } else {
+        throw new IllegalStateException("unsupported op for key " + key + ": " + op);
+      }
+    }
+    return delta;
+  }
+
+  /**
+   * Applies the changes, in order, to a copy of the base table. If the base has precomputed JSON
+   * for its rows, the result does too; only the changed rows are serialized.
+   */
+  Result apply(
+      Map<String, ? extends Map<String, String>> base,
+      RowJson baseRowJson,
+      ObjectWriter writer)
+      throws Exception {
+    if (base instanceof CsvTable) {
+      return applyToTable((CsvTable) base, baseRowJson, writer);
+    }
+    Map<String, Map<String, String>> map =
+        new HashMap<String, Map<String, String>>((int) ((base.size() + size()) / 0.75f) + 1);
+    map.putAll(base);
+    Result result = new Result(map);
+    for (int i = 0; i < keys.size(); i++) {
+      String key = keys.get(i);
+      Map<String, String> row = rows.get(i);
+      if (row == null) {
+        if (map.remove(key) != null) {
+          result.deleted++;
+        }
+      } else if (map.put(key, row) != null) {
+        result.updated++;
+      } else {
+        result.inserted++;
+      }
+    }
+    result.rowJson = updateRowJson(result.table, baseRowJson, writer);
+    return result;
+  }
+
+  private Result applyToTable(CsvTable base, RowJson baseRowJson, ObjectWriter writer)
+      throws Exception {
+    // columns in the delta that the table lacks are added at the end
+    List<String> header = new ArrayList<String>(base.getHeader());
+    for (String column : columns) {
+      if (!header.contains(column)) {
+        header.add(column);
+      }
+    }
+    String[] names = header.toArray(new String[header.size()]);
+    CsvTable.Builder builder = new CsvTable.Builder(base, names);
+    int inserted = 0;
+    int updated = 0;
+    int deleted = 0;
+    String[] values = new String[names.length];
+    for (int i = 0; i < keys.size(); i++) {
+      String key = keys.get(i);
+      Map<String, String> row = rows.get(i);
+      if (row == null) {
+        if (builder.remove(key)) {
+          deleted++;
+        }
+        continue;
+      }
+      if (builder.contains(key)) {
+        updated++;
+      } else {
+        inserted++;
+      }
+      for (int col = 0; col < names.length; col++) {
+        values[col] = row.get(names[col]);
+      }
+      builder.add(key, values, names.length);
+    }
+    Result result = new Result(builder.build());
+    result.inserted = inserted;
+    result.updated = updated;
+    result.deleted = deleted;
+    result.rowJson = updateRowJson(result.table, baseRowJson, writer);
+    return result;
+  }
+
+  /** Returns a copy of the base's row JSON with the changed rows serialized again, or null. */
+  private RowJson updateRowJson(
+      Map<String, Map<String, String>> table, RowJson baseRowJson, ObjectWriter writer)
+      throws Exception {
+    if (baseRowJson == null) {
+      return null;
+    }
+    Map<String, String> rowJson = baseRowJson.copyRows();
+    // serialize each changed key once, in its final state
+    for (String key : new HashSet<String>(keys)) {
+      Map<String, String> row = table.get(key);
+      if (row == null) {
+        rowJson.remove(key);
+      } else {
+        rowJson.put(key, writer.writeValueAsString(row));
+      }
+    }
+    return new RowJson(rowJson);
+  }
+}
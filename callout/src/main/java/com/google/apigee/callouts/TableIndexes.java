@@ -0,0 +1,203 @@
+// TableIndexes.java
+//
+// Secondary indexes over a shredded table, built by CsvShredder and
+// used by MapExtractor to answer queries on columns other than the
+// primary key, without scanning the table. Each index maps a column
+// value to the primary keys of the rows that hold that value.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TableIndexes implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final String[] NO_KEYS = new String[0];
+
+  // column name => (value => primary keys)
+  private final Map<String, Map<String, String[]>> hashIndexes;
+  // column name => values and keys, sorted by value
+  private final Map<String, SortedIndex> sortedIndexes;
+
+  private TableIndexes(
+      Map<String, Map<String, String[]>> hashIndexes, Map<String, SortedIndex> sortedIndexes) {
+    this.hashIndexes = hashIndexes;
+    this.sortedIndexes = sortedIndexes;
+  }
+
+  private static final class SortedIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final String[] values;
+    final String[] keys;
+
+    SortedIndex(String[] values, String[] keys) {
+      this.values = values;
+      this.keys = keys;
+    }
+
+    /** Returns the position of the first value that is not less than the given value. */
+    int lowerBound(String value) {
+      int lo = 0;
+      int hi = values.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (values[mid].compareTo(value) < 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+  }
+
+  /**
+   * Builds the requested indexes in one pass over the table. Rows that lack a value for an indexed
+   * column are not indexed on that column.
+   */
+  static TableIndexes build(
+      Map<String, ? extends Map<String, String>> table,
+      List<String> hashColumns,
+      List<String> sortedColumns) {
+    Map<String, Map<String, List<String>>> building =
+        new HashMap<String, Map<String, List<String>>>();
+    for (String column : hashColumns) {
+      building.put(column, new HashMap<String, List<String>>());
+    }
+    Map<String, List<String[]>> pairs = new HashMap<String, List<String[]>>();
+    for (String column : sortedColumns) {
+      pairs.put(column, new ArrayList<String[]>(table.size()));
+    }
+
+    for (Map.Entry<String, ? extends Map<String, String>> entry : table.entrySet()) {
+      Map<String, String> row = entry.getValue();
+      for (Map.Entry<String, Map<String, List<String>>> index : building.entrySet()) {
+        String value = row.get(index.getKey());
+        if (value != null) {
+          List<String> keys = index.getValue().get(value);
+          if (keys == null) {
+            keys = new ArrayList<String>(1);
+            index.getValue().put(value, keys);
+          }
+          keys.add(entry.getKey());
+        }
+      }
+      for (Map.Entry<String, List<String[]>> index : pairs.entrySet()) {
+        String value = row.get(index.getKey());
+        if (value != null) {
+          index.getValue().add(new String[] {value, entry.getKey()});
+        }
+      }
+    }
+
+    Map<String, Map<String, String[]>> hashIndexes = new HashMap<String, Map<String, String[]>>();
+    for (Map.Entry<String, Map<String, List<String>>> index : building.entrySet()) {
+      Map<String, String[]> m = new HashMap<String, String[]>(index.getValue().size() * 2);
+      for (Map.Entry<String, List<String>> e : index.getValue().entrySet()) {
+        m.put(e.getKey(), e.getValue().toArray(NO_KEYS));
+      }
+      hashIndexes.put(index.getKey(), m);
+    }
+
+    Map<String, SortedIndex> sortedIndexes = new HashMap<String, SortedIndex>();
+    for (Map.Entry<String, List<String[]>> index : pairs.entrySet()) {
+      List<String[]> list = index.getValue();
+      Collections.sort(
+          list,
+          new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+              int c = a[0].compareTo(b[0]);
+              return (c != 0) ? c : a[1].compareTo(b[1]);
+            }
+          });
+      String[] values = new String[list.size()];
+      String[] keys = new String[list.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = list.get(i)[0];
+        keys[i] = list.get(i)[1];
+      }
+      sortedIndexes.put(index.getKey(), new SortedIndex(values, keys));
+    }
+    return new TableIndexes(hashIndexes, sortedIndexes);
+  }
+
+  boolean hasIndex(String column) {
+    return hashIndexes.containsKey(column) || sortedIndexes.containsKey(column);
+  }
+
+  private SortedIndex sortedIndex(String column) {
+    SortedIndex index = sortedIndexes.get(column);
+    if (index == null) {
+      throw new IllegalStateException("there is no sorted index on column " + column);
+    }
+    return index;
+  }
+
+  /** Returns the keys of the rows where the column equals the value. */
+  List<String> equalTo(String column, String value, int limit) {
+    Map<String, String[]> index = hashIndexes.get(column);
+    if (index != null) {
+      String[] keys = index.get(value);
+      if (keys == null) {
+        return Collections.<String>emptyList();
+      }
+      List<String> list = Arrays.asList(keys);
+      return (list.size() > limit) ? list.subList(0, limit) : list;
+    }
+    if (!sortedIndexes.containsKey(column)) {
+      throw new IllegalStateException("there is no index on column " + column);
+    }
+    return range(column, value, value, limit);
+  }
+
+  /** Returns the keys of the rows where the column starts with the prefix, in value order. */
+  List<String> prefix(String column, String prefix, int limit) {
+    SortedIndex index = sortedIndex(column);
+    List<String> keys = new ArrayList<String>();
+    for (int i = index.lowerBound(prefix);
+        i < index.values.length && index.values[i].startsWith(prefix) && keys.size() < limit;
+        i++) {
+      keys.add(index.keys[i]);
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the keys of the rows where the column is within the range, inclusive, in value order.
+   * Either bound may be null, meaning unbounded. Values compare as strings.
+   */
+  List<String> range(String column, String from, String to, int limit) {
+    SortedIndex index = sortedIndex(column);
+    List<String> keys = new ArrayList<String>();
+    for (int i = (from == null) ? 0 : index.lowerBound(from);
+        i < index.values.length
+            && (to == null || index.values[i].compareTo(to) <= 0)
+            && keys.size() < limit;
+        i++) {
+      keys.add(index.keys[i]);
+    }
+    return keys;
+  }
+}
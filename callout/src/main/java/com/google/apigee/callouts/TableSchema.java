@@ -0,0 +1,143 @@
+// TableSchema.java
+//
+// The types of the columns of a table, as declared in the schema
+// property of CsvShredder: a comma-separated list of name:type pairs,
+// for example "beds:int, price:double, sale_date:date". The types are
+// int, long, double, boolean, string, date (ISO-8601), and
+// date(pattern), where the pattern is as for
+// java.time.format.DateTimeFormatter. Columns that the schema does not
+// name remain strings.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+final class TableSchema {
+  // column name => an empty column of the declared type, or null for string
+  private final Map<String, TypedColumn> prototypes;
+
+  private TableSchema(Map<String, TypedColumn> prototypes) {
+    this.prototypes = prototypes;
+  }
+
+  /** Parses the schema. Throws IllegalStateException if it is not valid. */
+  static TableSchema parse(String spec) {
+    Map<String, TypedColumn> prototypes = new LinkedHashMap<String, TypedColumn>();
+    for (String part : splitTopLevel(spec)) {
+      part = part.trim();
+      if (part.equals("")) {
+        continue;
+      }
+      int colon = part.indexOf(':');
+      if (colon <= 0) {
+        throw new IllegalStateException("schema: expected name:type, found " + part);
+      }
+      String name = part.substring(0, colon).trim();
+      String type = part.substring(colon + 1).trim();
+      if (prototypes.containsKey(name)) {
+        throw new IllegalStateException("schema: the column " + name + " appears twice.");
+      }
+      prototypes.put(name, prototypeFor(type));
+    }
+    return new TableSchema(Collections.unmodifiableMap(prototypes));
+  }
+
+  // a comma inside the parentheses of a date pattern does not separate columns
+  private static List<String> splitTopLevel(String spec) {
+    List<String> parts = new ArrayList<String>();
+    int depth = 0;
+    int start = 0;
+    for (int i = 0; i < spec.length(); i++) {
+      char c = spec.charAt(i);
+      if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth = Math.max(0, depth - 1);
+      } else if (c == ',' && depth == 0) {
+        parts.add(spec.substring(start, i));
+        start = i + 1;
+      }
+    }
+    parts.add(spec.substring(start));
+    return parts;
+  }
+
+  private static TypedColumn prototypeFor(String type) {
+    String lower = type.toLowerCase();
+    if (lower.equals("string")) {
+      return null;
+    }
+    if (lower.equals("int")) {
+      return new TypedColumn.IntColumn(0);
+    }
+    if (lower.equals("long")) {
+      return new TypedColumn.LongColumn(0);
+    }
+    if (lower.equals("double")) {
+      return new TypedColumn.DoubleColumn(0);
+    }
+    if (lower.equals("boolean")) {
+      return new TypedColumn.BooleanColumn(0);
+    }
+    if (lower.equals("date")) {
+      return new TypedColumn.DateColumn(null, 0);
+    }
+    if (lower.startsWith("date(") && type.endsWith(")")) {
+      TypedColumn.DateColumn column =
+          new TypedColumn.DateColumn(type.substring(5, type.length() - 1), 0);
+      try {
+        column.getFormatter();
+      } catch (IllegalArgumentException exc1) {
+        throw new IllegalStateException("schema: invalid date pattern in " + type);
+      }
+      return column;
+    }
+    throw new IllegalStateException("schema: unsupported type " + type);
+  }
+
+  /**
+   * Returns a column for each name in the header, or null for names that the schema leaves as
+   * strings. Throws IllegalStateException if the schema names a column that the header lacks.
+   */
+  TypedColumn[] columnsFor(String[] header, int capacity) {
+    TypedColumn[] columns = new TypedColumn[header.length];
+    boolean any = false;
+    for (String name : prototypes.keySet()) {
+      int col = -1;
+      for (int i = 0; i < header.length; i++) {
+        if (header[i].equals(name)) {
+          col = i; // as with CSVRecord.toMap(), the last duplicate name wins
+        }
+      }
+      if (col < 0) {
+        throw new IllegalStateException("schema: there is no column named " + name);
+      }
+      TypedColumn prototype = prototypes.get(name);
+      if (prototype != null) {
+        columns[col] = prototype.newColumn(capacity);
+        any = true;
+      }
+    }
+    return any ? columns : null;
+  }
+}
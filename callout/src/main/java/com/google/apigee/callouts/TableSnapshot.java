@@ -0,0 +1,345 @@
+// TableSnapshot.java
+//
+// A compact binary encoding of a shredded table, for storing in a
+// cache, and a read-only Map view over it. The encoding holds each
+// distinct string once, in a dictionary; the cells as columns of
+// dictionary references, each only as wide as that column needs; and a
+// hash index from primary key to row. Opening a snapshot reads only the
+// few fixed fields and the header, so a lookup decodes just the one row
+// it returns, rather than rebuilding the whole map.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+ * Layout, with all integers big-endian:
+ *
+ *   int      magic, version
+ *   int      rowCount, columnCount, dictionarySize, slotCount
+ *   int[]    header, as dictionary ids, one per column
+ *   int[]    dictionary offsets, dictionarySize + 1 of them, relative to the dictionary data
+ *   byte[]   dictionary data, the UTF-8 of each string, back to back
+ *   block    keys, then one block per column. A block is one byte giving the width W, then
+ *            rowCount references of W bytes each. A reference is a dictionary id plus one;
+ *            zero means the cell is absent.
+ *   block    slots, slotCount references, an open-addressing index from hash(key) to row + 1;
+ *            zero means empty.
+ */
+public class TableSnapshot extends AbstractMap<String, Map<String, String>> {
+  private static final int MAGIC = 0x43535654; // "CSVT"
+  private static final int VERSION = 1;
+
+  private final byte[] data;
+  private final int rowCount;
+  private final String[] header;
+  private final int dictionaryOffsets;
+  private final int dictionaryData;
+  private final int[] blocks; // position of each block's references; keys first
+  private final int[] widths;
+  private final int slots;
+  private final int slotWidth;
+  private final int slotCount;
+  private Set<Map.Entry<String, Map<String, String>>> entrySet;
+
+  private TableSnapshot(byte[] data) {
+    this.data = data;
+    if (data.length < 24 || readInt(0) != MAGIC) {
+      throw new IllegalStateException("the content is not a table snapshot.");
+    }
+    if (readInt(4) != VERSION) {
+      throw new IllegalStateException("unsupported table snapshot version " + readInt(4));
+    }
+    rowCount = readInt(8);
+    int columnCount = readInt(12);
+    int dictionarySize = readInt(16);
+    slotCount = readInt(20);
+    int position = 24;
+    int headerPosition = position;
+    position += columnCount * 4;
+    dictionaryOffsets = position;
+    position += (dictionarySize + 1) * 4;
+    dictionaryData = position;
+    position += readInt(dictionaryOffsets + dictionarySize * 4);
+    blocks = new int[columnCount + 1];
+    widths = new int[columnCount + 1];
+    for (int b = 0; b < blocks.length; b++) {
+      widths[b] = data[position];
+      blocks[b] = position + 1;
+      position += 1 + rowCount * widths[b];
+    }
+    slotWidth = data[position];
+    slots = position + 1;
+    header = new String[columnCount];
+    for (int col = 0; col < columnCount; col++) {
+      header[col] = string(readInt(headerPosition + col * 4));
+    }
+  }
+
+  /** Opens a snapshot. This reads only the header; rows are decoded as they are asked for. */
+  public static TableSnapshot open(byte[] data) {
+    return new TableSnapshot(data);
+  }
+
+  private int readInt(int position) {
+    return ((data[position] & 0xff) << 24)
+        | ((data[position + 1] & 0xff) << 16)
+        | ((data[position + 2] & 0xff) << 8)
+        | (data[position + 3] & 0xff);
+  }
+
+  private int readUnsigned(int position, int width) {
+    int value = 0;
+    for (int i = 0; i < width; i++) {
+      value = (value << 8) | (data[position + i] & 0xff);
+    }
+    return value;
+  }
+
+  /** Returns the reference at the given row of a block, as a dictionary id, or -1 if absent. */
+  private int reference(int block, int row) {
+    return readUnsigned(blocks[block] + row * widths[block], widths[block]) - 1;
+  }
+
+  private int stringStart(int id) {
+    return dictionaryData + readInt(dictionaryOffsets + id * 4);
+  }
+
+  private String string(int id) {
+    int start = stringStart(id);
+    int end = dictionaryData + readInt(dictionaryOffsets + (id + 1) * 4);
+    return new String(data, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  private boolean stringEquals(int id, byte[] utf8) {
+    int start = stringStart(id);
+    int end = dictionaryData + readInt(dictionaryOffsets + (id + 1) * 4);
+    if (end - start != utf8.length) {
+      return false;
+    }
+    for (int i = 0; i < utf8.length; i++) {
+      if (data[start + i] != utf8[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int spread(int h) {
+    return h ^ (h >>> 16);
+  }
+
+  private int rowOf(Object key) {
+    if (!(key instanceof String) || slotCount == 0) {
+      return -1;
+    }
+    byte[] utf8 = ((String) key).getBytes(StandardCharsets.UTF_8);
+    int mask = slotCount - 1;
+    for (int i = spread(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+      int row = readUnsigned(slots + i * slotWidth, slotWidth) - 1;
+      if (row < 0) {
+        return -1;
+      }
+      if (stringEquals(reference(0, row), utf8)) {
+        return row;
+      }
+    }
+  }
+
+  private Map<String, String> row(int row) {
+    Map<String, String> map = new LinkedHashMap<String, String>(header.length * 4 / 3 + 1);
+    for (int col = 0; col < header.length; col++) {
+      int id = reference(col + 1, row);
+      if (id >= 0) {
+        map.put(header[col], string(id));
+      }
+    }
+    return map;
+  }
+
+  @Override
+  public int size() {
+    return rowCount;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return rowOf(key) >= 0;
+  }
+
+  @Override
+  public Map<String, String> get(Object key) {
+    int row = rowOf(key);
+    return (row < 0) ? null : row(row);
+  }
+
+  @Override
+  public Set<Map.Entry<String, Map<String, String>>> entrySet() {
+    if (entrySet == null) {
+      entrySet =
+          new AbstractSet<Map.Entry<String, Map<String, String>>>() {
+            public int size() {
+              return rowCount;
+            }
+
+            public Iterator<Map.Entry<String, Map<String, String>>> iterator() {
+              return new Iterator<Map.Entry<String, Map<String, String>>>() {
+                private int row = 0;
+
+                public boolean hasNext() {
+                  return row < rowCount;
+                }
+
+                public Map.Entry<String, Map<String, String>> next() {
+                  if (row >= rowCount) {
+                    throw new NoSuchElementException();
+                  }
+                  String key = string(reference(0, row));
+                  return new SimpleImmutableEntry<String, Map<String, String>>(key, row(row++));
+                }
+              };
+            }
+          };
+    }
+    return entrySet;
+  }
+
+  private static int widthFor(int maxReference) {
+    int width = 1;
+    while (width < 4 && (maxReference >>> (8 * width)) != 0) {
+      width++;
+    }
+    return width;
+  }
+
+  private static void writeBlock(DataOutputStream out, int[] references) throws IOException {
+    int max = 0;
+    for (int r : references) {
+      max = Math.max(max, r);
+    }
+    int width = widthFor(max);
+    out.writeByte(width);
+    for (int r : references) {
+      for (int shift = 8 * (width - 1); shift >= 0; shift -= 8) {
+        out.writeByte(r >>> shift);
+      }
+    }
+  }
+
+  /**
+   * Encodes a table. The columns of the snapshot are all the names that appear in any row, in
+   * order of first appearance; cells that a row lacks stay absent.
+   */
+  public static byte[] write(Map<String, ? extends Map<String, String>> table) throws IOException {
+    int rowCount = table.size();
+    Set<String> names = new LinkedHashSet<String>();
+    for (Map<String, String> row : table.values()) {
+      names.addAll(row.keySet());
+    }
+    String[] header = names.toArray(new String[names.size()]);
+
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    List<String> strings = new ArrayList<String>();
+    int[] headerIds = new int[header.length];
+    for (int col = 0; col < header.length; col++) {
+      headerIds[col] = intern(header[col], ids, strings);
+    }
+    int[] keyRefs = new int[rowCount];
+    int[][] cellRefs = new int[header.length][rowCount];
+    int row = 0;
+    for (Map.Entry<String, ? extends Map<String, String>> entry : table.entrySet()) {
+      keyRefs[row] = intern(entry.getKey(), ids, strings) + 1;
+      Map<String, String> cells = entry.getValue();
+      for (int col = 0; col < header.length; col++) {
+        String value = cells.get(header[col]);
+        cellRefs[col][row] = (value == null) ? 0 : intern(value, ids, strings) + 1;
+      }
+      row++;
+    }
+
+    int slotCount = 16;
+    while (slotCount < rowCount * 2) {
+      slotCount <<= 1;
+    }
+    int[] slots = new int[slotCount];
+    row = 0;
+    for (String key : table.keySet()) {
+      int i = spread(key.hashCode()) & (slotCount - 1);
+      while (slots[i] != 0) {
+        i = (i + 1) & (slotCount - 1);
+      }
+      slots[i] = ++row;
+    }
+
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+    int[] offsets = new int[strings.size() + 1];
+    for (int i = 0; i < strings.size(); i++) {
+      byte[] utf8 = strings.get(i).getBytes(StandardCharsets.UTF_8);
+      dictionary.write(utf8, 0, utf8.length);
+      offsets[i + 1] = dictionary.size();
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(dictionary.size() * 2 + 1024);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(rowCount);
+    out.writeInt(header.length);
+    out.writeInt(strings.size());
+    out.writeInt(slotCount);
+    for (int id : headerIds) {
+      out.writeInt(id);
+    }
+    for (int offset : offsets) {
+      out.writeInt(offset);
+    }
+    dictionary.writeTo(out);
+    writeBlock(out, keyRefs);
+    for (int col = 0; col < header.length; col++) {
+      writeBlock(out, cellRefs[col]);
+    }
+    writeBlock(out, slots);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static int intern(String s, Map<String, Integer> ids, List<String> strings) {
+    Integer id = ids.get(s);
+    if (id == null) {
+      id = strings.size();
+      ids.put(s, id);
+      strings.add(s);
+    }
+    return id;
+  }
+}
@@ -0,0 +1,338 @@
+// TypedColumn.java
+//
+// A column of a CsvTable whose values have been parsed, once, into a
+// primitive type, as declared in the schema property of CsvShredder.
+// The values live in a primitive array, rather than as one String
+// object per cell, and are written to JSON as numbers or booleans. For
+// the Map<String,String> view of the table, each value is formatted
+// back into text on demand.
+//
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+
+abstract class TypedColumn implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // the rows that hold a value; an empty cell, or one that did not parse, holds none
+  private final BitSet present = new BitSet();
+
+  /** The name of the type, as it appears in the schema. */
+  abstract String typeName();
+
+  /** A new, empty column of the same type. */
+  abstract TypedColumn newColumn(int capacity);
+
+  abstract void ensureCapacity(int capacity);
+
+  /** Stores the parsed value. Throws IllegalArgumentException if the text does not parse. */
+  abstract void parse(int row, String text);
+
+  abstract String format(int row);
+
+  abstract void write(JsonGenerator gen, int row) throws IOException;
+
+  /** Copies the value of one row to another, which may be in another column of the same type. */
+  abstract void copyValue(int from, TypedColumn to, int toRow);
+
+  boolean has(int row) {
+    return present.get(row);
+  }
+
+  /** Parses and stores a value; an empty or null text leaves the cell absent. */
+  final void set(int row, String text) {
+    present.clear(row);
+    if (text != null && !text.isEmpty()) {
+      parse(row, text);
+      present.set(row);
+    }
+  }
+
+  final String get(int row) {
+    return present.get(row) ? format(row) : null;
+  }
+
+  /** Returns a copy with the given rows, in order, of this column. */
+  final TypedColumn select(int[] rows, int count) {
+    TypedColumn copy = newColumn(count);
+    for (int i = 0; i < count; i++) {
+      if (present.get(rows[i])) {
+        copyValue(rows[i], copy, i);
+        copy.present.set(i);
+      }
+    }
+    return copy;
+  }
+
+  /** Returns a copy of the first rows of this column, with room for more. */
+  final TypedColumn copy(int rows, int capacity) {
+    TypedColumn copy = newColumn(capacity);
+    for (int row = present.nextSetBit(0); row >= 0 && row < rows; ) {
+      copyValue(row, copy, row);
+      copy.present.set(row);
+      row = present.nextSetBit(row + 1);
+    }
+    return copy;
+  }
+
+  static final class IntColumn extends TypedColumn {
+    private static final long serialVersionUID = 1L;
+    private int[] values;
+
+    IntColumn(int capacity) {
+      values = new int[capacity];
+    }
+
+    String typeName() {
+      return "int";
+    }
+
+    TypedColumn newColumn(int capacity) {
+      return new IntColumn(capacity);
+    }
+
+    void ensureCapacity(int capacity) {
+      if (capacity > values.length) {
+        values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+      }
+    }
+
+    void parse(int row, String text) {
+      values[row] = Integer.parseInt(text.trim());
+    }
+
+    String format(int row) {
+      return Integer.toString(values[row]);
+    }
+
+    void write(JsonGenerator gen, int row) throws IOException {
+      gen.writeNumber(values[row]);
+    }
+
+    void copyValue(int from, TypedColumn to, int toRow) {
+      ((IntColumn) to).values[toRow] = values[from];
+    }
+  }
+
+  static class LongColumn extends TypedColumn {
+    private static final long serialVersionUID = 1L;
+    long[] values;
+
+    LongColumn(int capacity) {
+      values = new long[capacity];
+    }
+
+    String typeName() {
+      return "long";
+    }
+
+    TypedColumn newColumn(int capacity) {
+      return new LongColumn(capacity);
+    }
+
+    void ensureCapacity(int capacity) {
+      if (capacity > values.length) {
+        values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+      }
+    }
+
+    void parse(int row, String text) {
+      values[row] = Long.parseLong(text.trim());
+    }
+
+    String format(int row) {
+      return Long.toString(values[row]);
+    }
+
+    void write(JsonGenerator gen, int row) throws IOException {
+      gen.writeNumber(values[row]);
+    }
+
+    void copyValue(int from, TypedColumn to, int toRow) {
+      ((LongColumn) to).values[toRow] = values[from];
+    }
+  }
+
+  static final class DoubleColumn extends TypedColumn {
+    private static final long serialVersionUID = 1L;
+    private double[] values;
+
+    DoubleColumn(int capacity) {
+      values = new double[capacity];
+    }
+
+    String typeName() {
+      return "double";
+    }
+
+    TypedColumn newColumn(int capacity) {
+      return new DoubleColumn(capacity);
+    }
+
+    void ensureCapacity(int capacity) {
+      if (capacity > values.length) {
+        values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+      }
+    }
+
+    void parse(int row, String text) {
+      double value = Double.parseDouble(text.trim());
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        throw new IllegalArgumentException("not a finite number"); // JSON has no form for these
+      }
+      values[row] = value;
+    }
+
+    String format(int row) {
+      return Double.toString(values[row]);
+    }
+
+    void write(JsonGenerator gen, int row) throws IOException {
+      gen.writeNumber(values[row]);
+    }
+
+    void copyValue(int from, TypedColumn to, int toRow) {
+      ((DoubleColumn) to).values[toRow] = values[from];
+    }
+  }
+
+  static final class BooleanColumn extends TypedColumn {
+    private static final long serialVersionUID = 1L;
+    private final BitSet values;
+
+    BooleanColumn(int capacity) {
+      values = new BitSet(capacity);
+    }
+
+    String typeName() {
+      return "boolean";
+    }
+
+    TypedColumn newColumn(int capacity) {
+      return new BooleanColumn(capacity);
+    }
+
+    void ensureCapacity(int capacity) {
+      // a BitSet grows by itself
+    }
+
+    void parse(int row, String text) {
+      text = text.trim();
+      if (text.equalsIgnoreCase("true")) {
+        values.set(row);
+      } else if (text.equalsIgnoreCase("false")) {
+        values.clear(row);
+      } else {
+        throw new IllegalArgumentException("not true or false");
+      }
+    }
+
+    String format(int row) {
+      return Boolean.toString(values.get(row));
+    }
+
+    void write(JsonGenerator gen, int row) throws IOException {
+      gen.writeBoolean(values.get(row));
+    }
+
+    void copyValue(int from, TypedColumn to, int toRow) {
+      ((BooleanColumn) to).values.set(toRow, values.get(from));
+    }
+  }
+
+  /**
+   * Dates and times, held as milliseconds since the epoch, UTC, and formatted as ISO-8601. Text
+   * that carries no zone or offset is taken to be UTC; text that carries no time of day is taken
+   * to be midnight.
+   */
+  static final class DateColumn extends LongColumn {
+    private static final long serialVersionUID = 1L;
+    private final String pattern; // null for ISO-8601
+    private transient DateTimeFormatter formatter;
+
+    DateColumn(String pattern, int capacity) {
+      super(capacity);
+      this.pattern = pattern;
+    }
+
+    String typeName() {
+      return (pattern == null) ? "date" : "date(" + pattern + ")";
+    }
+
+    TypedColumn newColumn(int capacity) {
+      DateColumn column = new DateColumn(pattern, capacity);
+      column.formatter = formatter;
+      return column;
+    }
+
+    /** Throws IllegalArgumentException if the pattern is not valid. */
+    DateTimeFormatter getFormatter() {
+      if (formatter == null) {
+        formatter =
+            (pattern == null)
+                ? DateTimeFormatter.ISO_DATE_TIME
+                : DateTimeFormatter.ofPattern(pattern, Locale.US);
+      }
+      return formatter;
+    }
+
+    void parse(int row, String text) {
+      try {
+        values[row] = toEpochMilli(text.trim());
+      } catch (DateTimeException exc1) {
+        throw new IllegalArgumentException(exc1.getMessage());
+      }
+    }
+
+    private long toEpochMilli(String text) {
+      if (pattern == null && text.length() == 10) {
+        return LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+      }
+      TemporalAccessor parsed = getFormatter().parse(text);
+      if (parsed.isSupported(ChronoField.INSTANT_SECONDS)) {
+        return Instant.from(parsed).toEpochMilli();
+      }
+      if (parsed.isSupported(ChronoField.HOUR_OF_DAY)) {
+        return LocalDateTime.from(parsed).toInstant(ZoneOffset.UTC).toEpochMilli();
+      }
+      return LocalDate.from(parsed).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    String format(int row) {
+      return Instant.ofEpochMilli(values[row]).toString();
+    }
+
+    void write(JsonGenerator gen, int row) throws IOException {
+      gen.writeString(format(row));
+    }
+  }
+}
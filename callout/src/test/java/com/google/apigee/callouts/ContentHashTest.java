@@ -0,0 +1,65 @@
+// Copyright 2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ContentHashTest {
+
+  private static String digest(String s, boolean sha256) {
+    return ContentHash.digest(s.getBytes(StandardCharsets.UTF_8), sha256);
+  }
+
+  @Test
+  public void matchesReferenceValues() {
+    Assert.assertEquals(digest("", false), "xxh64:ef46db3751d8e999");
+    Assert.assertEquals(digest("abc", false), "xxh64:44bc2cf5ad770999");
+    // long enough for the 32-byte stripes, with 8-byte, 4-byte and single-byte tails
+    Assert.assertEquals(
+        digest("Nobody inspects the spammish repetition", false), "xxh64:fbcea83c8a378bf1");
+    Assert.assertEquals(
+        digest("abc", true),
+        "sha-256:ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+  }
+
+  @Test
+  public void hashesOnlyTheGivenRange() {
+    byte[] content = "xxabcxx".getBytes(StandardCharsets.UTF_8);
+    Assert.assertEquals(ContentHash.xxh64(content, 2, 3, 0), 0x44bc2cf5ad770999L);
+  }
+
+  @Test
+  public void streamedDigestMatchesWholeDigest() throws Exception {
+    Random random = new Random(23L);
+    for (int length : new int[] {0, 1, 31, 32, 33, 64, 100, 1000, 70000}) {
+      byte[] content = new byte[length];
+      random.nextBytes(content);
+      for (boolean sha256 : new boolean[] {false, true}) {
+        // read in pieces of random size, so stripes are split every which way
+        ContentHash.HashingInputStream in =
+            new ContentHash.HashingInputStream(new ByteArrayInputStream(content), sha256);
+        byte[] buffer = new byte[97];
+        while (in.read(buffer, 0, 1 + random.nextInt(buffer.length)) != -1) {}
+        Assert.assertEquals(in.digest(), ContentHash.digest(content, sha256), "length " + length);
+      }
+    }
+  }
+}
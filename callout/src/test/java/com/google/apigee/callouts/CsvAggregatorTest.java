@@ -0,0 +1,244 @@
+// Copyright 2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import mockit.Mock;
+import mockit.MockUp;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CsvAggregatorTest {
+  private static final String testDataDir = "src/test/resources/test-data";
+
+  MessageContext msgCtxt;
+  String messageContent;
+  Message message;
+  ExecutionContext exeCtxt;
+
+  @BeforeMethod()
+  public void testSetup1() {
+    msgCtxt =
+        new MockUp<MessageContext>() {
+          private Map<String, Object> variables;
+
+          public void $init() {
+            variables = new HashMap<String, Object>();
+          }
+
+          @Mock()
+          public Object getVariable(final String name) {
+            if (variables == null) {
+              variables = new HashMap<String, Object>();
+            }
+            return variables.get(name);
+          }
+
+          @Mock()
+          public boolean setVariable(final String name, final Object value) {
+            if (variables == null) {
+              variables = new HashMap<String, Object>();
+            }
+            variables.put(name, value);
+            return true;
+          }
+
+          @Mock()
+          public boolean removeVariable(final String name) {
+            if (variables == null) {
+              variables = new HashMap<String, Object>();
+            }
+            variables.remove(name);
+            return true;
+          }
+
+          @Mock()
+          public Message getMessage() {
+            return message;
+          }
+        }.getMockInstance();
+
+    exeCtxt = new MockUp<ExecutionContext>() {}.getMockInstance();
+
+    message =
+        new MockUp<Message>() {
+          @Mock()
+          public InputStream getContentAsStream() {
+            return new ByteArrayInputStream(messageContent.getBytes(StandardCharsets.UTF_8));
+          }
+        }.getMockInstance();
+  }
+
+  private String readAllText(String filename) throws IOException {
+    return new String(Files.readAllBytes(Paths.get(testDataDir, filename)), StandardCharsets.UTF_8);
+  }
+
+  private JsonNode aggregate(Properties properties) throws Exception {
+    CsvAggregator callout = new CsvAggregator(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    return new ObjectMapper().readTree((String) msgCtxt.getVariable("csv_result_json"));
+  }
+
+  @Test
+  public void summaryOfOneGroup() throws Exception {
+    messageContent = readAllText("sample5.csv");
+    Properties properties = new Properties();
+    properties.put("group-by", "city, type");
+    properties.put(
+        "aggregates",
+        "count, sum(price), avg(beds), min(sqft), max(sqft), distinct(zip), p50(price)");
+    JsonNode groups = aggregate(properties);
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "5");
+    Assert.assertEquals(msgCtxt.getVariable("csv_groups"), "1");
+    JsonNode group = groups.get(0);
+    Assert.assertEquals(group.get("city").asText(), "SACRAMENTO");
+    Assert.assertEquals(group.get("type").asText(), "Residential");
+    Assert.assertEquals(group.get("count").asLong(), 5);
+    Assert.assertEquals(group.get("sum(price)").asLong(), 347521);
+    Assert.assertTrue(group.get("sum(price)").isIntegralNumber());
+    Assert.assertEquals(group.get("avg(beds)").asDouble(), 2.2, 1e-9);
+    Assert.assertEquals(group.get("min(sqft)").asLong(), 796);
+    Assert.assertEquals(group.get("max(sqft)").asLong(), 1167);
+    Assert.assertEquals(group.get("distinct(zip)").asLong(), 4);
+    Assert.assertEquals(group.get("p50(price)").asDouble(), 68880, 68880 * 0.01);
+  }
+
+  @Test
+  public void groupsWithWhere() throws Exception {
+    messageContent = readAllText("sample5.csv");
+    Properties properties = new Properties();
+    properties.put("group-by", "zip");
+    properties.put("aggregates", "count, max(price)");
+    properties.put("where", "price > 60000");
+    properties.put("json-output", "compact");
+    JsonNode groups = aggregate(properties);
+    Assert.assertEquals(
+        groups.toString(),
+        "[{\"zip\":\"95823\",\"count\":1,\"max(price)\":68212},"
+            + "{\"zip\":\"95815\",\"count\":2,\"max(price)\":69307},"
+            + "{\"zip\":\"95824\",\"count\":1,\"max(price)\":81900}]");
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "4");
+  }
+
+  @Test
+  public void aggregateShreddedTable() throws Exception {
+    messageContent = readAllText("sample1000.csv");
+    Properties shredProperties = new Properties();
+    shredProperties.put("output-format", "table");
+    shredProperties.put("trim-spaces", "true");
+    shredProperties.put("json-output", "none");
+    CsvShredder shredder = new CsvShredder(shredProperties);
+    Assert.assertEquals(shredder.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    @SuppressWarnings("unchecked")
+    Map<String, Map<String, String>> table =
+        (Map<String, Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+
+    Properties properties = new Properties();
+    properties.put("mapVariable", "csv_result_java");
+    properties.put("aggregates", "count, count(RAND), distinct(ID), p90(RAND), sum(RAND)");
+    JsonNode group = aggregate(properties).get(0);
+    Assert.assertEquals(group.get("count").asLong(), 1000);
+    Assert.assertEquals(group.get("count(RAND)").asLong(), 1000);
+    Assert.assertEquals(group.get("distinct(ID)").asDouble(), 1000, 1000 * 0.03);
+
+    double[] values = new double[table.size()];
+    double sum = 0;
+    int i = 0;
+    for (Map<String, String> row : table.values()) {
+      values[i] = Double.parseDouble(row.get("RAND"));
+      sum += values[i++];
+    }
+    Arrays.sort(values);
+    double p90 = values[(int) Math.floor(0.9 * (values.length - 1))];
+    Assert.assertEquals(group.get("p90(RAND)").asDouble(), p90, p90 * 0.01);
+    Assert.assertEquals(group.get("sum(RAND)").asDouble(), sum, 1e-6);
+  }
+
+  @Test
+  public void groupsShortRecordsByColumnsOutOfHeaderOrder() throws Exception {
+    // the second record lacks c, the grouping column, but still has a
+    messageContent = "a,b,c\n1,x,g\n2,y\n3,z,g\n";
+    Properties properties = new Properties();
+    properties.put("group-by", "c");
+    properties.put("aggregates", "count, sum(a)");
+    properties.put("json-output", "compact");
+    JsonNode groups = aggregate(properties);
+    Assert.assertEquals(
+        groups.toString(),
+        "[{\"c\":\"g\",\"count\":2,\"sum(a)\":4},{\"c\":null,\"count\":1,\"sum(a)\":2}]");
+  }
+
+  @Test
+  public void invalidConfiguration() throws Exception {
+    messageContent = readAllText("sample5.csv");
+    Properties properties = new Properties();
+    properties.put("aggregates", "median(price)");
+    Assert.assertEquals(
+        new CsvAggregator(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("csv_error"), "aggregates: unsupported aggregate median(price)");
+
+    properties.put("aggregates", "sum(bedrooms)");
+    Assert.assertEquals(
+        new CsvAggregator(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_error"), "there is no column named bedrooms");
+
+    properties.put("aggregates", "count");
+    properties.put("group-by", "street");
+    properties.put("max-groups", "4");
+    Assert.assertEquals(
+        new CsvAggregator(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("csv_error"), "the data has more than max-groups (4).");
+  }
+
+  @Test
+  public void sketchesAreAccurate() {
+    DistinctCounter distinct = new DistinctCounter();
+    QuantileSketch sketch = new QuantileSketch();
+    Random random = new Random(7);
+    double[] values = new double[200000];
+    for (int i = 0; i < values.length; i++) {
+      distinct.add("key-" + (i % 50000));
+      values[i] = random.nextGaussian() * 1000;
+      sketch.add(values[i]);
+    }
+    Assert.assertEquals(distinct.estimate(), 50000, 50000 * 0.05);
+    Arrays.sort(values);
+    for (double q : new double[] {0.01, 0.25, 0.5, 0.75, 0.99}) {
+      double expected = values[(int) Math.floor(q * (values.length - 1))];
+      Assert.assertEquals(sketch.quantile(q), expected, Math.abs(expected) * 0.011, "q " + q);
+    }
+  }
+}
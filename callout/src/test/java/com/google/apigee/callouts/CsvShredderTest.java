@@ -20,32 +20,56 @@ import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 import mockit.Mock;
 import mockit.MockUp;
 import org.testng.Assert;
+import org.testng.SkipException;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 public class CsvShredderTest {
   private static final String testDataDir = "src/test/resources/test-data";
+  // about 1400 bytes on Java 8; formatting each contrived key with String.format took it past 2300
+  private static final long ALLOCATION_BUDGET_PER_ROW = 1800;
 
   MessageContext msgCtxt;
   String messageContent;
+  byte[] messageBytes; // when set, used instead of messageContent
+  Map<String, String> requestHeaders;
+  InputStream newContent;
+  Map<String, Object> headers;
   Message message;
   ExecutionContext exeCtxt;
 
   @BeforeMethod()
   public void testSetup1() {
+    newContent = null;
+    messageBytes = null;
+    requestHeaders = new HashMap<String, String>();
+    headers = new HashMap<String, Object>();
 
     msgCtxt =
         new MockUp<MessageContext>() {
@@ -95,8 +119,27 @@ public class CsvShredderTest {
         new MockUp<Message>() {
           @Mock()
           public InputStream getContentAsStream() {
+            if (messageBytes != null) {
+              return new ByteArrayInputStream(messageBytes);
+            }
             return new ByteArrayInputStream(messageContent.getBytes(StandardCharsets.UTF_8));
           }
+
+          @Mock()
+          public String getHeader(final String name) {
+            return requestHeaders.get(name.toLowerCase());
+          }
+
+          @Mock()
+          public void setContent(InputStream is) {
+            newContent = is;
+          }
+
+          @Mock()
+          public boolean setHeader(final String name, final Object value) {
+            headers.put(name.toLowerCase(), value);
+            return true;
+          }
         }.getMockInstance();
   }
 
@@ -243,4 +286,1512 @@ public class CsvShredderTest {
         item.get("URI Resource Path"),
         "/DBTFM/v2/scheduled-transfers/{SysCde}/{SndAcctNbr}/{SeqNbr}");
   }
+
+  @Test
+  public void jsonOutputNone() throws Exception {
+    messageContent = readAllText("sample5.csv");
+    Properties properties = new Properties();
+    properties.put("json-output", "none");
+    CsvShredder callout = new CsvShredder(properties);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "5");
+    Assert.assertNull(msgCtxt.getVariable("csv_result_json"));
+    Assert.assertNotNull(msgCtxt.getVariable("csv_result_java"));
+  }
+
+  @Test
+  public void jsonOutputCompact() throws Exception {
+    messageContent = readAllText("sample5.csv");
+    Properties properties = new Properties();
+    properties.put("json-output", "compact");
+    CsvShredder callout = new CsvShredder(properties);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS);
+    String json = (String) msgCtxt.getVariable("csv_result_json");
+    Assert.assertNotNull(json);
+    Assert.assertEquals(json.indexOf('\n'), -1);
+    Assert.assertTrue(json.contains("\"price\":\"81900\""));
+  }
+
+  @Test
+  public void jsonOutputLazy() throws Exception {
+    messageContent = readAllText("sample5.csv");
+    Properties properties = new Properties();
+    properties.put("json-output", "lazy");
+    CsvShredder callout = new CsvShredder(properties);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS);
+    Object lazy = msgCtxt.getVariable("csv_result_json");
+    Assert.assertNotNull(lazy);
+    Assert.assertFalse(lazy instanceof String);
+    String json = lazy.toString();
+    Assert.assertTrue(json.contains("\"price\" : \"81900\""));
+    Assert.assertSame(lazy.toString(), json);
+  }
+
+  @Test
+  public void jsonOutputInvalid() throws Exception {
+    messageContent = readAllText("sample5.csv");
+    Properties properties = new Properties();
+    properties.put("json-output", "fancy");
+    CsvShredder callout = new CsvShredder(properties);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_error"), "json-output");
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Map<String, String>> shred(String filename, Properties properties)
+      throws Exception {
+    messageContent = readAllText(filename);
+    CsvShredder callout = new CsvShredder(properties);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS);
+    return (Map<String, Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+  }
+
+  @Test
+  public void tableMatchesMap() throws Exception {
+    Properties properties = new Properties();
+    properties.put("trim-spaces", "true");
+    Map<String, Map<String, String>> map = shred("sample1000.csv", properties);
+    properties.put("output-format", "table");
+    Map<String, Map<String, String>> table = shred("sample1000.csv", properties);
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_format"), "table");
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "1000");
+    Assert.assertTrue(table instanceof CsvTable);
+    Assert.assertEquals(table.size(), map.size());
+    for (Map.Entry<String, Map<String, String>> entry : map.entrySet()) {
+      Assert.assertEquals(table.get(entry.getKey()), entry.getValue(), entry.getKey());
+    }
+    Assert.assertEquals(table, map);
+    Assert.assertNull(table.get("no-such-key"));
+  }
+
+  @Test
+  public void tableDuplicateKeysLastWins() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    Map<String, Map<String, String>> table = shred("sample37.csv", properties);
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "4");
+    Assert.assertEquals(
+        table.get("PUT").get("URI Resource Path"),
+        "/DBTCI/v2/customers/{CustNbr}/phone-numbers/{ResnCde}");
+  }
+
+  @Test(expectedExceptions = UnsupportedOperationException.class)
+  public void tableIsReadOnly() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    Map<String, Map<String, String>> table = shred("sample5.csv", properties);
+    table.get("6001 MCMAHON DR").put("price", "1");
+  }
+
+  @Test
+  public void tableSurvivesSerialization() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("contrive-primary-key", "true");
+    Map<String, Map<String, String>> table = shred("sample37.csv", properties);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(table);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    @SuppressWarnings("unchecked")
+    Map<String, Map<String, String>> copy = (Map<String, Map<String, String>>) in.readObject();
+
+    Assert.assertEquals(copy.size(), 37);
+    Assert.assertEquals(copy, table);
+    Assert.assertEquals(copy.get("0000000025").get("#Method"), "DELETE");
+  }
+
+  @Test
+  public void extractFromTable() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    Map<String, Map<String, String>> table = shred("sample5.csv", properties);
+    msgCtxt.setVariable("csv_map", table);
+    msgCtxt.setVariable("extracted.fieldname", "6001%20MCMAHON%20DR");
+
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("fieldnameVariable", "extracted.fieldname");
+    extractorProperties.put("mapVariable", "csv_map");
+    MapExtractor extractor = new MapExtractor(extractorProperties);
+    ExecutionResult actualResult = extractor.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS);
+    String json = (String) msgCtxt.getVariable("csv_result_json");
+    Assert.assertTrue(json.contains("\"price\" : \"81900\""));
+  }
+
+  @Test
+  public void extractFromTableCache() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("cache-name", "{request.queryparam.name}");
+    msgCtxt.setVariable("request.queryparam.name", "sample5");
+    shred("sample5.csv", properties);
+    Assert.assertNotNull(msgCtxt.getVariable("csv_content_hash"));
+
+    // a fresh context, as for a subsequent request
+    testSetup1();
+    msgCtxt.setVariable("extracted.mapname", "sample5");
+    msgCtxt.setVariable("extracted.fieldname", "6001%20MCMAHON%20DR");
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("fieldnameVariable", "extracted.fieldname");
+    extractorProperties.put("cache-name", "{extracted.mapname}");
+    MapExtractor extractor = new MapExtractor(extractorProperties);
+    ExecutionResult actualResult = extractor.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "true");
+    String json = (String) msgCtxt.getVariable("csv_result_json");
+    Assert.assertTrue(json.contains("\"price\" : \"81900\""));
+
+    msgCtxt.setVariable("extracted.mapname", "not-cached");
+    actualResult = extractor.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "false");
+  }
+
+  @Test
+  public void extractPrecomputedRowJson() throws Exception {
+    Properties properties = new Properties();
+    properties.put("precompute-row-json", "true");
+    properties.put("cache-name", "sample5-rowjson");
+    Map<String, Map<String, String>> map = shred("sample5.csv", properties);
+    @SuppressWarnings("unchecked")
+    Map<String, String> rowJson = (Map<String, String>) msgCtxt.getVariable("csv_result_rowjson");
+    Assert.assertEquals(rowJson.size(), map.size());
+
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("fieldnameVariable", "extracted.fieldname");
+    extractorProperties.put("mapVariable", "csv_map");
+    MapExtractor extractor = new MapExtractor(extractorProperties);
+
+    // the precomputed JSON is identical to the JSON serialized per lookup
+    msgCtxt.setVariable("extracted.fieldname", "6001%20MCMAHON%20DR");
+    msgCtxt.setVariable("csv_map", map);
+    Assert.assertEquals(extractor.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    String expected = (String) msgCtxt.getVariable("csv_result_json");
+    msgCtxt.setVariable("csv_map", rowJson);
+    Assert.assertEquals(extractor.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_json"), expected);
+
+    // and the table cache serves the precomputed JSON
+    extractorProperties.put("cache-name", "sample5-rowjson");
+    msgCtxt.removeVariable("csv_map");
+    extractor = new MapExtractor(extractorProperties);
+    Assert.assertEquals(extractor.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_json"), expected);
+
+    msgCtxt.setVariable("extracted.fieldname", "nonexistent");
+    Assert.assertEquals(extractor.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_json"), "{}");
+  }
+
+  @Test
+  public void precomputeRowJsonRejectsList() throws Exception {
+    messageContent = readAllText("sample5.csv");
+    Properties properties = new Properties();
+    properties.put("precompute-row-json", "true");
+    properties.put("output-format", "list");
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+  }
+
+  @Test
+  public void extractBatch() throws Exception {
+    Properties properties = new Properties();
+    properties.put("trim-spaces", "true");
+    Map<String, Map<String, String>> map = shred("sample1000.csv", properties);
+    msgCtxt.setVariable("csv_map", map);
+    msgCtxt.setVariable("request.queryparam.keys", "000165, 000672,nope,000165,000988");
+
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("keysVariable", "request.queryparam.keys");
+    extractorProperties.put("mapVariable", "csv_map");
+    MapExtractor extractor = new MapExtractor(extractorProperties);
+    Assert.assertEquals(extractor.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_keys_found"), "3");
+    Assert.assertEquals(msgCtxt.getVariable("csv_keys_missing"), "1");
+
+    JsonNode result =
+        new ObjectMapper().readTree((String) msgCtxt.getVariable("csv_result_json"));
+    Assert.assertEquals(result.get("found").size(), 3);
+    Assert.assertEquals(result.get("found").get("000672").get("RAND").asText(), "42656");
+    Assert.assertEquals(result.get("missing").size(), 1);
+    Assert.assertEquals(result.get("missing").get(0).asText(), "nope");
+  }
+
+  @Test
+  public void extractBatchDecodesKeys() throws Exception {
+    Map<String, Map<String, String>> map = new HashMap<String, Map<String, String>>();
+    map.put("a,b", Collections.singletonMap("name", "comma"));
+    map.put("c d", Collections.singletonMap("name", "space"));
+    msgCtxt.setVariable("csv_map", map);
+    msgCtxt.setVariable("request.queryparam.keys", "a%2Cb,c+d,c%20d,e%26f");
+
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("keysVariable", "request.queryparam.keys");
+    extractorProperties.put("mapVariable", "csv_map");
+    MapExtractor extractor = new MapExtractor(extractorProperties);
+    Assert.assertEquals(extractor.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_keys_found"), "2");
+    Assert.assertEquals(msgCtxt.getVariable("csv_keys_missing"), "1");
+
+    JsonNode result =
+        new ObjectMapper().readTree((String) msgCtxt.getVariable("csv_result_json"));
+    Assert.assertEquals(result.get("found").get("a,b").get("name").asText(), "comma");
+    Assert.assertEquals(result.get("found").get("c d").get("name").asText(), "space");
+    Assert.assertEquals(result.get("missing").get(0).asText(), "e&f");
+  }
+
+  @Test
+  public void extractBatchFromBodyDoesNotDecodeKeys() throws Exception {
+    Map<String, Map<String, String>> map = new HashMap<String, Map<String, String>>();
+    map.put("a+b", Collections.singletonMap("name", "plus"));
+    map.put("50%", Collections.singletonMap("name", "percent"));
+    map.put("a b", Collections.singletonMap("name", "space"));
+    msgCtxt.setVariable("csv_map", map);
+    messageContent = "[\"a+b\", \"50%\", \"c%20d\"]";
+
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("keys-from-body", "true");
+    extractorProperties.put("mapVariable", "csv_map");
+    MapExtractor extractor = new MapExtractor(extractorProperties);
+    Assert.assertEquals(extractor.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    JsonNode result =
+        new ObjectMapper().readTree((String) msgCtxt.getVariable("csv_result_json"));
+    Assert.assertEquals(result.get("found").size(), 2);
+    Assert.assertEquals(result.get("found").get("a+b").get("name").asText(), "plus");
+    Assert.assertEquals(result.get("found").get("50%").get("name").asText(), "percent");
+    Assert.assertEquals(result.get("missing").get(0).asText(), "c%20d");
+  }
+
+  @Test
+  public void extractBatchFromBodyWithPrecomputedJson() throws Exception {
+    Properties properties = new Properties();
+    properties.put("trim-spaces", "true");
+    properties.put("precompute-row-json", "true");
+    shred("sample1000.csv", properties);
+    msgCtxt.setVariable("csv_map", msgCtxt.getVariable("csv_result_rowjson"));
+    messageContent = "[\"000165\", \"000988\", \"missing\"]";
+
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("keys-from-body", "true");
+    extractorProperties.put("mapVariable", "csv_map");
+    MapExtractor extractor = new MapExtractor(extractorProperties);
+    Assert.assertEquals(extractor.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    JsonNode result =
+        new ObjectMapper().readTree((String) msgCtxt.getVariable("csv_result_json"));
+    Assert.assertEquals(result.get("found").get("000165").get("RAND").asText(), "24974");
+    Assert.assertEquals(result.get("found").get("000988").get("RAND").asText(), "25784");
+    Assert.assertEquals(result.get("missing").get(0).asText(), "missing");
+  }
+
+  private JsonNode query(Properties extractorProperties) throws Exception {
+    MapExtractor extractor = new MapExtractor(extractorProperties);
+    Assert.assertEquals(extractor.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    return new ObjectMapper().readTree((String) msgCtxt.getVariable("csv_result_json"));
+  }
+
+  @Test
+  public void queryByIndexedColumns() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("index-columns", "city, type");
+    properties.put("sorted-index-columns", "zip,price");
+    properties.put("cache-name", "sample5-indexed");
+    shred("sample5.csv", properties);
+    Assert.assertNotNull(msgCtxt.getVariable("csv_result_indexes"));
+
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("cache-name", "sample5-indexed");
+    extractorProperties.put("where-column", "city");
+    extractorProperties.put("where-value", "SACRAMENTO");
+    JsonNode result = query(extractorProperties);
+    Assert.assertEquals(result.get("matches").size(), 5);
+    Assert.assertFalse(result.get("truncated").asBoolean());
+
+    extractorProperties.put("max-results", "2");
+    result = query(extractorProperties);
+    Assert.assertEquals(result.get("matches").size(), 2);
+    Assert.assertTrue(result.get("truncated").asBoolean());
+    extractorProperties.remove("max-results");
+
+    extractorProperties.put("where-column", "zip");
+    extractorProperties.put("where-value", "95824");
+    result = query(extractorProperties);
+    Assert.assertEquals(result.get("matches").size(), 1);
+    Assert.assertEquals(
+        result.get("matches").get("6001 MCMAHON DR").get("price").asText(), "81900");
+
+    extractorProperties.remove("where-value");
+    extractorProperties.put("where-prefix", "9581");
+    result = query(extractorProperties);
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_matched"), "2");
+
+    extractorProperties.remove("where-prefix");
+    extractorProperties.put("where-column", "price");
+    extractorProperties.put("where-from", "68212");
+    extractorProperties.put("where-to", "69307");
+    result = query(extractorProperties);
+    Assert.assertEquals(result.get("matches").size(), 3);
+  }
+
+  @Test
+  public void queryWithoutIndexFails() throws Exception {
+    Properties properties = new Properties();
+    properties.put("index-columns", "city");
+    Map<String, Map<String, String>> map = shred("sample5.csv", properties);
+    msgCtxt.setVariable("csv_map", map);
+    msgCtxt.setVariable("csv_indexes", msgCtxt.getVariable("csv_result_indexes"));
+
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("mapVariable", "csv_map");
+    extractorProperties.put("indexVariable", "csv_indexes");
+    extractorProperties.put("where-column", "city");
+    extractorProperties.put("where-prefix", "SAC");
+    MapExtractor extractor = new MapExtractor(extractorProperties);
+    Assert.assertEquals(extractor.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_error"), "there is no sorted index on column city");
+
+    extractorProperties.remove("where-prefix");
+    extractorProperties.put("where-value", "SACRAMENTO");
+    JsonNode result = query(extractorProperties);
+    Assert.assertEquals(result.get("matches").size(), 5);
+  }
+
+  private byte[] readAllBytes(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000]; // small, to exercise the refill logic
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private String readAll(InputStream in) throws IOException {
+    return new String(readAllBytes(in), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void streamJsonArray() throws Exception {
+    messageContent = readAllText("sample1000.csv");
+    Properties properties = new Properties();
+    properties.put("trim-spaces", "true");
+    properties.put("stream-output", "json-array");
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertNull(msgCtxt.getVariable("csv_result_java"));
+    Assert.assertEquals(headers.get("content-type"), "application/json");
+    Assert.assertNotNull(newContent);
+
+    JsonNode result = new ObjectMapper().readTree(readAll(newContent));
+    Assert.assertTrue(result.isArray());
+    Assert.assertEquals(result.size(), 1000);
+    Assert.assertEquals(result.get(165).get("RAND").asText(), "24974");
+  }
+
+  @Test
+  public void streamNdjson() throws Exception {
+    messageContent = readAllText("sample37.csv");
+    Properties properties = new Properties();
+    properties.put("stream-output", "ndjson");
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_format"), "ndjson");
+
+    String[] lines = readAll(newContent).split("\n");
+    Assert.assertEquals(lines.length, 37);
+    JsonNode item = new ObjectMapper().readTree(lines[13]);
+    Assert.assertEquals(item.get("#Method").asText(), "POST");
+    Assert.assertEquals(
+        item.get("URI Resource Path").asText(),
+        "/DBTLN/v2/accounts/{AcctNbr}/notes/{NoteNbr}/collateral");
+  }
+
+  @Test
+  public void streamDuplicateHeaderNamesLastWins() throws Exception {
+    // as in csv_result_java, the last of the repeated names wins, and short records omit it
+    messageContent = "a,b,a\n1,2,3\n4,5\n";
+    String expected = "[{\"a\":\"3\",\"b\":\"2\"},{\"b\":\"5\"}]";
+    for (String parser : new String[] {"commons", "fast"}) {
+      Properties properties = new Properties();
+      properties.put("parser", parser);
+      properties.put("stream-output", "json-array");
+      CsvShredder callout = new CsvShredder(properties);
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+      Assert.assertEquals(readAll(newContent).replaceAll("\\s", ""), expected, parser);
+
+      properties.put("output-encoding", "columnar");
+      callout = new CsvShredder(properties);
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+      Assert.assertEquals(
+          decodeColumnar(readAllBytes(newContent)),
+          new ObjectMapper().readValue(expected, List.class),
+          parser);
+    }
+  }
+
+  @Test
+  public void fastParserMatchesDefault() throws Exception {
+    for (String format : new String[] {"map", "table"}) {
+      Properties properties = new Properties();
+      properties.put("trim-spaces", "true");
+      properties.put("output-format", format);
+      Map<String, Map<String, String>> expected = shred("sample1000.csv", properties);
+      properties.put("parser", "fast");
+      Map<String, Map<String, String>> actual = shred("sample1000.csv", properties);
+      Assert.assertEquals(actual, expected);
+      Assert.assertEquals(actual.get("000672").get("RAND"), "42656");
+    }
+  }
+
+  @Test
+  public void parallelParseMatchesSequential() throws Exception {
+    for (String format : new String[] {"map", "list", "table"}) {
+      for (String parser : new String[] {"commons", "fast"}) {
+        Properties properties = new Properties();
+        properties.put("output-format", format);
+        properties.put("parser", parser);
+        properties.put("contrive-primary-key", "true");
+        messageContent = readAllText("sample1000.csv");
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt);
+        Object expected = msgCtxt.getVariable("csv_result_java");
+        properties.put("parallel-threshold", "1");
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt);
+        Object actual = msgCtxt.getVariable("csv_result_java");
+        Assert.assertEquals(actual, expected, format + "/" + parser);
+        Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "1000");
+      }
+    }
+  }
+
+  @Test
+  public void allocationPerRowWithinBudget() throws Exception {
+    // 20000 records of 10 short cells, about 70 bytes each
+    StringBuilder sb = new StringBuilder("c0,c1,c2,c3,c4,c5,c6,c7,c8,c9\n");
+    for (int row = 0; row < 20000; row++) {
+      for (int col = 0; col < 10; col++) {
+        sb.append(col == 0 ? "" : ",").append(row % (col * 50 + 7)).append("x").append(col);
+      }
+      sb.append("\n");
+    }
+    messageBytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+    Properties properties = new Properties();
+    properties.put("parser", "fast");
+    properties.put("output-format", "table");
+    properties.put("contrive-primary-key", "true");
+    properties.put("json-output", "none");
+    properties.put("metrics", "true");
+    CsvShredder callout = new CsvShredder(properties);
+    long allocated = -1;
+    for (int i = 0; i < 5; i++) { // the first runs also load and compile classes
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+      Object bytes = msgCtxt.getVariable("csv_metrics_allocated_bytes");
+      if (bytes == null) {
+        throw new SkipException("this JVM does not report allocation per thread");
+      }
+      long b = Long.parseLong((String) bytes);
+      allocated = (allocated < 0) ? b : Math.min(allocated, b);
+    }
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "20000");
+    // the table itself: a key, and a String for each cell not shared with the row above
+    long perRow = allocated / 20000;
+    Assert.assertTrue(perRow < ALLOCATION_BUDGET_PER_ROW, "allocated per row: " + perRow);
+  }
+
+  @Test
+  public void parserBuffersSurviveFailedShred() throws Exception {
+    Properties properties = new Properties();
+    properties.put("parser", "fast");
+    properties.put("json-output", "none");
+    CsvShredder callout = new CsvShredder(properties);
+    messageContent = "a,b\n1,2\n3,4\n";
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Object buffers = FastCsvReader.pooledBuffers();
+    Assert.assertNotNull(buffers);
+
+    // a parse error part way through the body
+    messageContent = "a,b\n1,2\n3,\"4\n";
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertSame(FastCsvReader.pooledBuffers(), buffers);
+
+    // a limit exceeded part way through the body
+    properties.put("max-rows", "1");
+    messageContent = "a,b\n1,2\n3,4\n";
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_limit_exceeded"), "max-rows");
+    Assert.assertSame(FastCsvReader.pooledBuffers(), buffers);
+
+    // the next shred on this thread parses into the same buffers
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "2");
+    Assert.assertSame(FastCsvReader.pooledBuffers(), buffers);
+  }
+
+  @Test
+  public void dedupReturnsPreviousResult() throws Exception {
+    ShredResultCache.getInstance().clear();
+    Properties properties = new Properties();
+    properties.put("output-format", "map");
+    properties.put("dedup", "fast");
+    properties.put("metrics", "true");
+    messageContent = readAllText("sample1000.csv");
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "false");
+    Object first = msgCtxt.getVariable("csv_result_java");
+    String json = (String) msgCtxt.getVariable("csv_result_json");
+
+    msgCtxt.removeVariable("csv_result_java");
+    msgCtxt.removeVariable("csv_rows_read");
+    msgCtxt.removeVariable("csv_metrics_rows");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "true");
+    Assert.assertSame(msgCtxt.getVariable("csv_result_java"), first);
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_json"), json);
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "1000");
+    Assert.assertNull(msgCtxt.getVariable("csv_metrics_rows"), "nothing is parsed");
+    Assert.assertNotNull(msgCtxt.getVariable("csv_metrics_hash_ns"));
+
+    // a different parser gives the same result
+    properties.put("parser", "fast");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "true");
+
+    // but any other change to the content or the configuration does not
+    properties.put("trim-spaces", "true");
+    new CsvShredder(properties).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "false");
+    properties.put("tenant", "t1");
+    new CsvShredder(properties).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "false");
+    messageContent = messageContent + "\n";
+    new CsvShredder(properties).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "false");
+    properties.put("dedup", "sha-256");
+    new CsvShredder(properties).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "false");
+    new CsvShredder(properties).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "true");
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void dedupResultIsReadOnly() throws Exception {
+    ShredResultCache.getInstance().clear();
+    Properties properties = new Properties();
+    properties.put("dedup", "fast");
+    properties.put("json-output", "none");
+    messageContent = readAllText("sample1000.csv");
+    for (String format : new String[] {"map", "list"}) {
+      properties.put("output-format", format);
+      CsvShredder callout = new CsvShredder(properties);
+      for (String hit : new String[] {"false", "true"}) {
+        Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+        Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), hit);
+        Object result = msgCtxt.getVariable("csv_result_java");
+        Map<String, String> row =
+            (result instanceof List)
+                ? ((List<Map<String, String>>) result).get(0)
+                : ((Map<String, Map<String, String>>) result).values().iterator().next();
+        try {
+          row.put("ID", "changed");
+          Assert.fail("a row of the shared result was changed");
+        } catch (UnsupportedOperationException expected) {
+          // the result is shared with later uploads
+        }
+        try {
+          if (result instanceof List) {
+            ((List<Map<String, String>>) result).clear();
+          } else {
+            ((Map<String, Map<String, String>>) result).clear();
+          }
+          Assert.fail("the shared result was changed");
+        } catch (UnsupportedOperationException expected) {
+          // as above
+        }
+      }
+    }
+  }
+
+  @Test
+  public void dedupPublishesToTableCache() throws Exception {
+    ShredResultCache.getInstance().clear();
+    TableCache.getInstance().clear();
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("dedup", "fast");
+    properties.put("cache-name", "dedup-test");
+    properties.put("keep-versions", "1");
+    properties.put("index-columns", "RAND");
+    properties.put("json-output", "none");
+    messageContent = readAllText("sample1000.csv");
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_version"), "1");
+    String contentHash = (String) msgCtxt.getVariable("csv_content_hash");
+
+    msgCtxt.setVariable("csv_result_json", "stale");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "true");
+    Assert.assertNull(msgCtxt.getVariable("csv_result_json"));
+    // published again, as any shred with cache-name would be
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_version"), "2");
+    Assert.assertEquals(msgCtxt.getVariable("csv_content_hash"), contentHash);
+    TableCache.Entry entry = TableCache.getInstance().get(null, "dedup-test");
+    Assert.assertSame(entry.table, msgCtxt.getVariable("csv_result_java"));
+    Assert.assertNotNull(entry.indexes);
+  }
+
+  @Test
+  public void dedupRejectsStreamOutput() throws Exception {
+    Properties properties = new Properties();
+    properties.put("dedup", "fast");
+    properties.put("stream-output", "ndjson");
+    messageContent = readAllText("sample5.csv");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("csv_error"),
+        "dedup cannot be used with stream-output or update-mode delta.");
+  }
+
+  /** Polls ShredJobStatus until the job in csv_job_id is no longer queued or running. */
+  private String awaitJob() throws Exception {
+    Properties properties = new Properties();
+    properties.put("job-id", "{csv_job_id}");
+    ShredJobStatus status = new ShredJobStatus(properties);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (true) {
+      Assert.assertEquals(status.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+      String jobStatus = (String) msgCtxt.getVariable("csv_job_status");
+      if (!jobStatus.equals("queued") && !jobStatus.equals("running")) {
+        return jobStatus;
+      }
+      Assert.assertTrue(System.currentTimeMillis() < deadline, "the job did not finish");
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void asyncShredPublishesToTableCache() throws Exception {
+    TableCache.getInstance().clear();
+    Properties properties = new Properties();
+    properties.put("async", "true");
+    properties.put("output-format", "table");
+    properties.put("cache-name", "{my_name}");
+    msgCtxt.setVariable("my_name", "async-test");
+    messageContent = readAllText("sample1000.csv");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_job_status"), "queued");
+    Assert.assertNotNull(msgCtxt.getVariable("csv_job_id"));
+    Assert.assertNull(msgCtxt.getVariable("csv_result_java"));
+    // the name is resolved when the job is submitted, not when it runs
+    msgCtxt.setVariable("my_name", "something-else");
+
+    Assert.assertEquals(awaitJob(), "done");
+    Assert.assertEquals(msgCtxt.getVariable("csv_job_rows"), "1000");
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "1000");
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_version"), "1");
+    Assert.assertNull(msgCtxt.getVariable("csv_result_json"));
+    TableCache.Entry entry = TableCache.getInstance().get(null, "async-test");
+    Assert.assertEquals(((Map<?, ?>) entry.table).size(), 1000);
+  }
+
+  @Test
+  public void asyncShredReportsFailure() throws Exception {
+    Properties properties = new Properties();
+    properties.put("async", "true");
+    properties.put("parser", "fast");
+    properties.put("cache-name", "async-failure");
+    messageContent = "a,b\n1,\"unterminated\n";
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(awaitJob(), "failed");
+    Assert.assertTrue(
+        ((String) msgCtxt.getVariable("csv_job_error")).contains("EOF reached"),
+        (String) msgCtxt.getVariable("csv_job_error"));
+
+    msgCtxt.setVariable("csv_job_id", "no-such-job");
+    Assert.assertEquals(awaitJob(), "unknown");
+
+    properties.remove("cache-name");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_error"), "async requires cache-name.");
+  }
+
+  @Test
+  public void asyncShredDoesNotResolvePropertiesTwice() throws Exception {
+    TableCache.getInstance().clear();
+    Properties properties = new Properties();
+    properties.put("async", "true");
+    properties.put("parser", "fast");
+    properties.put("cache-name", "async-braces");
+    properties.put("where", "{my_where}");
+    msgCtxt.setVariable("my_where", "b = '{x}'");
+    messageContent = "a,b\n1,{x}\n2,y\n3,\n";
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(awaitJob(), "done");
+    Map<?, ?> table = (Map<?, ?>) TableCache.getInstance().get(null, "async-braces").table;
+    Assert.assertEquals(table.keySet().toString(), "[1]");
+  }
+
+  @Test
+  public void asyncShredLimitsBufferedBytes() throws Exception {
+    Properties properties = new Properties();
+    properties.put("async", "true");
+    properties.put("cache-name", "async-limit");
+    properties.put("max-bytes", "100");
+    // no content-length, as for a chunked upload
+    messageContent = readAllText("sample1000.csv");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_limit_exceeded"), "max-bytes");
+    Assert.assertNull(msgCtxt.getVariable("csv_job_id"));
+  }
+
+  @Test
+  public void propertiesResolvedPerRequest() throws Exception {
+    // one callout instance, as in the runtime, with properties that refer to variables
+    Properties properties = new Properties();
+    properties.put("fieldlist", "{my_fields:street,city,zip}");
+    properties.put("output-format", " {my_format} ");
+    CsvShredder callout = new CsvShredder(properties);
+    messageContent = readAllText("sample5-No-Header.csv");
+
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_format"), "map");
+    @SuppressWarnings("unchecked")
+    Map<String, Map<String, String>> result =
+        (Map<String, Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+    Assert.assertEquals(result.get("6001 MCMAHON DR").keySet().toString(), "[street, city, zip]");
+
+    msgCtxt.setVariable("my_fields", "a,b");
+    msgCtxt.setVariable("my_format", "list");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_format"), "list");
+    @SuppressWarnings("unchecked")
+    List<Map<String, String>> list =
+        (List<Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+    Assert.assertEquals(list.get(0).keySet().toString(), "[a, b]");
+    Assert.assertEquals(list.get(0).get("a"), "3526 HIGH ST");
+  }
+
+  @Test
+  public void deltaUpdatesCachedTable() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("precompute-row-json", "true");
+    properties.put("cache-name", "sample5-delta");
+    Map<String, Map<String, String>> before = shred("sample5.csv", properties);
+    Assert.assertEquals(before.size(), 5);
+
+    properties.put("update-mode", "delta");
+    messageContent =
+        "op,street,city,price,note\n"
+            + ",1 NEW ST,DAVIS,100,fresh\n"
+            + "update,3526 HIGH ST,SACRAMENTO,200,\n"
+            + "delete,6001 MCMAHON DR\n"
+            + "delete,NO SUCH ST\n";
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "4");
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_inserted"), "1");
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_updated"), "1");
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_deleted"), "1");
+
+    @SuppressWarnings("unchecked")
+    Map<String, Map<String, String>> after =
+        (Map<String, Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+    Assert.assertTrue(after instanceof CsvTable);
+    Assert.assertEquals(after.size(), 5);
+    Assert.assertNull(after.get("6001 MCMAHON DR"));
+    Assert.assertEquals(after.get("1 NEW ST").get("note"), "fresh");
+    // an updated row is replaced as a whole
+    Assert.assertEquals(after.get("3526 HIGH ST").get("price"), "200");
+    Assert.assertNull(after.get("3526 HIGH ST").get("zip"));
+
+    // the previous version is untouched, for readers that still hold it
+    Assert.assertEquals(before.size(), 5);
+    Assert.assertNotNull(before.get("6001 MCMAHON DR"));
+    Assert.assertEquals(before.get("3526 HIGH ST").get("zip"), "95838");
+    Assert.assertNull(before.get("1 NEW ST"));
+
+    // lookups through the cache see the new version, with fresh precomputed JSON
+    Assert.assertSame(TableCache.getInstance().get(null, "sample5-delta").table, after);
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("fieldnameVariable", "extracted.fieldname");
+    extractorProperties.put("cache-name", "sample5-delta");
+    msgCtxt.setVariable("extracted.fieldname", "3526%20HIGH%20ST");
+    JsonNode row = query(extractorProperties);
+    Assert.assertEquals(row.get("price").asText(), "200");
+    msgCtxt.setVariable("extracted.fieldname", "6001%20MCMAHON%20DR");
+    Assert.assertEquals(query(extractorProperties).size(), 0);
+  }
+
+  @Test
+  public void deltaAppliesToMapInVariable() throws Exception {
+    Properties properties = new Properties();
+    Map<String, Map<String, String>> base = shred("sample5.csv", properties);
+    msgCtxt.setVariable("cached_map", base);
+
+    properties.put("update-mode", "delta");
+    properties.put("base-variable", "cached_map");
+    properties.put("json-output", "none");
+    messageContent = "street,price\n3526 HIGH ST,1\n3526 HIGH ST,2\n9 ELM ST,3\n";
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_format"), "map");
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_inserted"), "1");
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_updated"), "2");
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_deleted"), "0");
+    @SuppressWarnings("unchecked")
+    Map<String, Map<String, String>> after =
+        (Map<String, Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+    Assert.assertEquals(after.size(), 6);
+    Assert.assertEquals(after.get("3526 HIGH ST").get("price"), "2");
+    Assert.assertEquals(base.size(), 5);
+    Assert.assertEquals(base.get("3526 HIGH ST").get("price"), "59222");
+
+    // an unknown op is an error
+    messageContent = "op,street\nmerge,3526 HIGH ST\n";
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+  }
+
+  @Test
+  public void extractFromSnapshot() throws Exception {
+    Properties properties = new Properties();
+    properties.put("snapshot", "true");
+    properties.put("trim-spaces", "true");
+    Map<String, Map<String, String>> map = shred("sample1000.csv", properties);
+    byte[] snapshot = (byte[]) msgCtxt.getVariable("csv_result_snapshot");
+    Assert.assertEquals(TableSnapshot.open(snapshot), map);
+
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("fieldnameVariable", "extracted.fieldname");
+    extractorProperties.put("mapVariable", "csv_map");
+    msgCtxt.setVariable("extracted.fieldname", "000672");
+    msgCtxt.setVariable("csv_map", map);
+    String expected = query(extractorProperties).toString();
+    msgCtxt.setVariable("csv_map", snapshot);
+    Assert.assertEquals(query(extractorProperties).toString(), expected);
+    Assert.assertTrue(expected.contains("42656"));
+  }
+
+  @Test
+  public void metricsArePublished() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("metrics", "true");
+    properties.put("json-output", "compact");
+    shred("sample1000.csv", properties);
+    Assert.assertEquals(msgCtxt.getVariable("csv_metrics_rows"), "1000");
+    Assert.assertEquals(msgCtxt.getVariable("csv_metrics_cells"), "3000");
+    Assert.assertEquals(msgCtxt.getVariable("csv_metrics_bytes_read"), "40015");
+    for (String name : new String[] {"parse_ns", "build_ns", "json_ns", "total_ns", "p99_ns"}) {
+      Assert.assertTrue(
+          Long.parseLong((String) msgCtxt.getVariable("csv_metrics_" + name)) > 0, name);
+    }
+    Assert.assertEquals(msgCtxt.getVariable("csv_metrics_window_count"), "1");
+    shred("sample1000.csv", properties);
+    Assert.assertEquals(msgCtxt.getVariable("csv_metrics_window_count"), "1"); // a new instance
+
+    // without metrics=true, nothing is published
+    msgCtxt.removeVariable("csv_metrics_rows");
+    properties.remove("metrics");
+    shred("sample1000.csv", properties);
+    Assert.assertNull(msgCtxt.getVariable("csv_metrics_rows"));
+  }
+
+  @Test
+  public void typedColumnsFromSchema() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("json-output", "compact");
+    properties.put(
+        "schema",
+        "beds:int, sqft:int, price:long, latitude:double, zip:string,"
+            + " sale_date:date(EEE MMM dd HH:mm:ss zzz yyyy)");
+    CsvTable table = (CsvTable) (Object) shred("sample5.csv", properties);
+    Assert.assertEquals(msgCtxt.getVariable("csv_schema_error_count"), "0");
+    Assert.assertEquals(table.getColumnType("price"), "long");
+    Assert.assertEquals(table.getColumnType("zip"), "string");
+    Assert.assertEquals(table.getColumnType("sale_date"), "date(EEE MMM dd HH:mm:ss zzz yyyy)");
+    // the Map view still holds text
+    Assert.assertEquals(table.get("3526 HIGH ST").get("beds"), "2");
+    Assert.assertEquals(table.get("3526 HIGH ST").get("latitude"), "38.631913");
+    Assert.assertEquals(table.getCell("51 OMAHA CT", "sale_date"), "2008-05-21T04:00:00Z");
+
+    JsonNode row =
+        new ObjectMapper()
+            .readTree((String) msgCtxt.getVariable("csv_result_json"))
+            .get("3526 HIGH ST");
+    Assert.assertTrue(row.get("beds").isInt());
+    Assert.assertTrue(row.get("price").isIntegralNumber());
+    Assert.assertEquals(row.get("price").asLong(), 59222L);
+    Assert.assertTrue(row.get("latitude").isDouble());
+    Assert.assertEquals(row.get("latitude").asDouble(), 38.631913);
+    Assert.assertTrue(row.get("zip").isTextual());
+    Assert.assertTrue(row.get("baths").isTextual()); // not in the schema
+    Assert.assertEquals(row.get("sale_date").asText(), "2008-05-21T04:00:00Z");
+
+    // MapExtractor emits the same types for a single row
+    msgCtxt.setVariable("extracted.fieldname", "6001 MCMAHON DR");
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("fieldnameVariable", "extracted.fieldname");
+    extractorProperties.put("mapVariable", "csv_result_java");
+    JsonNode extracted = query(extractorProperties);
+    Assert.assertEquals(extracted.get("sqft").asInt(), 797);
+    Assert.assertTrue(extracted.get("sqft").isInt());
+  }
+
+  @Test
+  public void schemaErrorsReportedPerRecord() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("json-output", "compact");
+    properties.put("schema", "n:int, flag:boolean");
+    messageContent = "id,n,flag\na,1,true\nb,x,maybe\nc,,FALSE\n";
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_schema_error_count"), "2");
+    JsonNode errors =
+        new ObjectMapper().readTree((String) msgCtxt.getVariable("csv_schema_errors"));
+    Assert.assertEquals(errors.size(), 2);
+    Assert.assertEquals(errors.get(0).get("record").asInt(), 2);
+    Assert.assertEquals(errors.get(0).get("column").asText(), "n");
+    Assert.assertEquals(errors.get(0).get("value").asText(), "x");
+    Assert.assertEquals(errors.get(1).get("column").asText(), "flag");
+
+    // a cell that does not parse, or is empty, is absent
+    JsonNode result = new ObjectMapper().readTree((String) msgCtxt.getVariable("csv_result_json"));
+    Assert.assertEquals(result.get("a").get("n").asInt(), 1);
+    Assert.assertTrue(result.get("a").get("flag").booleanValue());
+    Assert.assertNull(result.get("b").get("n"));
+    Assert.assertNull(result.get("c").get("n"));
+    Assert.assertFalse(result.get("c").get("flag").booleanValue());
+
+    properties.put("fail-on-schema-error", "true");
+    callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_error"), "record 2, column n: not a valid int: x");
+  }
+
+  @Test
+  public void schemaRequiresKnownColumnsAndTable() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("schema", "bedrooms:int");
+    messageContent = readAllText("sample5.csv");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("csv_error"), "schema: there is no column named bedrooms");
+
+    properties.put("schema", "beds:integer");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+
+    properties.put("schema", "beds:int");
+    properties.put("output-format", "map");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+  }
+
+  @Test
+  public void deltaKeepsColumnTypes() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("schema", "beds:int, price:long");
+    properties.put("cache-name", "sample5-typed");
+    shred("sample5.csv", properties);
+
+    Properties deltaProperties = new Properties();
+    deltaProperties.put("update-mode", "delta");
+    deltaProperties.put("cache-name", "sample5-typed");
+    deltaProperties.put("json-output", "compact");
+    messageContent = "street,beds,price\n51 OMAHA CT,4,70000\n1 NEW ST,1,1000\n";
+    CsvShredder delta = new CsvShredder(deltaProperties);
+    Assert.assertEquals(delta.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    CsvTable table = (CsvTable) msgCtxt.getVariable("csv_result_java");
+    Assert.assertEquals(table.getColumnType("beds"), "int");
+    JsonNode result = new ObjectMapper().readTree((String) msgCtxt.getVariable("csv_result_json"));
+    Assert.assertEquals(result.get("51 OMAHA CT").get("price").asLong(), 70000L);
+    Assert.assertTrue(result.get("1 NEW ST").get("beds").isInt());
+    Assert.assertTrue(result.get("3526 HIGH ST").get("price").isIntegralNumber());
+
+    // a value of the wrong type fails the whole delta
+    messageContent = "street,beds\n51 OMAHA CT,four\n";
+    Assert.assertEquals(delta.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+  }
+
+  @Test
+  public void selectColumnsAndWhere() throws Exception {
+    Properties properties = new Properties();
+    properties.put("select-columns", "street, zip, price");
+    properties.put("where", "price >= 68880 and type = Residential and city != 'SAN JOSE'");
+    Map<String, Map<String, String>> map = shred("sample5.csv", properties);
+    Assert.assertEquals(map.size(), 3);
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "3");
+    Assert.assertEquals(msgCtxt.getVariable("csv_rows_filtered"), "2");
+    Map<String, String> row = map.get("6001 MCMAHON DR");
+    Assert.assertEquals(row.keySet().toString(), "[street, zip, price]");
+    Assert.assertEquals(row.get("price"), "81900");
+    Assert.assertNull(map.get("3526 HIGH ST"));
+
+    properties.put("output-format", "table");
+    properties.put("where", "zip in (95815, '95824')");
+    properties.put("select-columns", "street,beds");
+    CsvTable table = (CsvTable) (Object) shred("sample5.csv", properties);
+    Assert.assertEquals(table.getHeader().toString(), "[street, beds]");
+    Assert.assertEquals(
+        table.keySet().toString(), "[2796 BRANCH ST, 2805 JANETTE WAY, 6001 MCMAHON DR]");
+
+    properties.put("output-format", "list");
+    properties.put("where", "zip not in (95815,95824) and sqft < 1000");
+    properties.remove("select-columns");
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    @SuppressWarnings("unchecked")
+    List<Map<String, String>> list =
+        (List<Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+    Assert.assertEquals(list.size(), 1);
+    Assert.assertEquals(list.get(0).get("street"), "3526 HIGH ST");
+    Assert.assertEquals(list.get(0).size(), 12);
+  }
+
+  @Test
+  public void reorderedSelectionOfShortRecord() throws Exception {
+    // the second record lacks c, but still has a
+    messageContent = "a,b,c\n1,x,g\n2,y\n";
+    for (String parser : new String[] {"commons", "fast"}) {
+      Properties properties = new Properties();
+      properties.put("parser", parser);
+      properties.put("select-columns", "c,a");
+      properties.put("output-format", "list");
+      CsvShredder callout = new CsvShredder(properties);
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+      Assert.assertEquals(
+          msgCtxt.getVariable("csv_result_java").toString(), "[{c=g, a=1}, {a=2}]", parser);
+
+      properties.put("output-format", "table");
+      properties.put("contrive-primary-key", "true");
+      callout = new CsvShredder(properties);
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+      CsvTable table = (CsvTable) msgCtxt.getVariable("csv_result_java");
+      Assert.assertEquals(table.values().toString(), "[{c=g, a=1}, {a=2}]", parser);
+
+      properties.remove("output-format");
+      properties.remove("contrive-primary-key");
+      properties.put("stream-output", "json-array");
+      callout = new CsvShredder(properties);
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+      Assert.assertEquals(
+          readAll(newContent).replaceAll("\\s", ""),
+          "[{\"c\":\"g\",\"a\":\"1\"},{\"a\":\"2\"}]",
+          parser);
+    }
+  }
+
+  @Test
+  public void badSelectionFails() throws Exception {
+    Properties properties = new Properties();
+    messageContent = readAllText("sample5.csv");
+    properties.put("select-columns", "street, bedrooms");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("csv_error"), "select-columns: there is no column named bedrooms");
+
+    properties.remove("select-columns");
+    properties.put("where", "price > lots");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("csv_error"), "where: expected a number, found lots at position 12");
+
+    properties.put("where", "price > 1 or beds = 2");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+  }
+
+  @Test
+  public void limitsRejectOversizedContent() throws Exception {
+    Properties properties = new Properties();
+    properties.put("max-bytes", "10000");
+    messageContent = readAllText("sample1000.csv");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_limit_exceeded"), "max-bytes");
+    Assert.assertEquals(msgCtxt.getVariable("csv_error"), "the content exceeds max-bytes (10000).");
+
+    properties.put("max-bytes", "50000");
+    properties.put("max-rows", "999");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_limit_exceeded"), "max-rows");
+
+    properties.put("max-rows", "1000");
+    properties.put("max-cells", "2999");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_limit_exceeded"), "max-cells");
+
+    msgCtxt.removeVariable("csv_limit_exceeded");
+    properties.put("max-cells", "3000");
+    Map<String, Map<String, String>> map = shred("sample1000.csv", properties);
+    Assert.assertEquals(map.size(), 1000);
+    Assert.assertNull(msgCtxt.getVariable("csv_limit_exceeded"));
+  }
+
+  @Test
+  public void spillsLargeTableToFile() throws Exception {
+    Properties properties = new Properties();
+    properties.put("output-format", "table");
+    properties.put("trim-spaces", "true");
+    properties.put("json-output", "none");
+    Map<String, Map<String, String>> inMemory = shred("sample1000.csv", properties);
+
+    properties.put("spill-threshold", "100");
+    properties.put("cache-name", "sample1000-spilled");
+    Map<String, Map<String, String>> spilled = shred("sample1000.csv", properties);
+    Assert.assertTrue(spilled instanceof SpilledTable);
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_format"), "spilled");
+    Assert.assertEquals(spilled.size(), 1000);
+    Assert.assertEquals(spilled, inMemory);
+    Assert.assertEquals(
+        new ArrayList<String>(spilled.keySet()), new ArrayList<String>(inMemory.keySet()));
+
+    // MapExtractor reads rows from the mapped file
+    msgCtxt.setVariable("extracted.fieldname", "000999");
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("fieldnameVariable", "extracted.fieldname");
+    extractorProperties.put("cache-name", "sample1000-spilled");
+    JsonNode row = query(extractorProperties);
+    Assert.assertEquals(row.get("RAND").asText(), inMemory.get("000999").get("RAND"));
+
+    // below the threshold, the table stays on the heap
+    properties.put("spill-threshold", "1000");
+    Assert.assertTrue(shred("sample1000.csv", properties) instanceof CsvTable);
+
+    properties.put("output-format", "map");
+    Assert.assertEquals(
+        new CsvShredder(properties).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] both = new byte[a.length + b.length];
+    System.arraycopy(a, 0, both, 0, a.length);
+    System.arraycopy(b, 0, both, a.length, b.length);
+    return both;
+  }
+
+  @Test
+  public void byteOrderMarkIsStripped() throws Exception {
+    byte[] bom = new byte[] {(byte) 0xef, (byte) 0xbb, (byte) 0xbf};
+    byte[] utf8 = readAllText("sample5.csv").getBytes(StandardCharsets.UTF_8);
+    for (String parser : new String[] {"commons", "fast"}) {
+      messageBytes = concat(bom, utf8);
+      Properties properties = new Properties();
+      properties.put("parser", parser);
+      properties.put("output-format", "table");
+      CsvShredder callout = new CsvShredder(properties);
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS, parser);
+      CsvTable table = (CsvTable) msgCtxt.getVariable("csv_result_java");
+      Assert.assertEquals(table.getHeader().get(0), "street", parser);
+      Assert.assertEquals(table.get("6001 MCMAHON DR").get("street"), "6001 MCMAHON DR", parser);
+    }
+
+    // a UTF-16 mark overrides the charset in the header
+    byte[] utf16 = readAllText("sample5.csv").getBytes(StandardCharsets.UTF_16LE);
+    messageBytes = concat(new byte[] {(byte) 0xff, (byte) 0xfe}, utf16);
+    requestHeaders.put("content-type", "text/csv; charset=utf-8");
+    CsvShredder callout = new CsvShredder(new Properties());
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    @SuppressWarnings("unchecked")
+    Map<String, Map<String, String>> result =
+        (Map<String, Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+    Assert.assertEquals(result.get("6001 MCMAHON DR").get("price"), "81900");
+  }
+
+  @Test
+  public void charsetFromContentType() throws Exception {
+    String csv = "name,city\nx,Z\u00fcrich\ny,S\u00e3o Paulo\n";
+    for (String parser : new String[] {"commons", "fast"}) {
+      messageBytes = csv.getBytes(StandardCharsets.ISO_8859_1);
+      requestHeaders.put("content-type", "text/csv; charset=\"ISO-8859-1\"");
+      Properties properties = new Properties();
+      properties.put("parser", parser);
+      CsvShredder callout = new CsvShredder(properties);
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS, parser);
+      @SuppressWarnings("unchecked")
+      Map<String, Map<String, String>> result =
+          (Map<String, Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+      Assert.assertEquals(result.get("x").get("city"), "Z\u00fcrich", parser);
+      Assert.assertEquals(result.get("y").get("city"), "S\u00e3o Paulo", parser);
+    }
+
+    // the charset property overrides the header
+    messageBytes = csv.getBytes(StandardCharsets.UTF_16BE);
+    Properties properties = new Properties();
+    properties.put("charset", "UTF-16BE");
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    @SuppressWarnings("unchecked")
+    Map<String, Map<String, String>> result =
+        (Map<String, Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+    Assert.assertEquals(result.get("x").get("city"), "Z\u00fcrich");
+
+    properties.put("charset", "no-such-charset");
+    callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_error"), "unsupported charset: no-such-charset");
+  }
+
+  @Test
+  public void compressedContent() throws Exception {
+    byte[] csv = readAllText("sample1000.csv").getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+      out.write(csv);
+    }
+    ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+    try (DeflaterOutputStream out = new DeflaterOutputStream(zlib)) {
+      out.write(csv);
+    }
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    try (DeflaterOutputStream out =
+        new DeflaterOutputStream(raw, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+      out.write(csv);
+    }
+    Object[][] cases = {
+      {"gzip", gzipped.toByteArray()},
+      {"deflate", zlib.toByteArray()},
+      {"deflate", raw.toByteArray()}
+    };
+    for (Object[] c : cases) {
+      messageBytes = (byte[]) c[1];
+      requestHeaders.put("content-encoding", (String) c[0]);
+      Properties properties = new Properties();
+      properties.put("trim-spaces", "true");
+      properties.put("parser", "fast");
+      CsvShredder callout = new CsvShredder(properties);
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+      Assert.assertEquals(msgCtxt.getVariable("csv_rows_read"), "1000");
+      @SuppressWarnings("unchecked")
+      Map<String, Map<String, String>> result =
+          (Map<String, Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+      Assert.assertEquals(result.get("000988").get("RAND"), "25784");
+    }
+
+    // max-bytes applies to the decompressed content
+    messageBytes = gzipped.toByteArray();
+    requestHeaders.put("content-encoding", "gzip");
+    Properties properties = new Properties();
+    properties.put("max-bytes", "10000");
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_limit_exceeded"), "max-bytes");
+
+    requestHeaders.put("content-encoding", "br");
+    callout = new CsvShredder(new Properties());
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("csv_error"), "unsupported Content-Encoding: br");
+  }
+
+  private String extractPrice(Properties extractorProperties) throws Exception {
+    msgCtxt.setVariable("extracted.fieldname", "6001%20MCMAHON%20DR");
+    extractorProperties.put("fieldnameVariable", "extracted.fieldname");
+    MapExtractor extractor = new MapExtractor(extractorProperties);
+    if (extractor.execute(msgCtxt, exeCtxt) != ExecutionResult.SUCCESS) {
+      return null;
+    }
+    JsonNode row = new ObjectMapper().readTree((String) msgCtxt.getVariable("csv_result_json"));
+    return row.get("price").asText();
+  }
+
+  @Test
+  public void versionedTableCache() throws Exception {
+    Properties properties = new Properties();
+    properties.put("cache-name", "versioned");
+    properties.put("tenant", "acme");
+    properties.put("keep-versions", "1");
+    shred("sample5.csv", properties);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_version"), "1");
+
+    messageContent = "street,price\n6001 MCMAHON DR,99999\n";
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_version"), "2");
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_versions"), "2,1");
+
+    Properties extractorProperties = new Properties();
+    extractorProperties.put("cache-name", "versioned");
+    extractorProperties.put("tenant", "acme");
+    Assert.assertEquals(extractPrice(extractorProperties), "99999");
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_version"), "2");
+    extractorProperties.put("cache-version", "1");
+    Assert.assertEquals(extractPrice(extractorProperties), "81900");
+
+    // another tenant does not see the table
+    extractorProperties.remove("cache-version");
+    extractorProperties.put("tenant", "other");
+    Assert.assertNull(extractPrice(extractorProperties));
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_hit"), "false");
+
+    // roll back
+    Properties rollback = new Properties();
+    rollback.put("cache-name", "versioned");
+    rollback.put("tenant", "acme");
+    rollback.put("activate-version", "1");
+    Assert.assertEquals(
+        new CsvShredder(rollback).execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("csv_cache_versions"), "1,2");
+    extractorProperties.put("tenant", "acme");
+    Assert.assertEquals(extractPrice(extractorProperties), "81900");
+
+    rollback.put("activate-version", "7");
+    Assert.assertEquals(
+        new CsvShredder(rollback).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("csv_error"), "version 7 of the cached table versioned is not kept.");
+  }
+
+  private byte[] streamEncoded(String encoding) throws Exception {
+    Properties properties = new Properties();
+    properties.put("trim-spaces", "true");
+    properties.put("stream-output", "json-array");
+    properties.put("output-encoding", encoding);
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    return readAllBytes(newContent);
+  }
+
+  @Test
+  public void streamBinaryJson() throws Exception {
+    messageContent = readAllText("sample1000.csv");
+    byte[] json = streamEncoded("json");
+    JsonNode expected = new ObjectMapper().readTree(json);
+
+    byte[] cbor = streamEncoded("cbor");
+    Assert.assertEquals(headers.get("content-type"), "application/cbor");
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_format"), "cbor");
+    Assert.assertEquals(new ObjectMapper(new CBORFactory()).readTree(cbor), expected);
+    Assert.assertTrue(cbor.length < json.length);
+
+    byte[] smile = streamEncoded("smile");
+    Assert.assertEquals(headers.get("content-type"), "application/x-jackson-smile");
+    Assert.assertEquals(new ObjectMapper(new SmileFactory()).readTree(smile), expected);
+    Assert.assertTrue(smile.length < json.length);
+
+    Properties properties = new Properties();
+    properties.put("output-encoding", "cbor");
+    properties.put("stream-output", "ndjson");
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("csv_error"),
+        "output-encoding cbor requires stream-output json-array.");
+  }
+
+  private static int readVarint(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  private static String readString(DataInputStream in, int length) throws IOException {
+    byte[] utf8 = new byte[length];
+    in.readFully(utf8);
+    return new String(utf8, StandardCharsets.UTF_8);
+  }
+
+  /** Decodes the columnar layout described in ColumnarRecordStream. */
+  private static List<Map<String, String>> decodeColumnar(byte[] content) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+    Assert.assertEquals(readString(in, 4), "CSVC");
+    Assert.assertEquals(in.readUnsignedByte(), 1);
+    String[] header = new String[readVarint(in)];
+    for (int col = 0; col < header.length; col++) {
+      header[col] = readString(in, readVarint(in));
+    }
+    List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+    for (int count = readVarint(in); count > 0; count = readVarint(in)) {
+      int first = rows.size();
+      for (int row = 0; row < count; row++) {
+        rows.add(new HashMap<String, String>());
+      }
+      for (int col = 0; col < header.length; col++) {
+        int encoding = in.readUnsignedByte();
+        if (encoding == 1) {
+          String[] dictionary = new String[readVarint(in)];
+          for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = readString(in, readVarint(in));
+          }
+          for (int row = 0; row < count; row++) {
+            int index = readVarint(in);
+            if (index > 0) {
+              rows.get(first + row).put(header[col], dictionary[index - 1]);
+            }
+          }
+        } else {
+          Assert.assertEquals(encoding, 0);
+          int[] lengths = new int[count];
+          for (int row = 0; row < count; row++) {
+            lengths[row] = readVarint(in);
+          }
+          for (int row = 0; row < count; row++) {
+            if (lengths[row] > 0) {
+              rows.get(first + row).put(header[col], readString(in, lengths[row] - 1));
+            }
+          }
+        }
+      }
+    }
+    Assert.assertEquals(in.read(), -1);
+    return rows;
+  }
+
+  @Test
+  public void streamColumnar() throws Exception {
+    StringBuilder csv = new StringBuilder("id,region,amount,note\n");
+    String[] regions = {"north", "south", "east", "west"};
+    for (int i = 0; i < 10000; i++) {
+      csv.append(String.format("%05d,%s,%d,", i, regions[i % 4], i * 7 % 1000));
+      csv.append((i % 3 == 0) ? "\"a, \"\"quoted\"\" note\"\n" : "\n");
+    }
+    csv.append("99999,north\n"); // a short record
+    messageContent = csv.toString();
+
+    byte[] columnar = streamEncoded("columnar");
+    Assert.assertEquals(headers.get("content-type"), "application/x-csv-columnar");
+    Assert.assertEquals(msgCtxt.getVariable("csv_result_format"), "columnar");
+
+    Properties properties = new Properties();
+    properties.put("output-format", "list");
+    properties.put("json-output", "none");
+    CsvShredder callout = new CsvShredder(properties);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    @SuppressWarnings("unchecked")
+    List<Map<String, String>> expected =
+        (List<Map<String, String>>) msgCtxt.getVariable("csv_result_java");
+    Assert.assertEquals(decodeColumnar(columnar), expected);
+    Assert.assertTrue(columnar.length < messageContent.length());
+  }
 }
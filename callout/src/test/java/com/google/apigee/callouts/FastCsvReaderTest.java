@@ -0,0 +1,222 @@
+// Copyright 2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/** Validates the fast parser against commons-csv, which is the reference. */
+public class FastCsvReaderTest {
+  private static final String testDataDir = "src/test/resources/test-data";
+  private static final List<String> FIELDS = Arrays.asList("a", "b", "c");
+
+  private static List<List<String>> readAll(RowReader reader) throws IOException {
+    List<List<String>> rows = new ArrayList<List<String>>();
+    rows.add(reader.getHeaderNames());
+    while (reader.next()) {
+      List<String> row = new ArrayList<String>();
+      for (int i = 0; i < reader.size(); i++) {
+        row.add(reader.get(i));
+      }
+      rows.add(row);
+    }
+    reader.close();
+    return rows;
+  }
+
+  private static List<List<String>> commons(byte[] content, List<String> fields, boolean trim)
+      throws IOException {
+    return readAll(
+        RowReader.of(
+            CsvShredder.getCsvReader(fields, trim)
+                .parse(
+                    new InputStreamReader(
+                        new ByteArrayInputStream(content), StandardCharsets.UTF_8))));
+  }
+
+  private static List<List<String>> fast(
+      byte[] content, List<String> fields, boolean trim, int bufferSize) throws IOException {
+    return readAll(
+        new FastCsvReader(new ByteArrayInputStream(content), fields, trim, bufferSize));
+  }
+
+  private static void assertSameRows(byte[] content, List<String> fields, boolean trim)
+      throws IOException {
+    List<List<String>> expected = commons(content, fields, trim);
+    String message = new String(content, StandardCharsets.UTF_8);
+    Assert.assertEquals(fast(content, fields, trim, 64 * 1024), expected, message);
+    // a tiny buffer forces records and cells to span refills
+    Assert.assertEquals(fast(content, fields, trim, 3), expected, message);
+  }
+
+  @Test
+  public void matchesCommonsOnTestData() throws Exception {
+    for (String filename :
+        new String[] {"sample5.csv", "sample5-No-Header.csv", "sample37.csv", "sample1000.csv"}) {
+      byte[] content = Files.readAllBytes(Paths.get(testDataDir, filename));
+      assertSameRows(content, null, false);
+      assertSameRows(content, null, true);
+    }
+  }
+
+  @Test
+  public void handlesQuotingAndLineBreaks() throws Exception {
+    String[] cases = {
+      "a,b,c\n1,\"x,y\",3\n",
+      "a,b,c\r\n1,\"line1\nline2\",3\r\n4,5,6",
+      "a,b,c\n\"he said \"\"hi\"\"\",2,3\n",
+      "a,b,c\n\n\n1,2,3\n\r\n4,5,6\n",
+      "a,b,c\r1,2,3\r4,5,6\r",
+      "a,b,c\n1,2,\n,,\n",
+      "a,b,c\n  1 ,  \"2\"  , 3\t\n",
+      "a,b,c\n1,x\"y,3\n",
+      "a,b,c\n\"\",\"\"\"\",\"\n\"\n",
+      "a,b,c\n1,2,3,4,5\n1\n",
+      "a,b,c\nété,日本,\"ü,ö\"\n",
+    };
+    for (String c : cases) {
+      byte[] content = c.getBytes(StandardCharsets.UTF_8);
+      assertSameRows(content, null, false);
+      assertSameRows(content, null, true);
+      assertSameRows(content, FIELDS, false);
+      assertSameRows(content, FIELDS, true);
+    }
+  }
+
+  @Test
+  public void pooledBuffersAreNotShared() throws Exception {
+    StringBuilder wide = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      wide.append(i == 0 ? "" : ",").append("h").append(i);
+    }
+    wide.append("\n");
+    for (int i = 0; i < 40; i++) {
+      wide.append(i == 0 ? "" : ",").append(i);
+    }
+    // grows the cell arrays, and returns them to this thread on close
+    assertSameRows(wide.toString().getBytes(StandardCharsets.UTF_8), null, false);
+
+    // two readers open at once on one thread must not parse into the same arrays
+    RowReader first =
+        new FastCsvReader(
+            new ByteArrayInputStream("a,b\n1,2\n3,4\n".getBytes(StandardCharsets.UTF_8)),
+            null,
+            false);
+    RowReader second =
+        new FastCsvReader(
+            new ByteArrayInputStream("c,d\n5,6\n7,8\n".getBytes(StandardCharsets.UTF_8)),
+            null,
+            false);
+    Assert.assertTrue(first.next());
+    Assert.assertTrue(second.next());
+    Assert.assertEquals(first.get(1), "2");
+    Assert.assertEquals(second.get(0), "5");
+    first.close();
+    Assert.assertTrue(second.next());
+    Assert.assertEquals(second.get(1), "8");
+    second.close();
+    Assert.assertEquals(first.getHeaderNames(), Arrays.asList("a", "b"));
+    Assert.assertEquals(second.getHeaderNames(), Arrays.asList("c", "d"));
+  }
+
+  @Test
+  public void rejectsUnterminatedQuote() throws Exception {
+    byte[] content = "a,b\n1,\"unterminated\n".getBytes(StandardCharsets.UTF_8);
+    try {
+      fast(content, null, false, 1024);
+      Assert.fail("expected an exception");
+    } catch (IOException expected) {
+      Assert.assertTrue(expected.getMessage().contains("EOF reached"));
+    }
+  }
+
+  @Test
+  public void rejectsGarbageAfterQuote() throws Exception {
+    byte[] content = "a,b\n\"1\"x,2\n".getBytes(StandardCharsets.UTF_8);
+    try {
+      fast(content, null, false, 1024);
+      Assert.fail("expected an exception");
+    } catch (IOException expected) {
+      Assert.assertTrue(expected.getMessage().contains("invalid char"));
+    }
+  }
+
+  private static String randomCell(Random random) {
+    String alphabet = "ab ,\"\n\r\téx1";
+    int length = random.nextInt(6);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+    }
+    String value = sb.toString();
+    boolean mustQuote =
+        value.indexOf(',') >= 0
+            || value.indexOf('"') >= 0
+            || value.indexOf('\n') >= 0
+            || value.indexOf('\r') >= 0;
+    if (mustQuote || random.nextInt(4) == 0) {
+      value = "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+    if (random.nextInt(8) == 0) {
+      value = " " + value + " ";
+    }
+    return value;
+  }
+
+  @Test
+  public void fuzz() throws Exception {
+    Random random = new Random(20220104L);
+    for (int round = 0; round < 500; round++) {
+      StringBuilder sb = new StringBuilder("h1,h2,h3\n");
+      int rows = random.nextInt(20);
+      for (int r = 0; r < rows; r++) {
+        int cells = 1 + random.nextInt(4);
+        for (int c = 0; c < cells; c++) {
+          if (c > 0) sb.append(',');
+          sb.append(randomCell(random));
+        }
+        sb.append(random.nextBoolean() ? "\n" : "\r\n");
+      }
+      byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
+      boolean trim = random.nextBoolean();
+      List<List<String>> expected;
+      try {
+        expected = commons(content, null, trim);
+      } catch (RuntimeException | IOException e) {
+        // input that commons rejects, eg whitespace after a closing quote mid-cell
+        try {
+          fast(content, null, trim, 5);
+          Assert.fail("expected an exception for: " + sb);
+        } catch (IOException expectedException) {
+          // rejected as well
+        }
+        continue;
+      }
+      Assert.assertEquals(fast(content, null, trim, 5), expected, sb.toString());
+    }
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright 2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/** Checks that splitting a body into chunks never splits a record. */
+public class ParallelRowReaderTest {
+
+  private static List<List<String>> rows(byte[] content, int from, int to, List<String> header)
+      throws IOException {
+    RowReader reader =
+        new FastCsvReader(new ByteArrayInputStream(content, from, to - from), header, false);
+    List<List<String>> rows = new ArrayList<List<String>>();
+    while (reader.next()) {
+      List<String> row = new ArrayList<String>();
+      for (int i = 0; i < reader.size(); i++) {
+        row.add(reader.get(i));
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  @Test
+  public void splitsOnlyAtRecordBoundaries() throws Exception {
+    Random random = new Random(20220110L);
+    String alphabet = "ab,\"\n\r x";
+    for (int round = 0; round < 300; round++) {
+      StringBuilder sb = new StringBuilder();
+      int records = random.nextInt(40);
+      for (int r = 0; r < records; r++) {
+        for (int c = 0; c < 3; c++) {
+          if (c > 0) sb.append(',');
+          StringBuilder cell = new StringBuilder();
+          for (int i = random.nextInt(5); i > 0; i--) {
+            cell.append(alphabet.charAt(random.nextInt(alphabet.length())));
+          }
+          String value = cell.toString();
+          if (value.matches("(?s).*[,\"\r\n].*")) {
+            value = "\"" + value.replace("\"", "\"\"") + "\"";
+          }
+          sb.append(value);
+        }
+        sb.append(random.nextBoolean() ? "\n" : "\r\n");
+      }
+      byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
+      List<String> header = Arrays.asList("a", "b", "c");
+      List<List<String>> expected = rows(content, 0, content.length, header);
+
+      int chunks = 1 + random.nextInt(12);
+      int[] bounds = ParallelRowReader.split(content, 0, content.length, chunks, false);
+      Assert.assertEquals(bounds[0], 0);
+      Assert.assertEquals(bounds[bounds.length - 1], content.length);
+      List<List<String>> actual = new ArrayList<List<String>>();
+      for (int i = 0; i + 1 < bounds.length; i++) {
+        Assert.assertTrue(bounds[i] < bounds[i + 1] || content.length == 0);
+        actual.addAll(rows(content, bounds[i], bounds[i + 1], header));
+      }
+      Assert.assertEquals(actual, expected, sb.toString());
+    }
+  }
+
+  @Test
+  public void quotedLineBreakIsNotABoundary() {
+    byte[] content = "1,\"x\ny\",2\n3,4,5\n".getBytes(StandardCharsets.UTF_8);
+    Assert.assertEquals(
+        ParallelRowReader.nextRecordBoundary(content, 0, content.length, 1, false), 10);
+    // a quote in the middle of a field is literal, so the line break after it does end the record
+    content = "1,x\"y,2\n3,\"4\n\",5\n".getBytes(StandardCharsets.UTF_8);
+    Assert.assertEquals(
+        ParallelRowReader.nextRecordBoundary(content, 0, content.length, 1, false), 8);
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RollingHistogramTest {
+
+  @Test
+  public void bucketsCoverEveryValue() {
+    long[] values = {0, 1, 3, 4, 5, 7, 8, 1000, 123456789L, Long.MAX_VALUE};
+    for (long value : values) {
+      int bucket = RollingHistogram.bucketFor(value);
+      Assert.assertTrue(RollingHistogram.upperBound(bucket) >= value, "value " + value);
+      if (bucket > 0) {
+        Assert.assertTrue(RollingHistogram.upperBound(bucket - 1) < value, "value " + value);
+      }
+    }
+  }
+
+  @Test
+  public void percentilesAreWithinABucket() {
+    RollingHistogram histogram = new RollingHistogram(60 * 1000L);
+    for (long v = 1; v <= 10000; v++) {
+      histogram.record(v * 1000);
+    }
+    RollingHistogram.Snapshot snapshot = histogram.snapshot();
+    Assert.assertEquals(snapshot.count(), 10000);
+    long p50 = snapshot.percentile(0.50);
+    long p99 = snapshot.percentile(0.99);
+    Assert.assertTrue(p50 >= 5000000 && p50 < 5000000 * 1.25, "p50 " + p50);
+    Assert.assertTrue(p99 >= 9900000 && p99 < 9900000 * 1.25, "p99 " + p99);
+  }
+
+  @Test
+  public void oldWindowsAreDropped() throws Exception {
+    RollingHistogram histogram = new RollingHistogram(50);
+    histogram.record(100);
+    Assert.assertEquals(histogram.snapshot().count(), 1);
+    Thread.sleep(60);
+    histogram.record(100);
+    Assert.assertEquals(histogram.snapshot().count(), 2); // the previous window still counts
+    Thread.sleep(120);
+    Assert.assertEquals(histogram.snapshot().count(), 0);
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ShredJobsTest {
+
+  /** A task that waits for the latch, and then succeeds. */
+  private static ShredJobs.Task waitFor(final CountDownLatch latch) {
+    return new ShredJobs.Task() {
+      public boolean run(Map<String, Object> variables) throws Exception {
+        latch.await(10, TimeUnit.SECONDS);
+        variables.put("csv_rows_read", "7");
+        return true;
+      }
+    };
+  }
+
+  private static void awaitFinished(ShredJobs.Job job) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (job.getStatus() == ShredJobs.Status.QUEUED
+        || job.getStatus() == ShredJobs.Status.RUNNING) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline, "the job did not finish");
+      Thread.sleep(10);
+    }
+  }
+
+  private static void assertRefused(ShredJobs jobs, long size, ShredJobs.Task task) {
+    try {
+      jobs.submit(null, size, task);
+      Assert.fail("expected the queue to be full");
+    } catch (IllegalStateException expected) {
+      Assert.assertEquals(expected.getMessage(), "the queue of shred jobs is full.");
+    }
+  }
+
+  @Test
+  public void refusesJobsBeyondTheQueue() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    ShredJobs jobs = new ShredJobs(1, 1, 1000, 600);
+    ShredJobs.Job running = jobs.submit(null, 10, waitFor(latch));
+    ShredJobs.Job queued = jobs.submit(null, 10, waitFor(latch));
+    assertRefused(jobs, 10, waitFor(latch));
+    Assert.assertEquals(jobs.getQueuedBytes(), 20);
+
+    latch.countDown();
+    awaitFinished(running);
+    awaitFinished(queued);
+    Assert.assertEquals(queued.getStatus(), ShredJobs.Status.DONE);
+    Assert.assertEquals(queued.getVariables().get("csv_rows_read"), "7");
+    Assert.assertEquals(jobs.getQueuedBytes(), 0);
+  }
+
+  @Test
+  public void refusesJobsBeyondTheBytes() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    ShredJobs jobs = new ShredJobs(1, 10, 100, 600);
+    ShredJobs.Job first = jobs.submit(null, 60, waitFor(latch));
+    assertRefused(jobs, 60, waitFor(latch));
+    latch.countDown();
+    awaitFinished(first);
+    // one body larger than the bound is still accepted, when nothing else is held
+    ShredJobs.Job large = jobs.submit(null, 500, waitFor(latch));
+    awaitFinished(large);
+    Assert.assertEquals(large.getStatus(), ShredJobs.Status.DONE);
+  }
+
+  @Test
+  public void reportsFailureAndIsolatesTenants() throws Exception {
+    ShredJobs jobs = new ShredJobs(2, 4, 1000, 600);
+    ShredJobs.Job job =
+        jobs.submit(
+            "t1",
+            1,
+            new ShredJobs.Task() {
+              public boolean run(Map<String, Object> variables) {
+                variables.put("csv_error", "bad things");
+                return false;
+              }
+            });
+    awaitFinished(job);
+    Assert.assertEquals(job.getStatus(), ShredJobs.Status.FAILED);
+    Assert.assertEquals(job.getError(), "bad things");
+    Assert.assertSame(jobs.get("t1", job.id), job);
+    Assert.assertNull(jobs.get("t2", job.id));
+    Assert.assertNull(jobs.get(null, job.id));
+  }
+
+  @Test
+  public void keepsOnlyStringVariables() throws Exception {
+    ShredJobs jobs = new ShredJobs(1, 4, 1000, 600);
+    ShredJobs.Job job =
+        jobs.submit(
+            null,
+            1,
+            new ShredJobs.Task() {
+              public boolean run(Map<String, Object> variables) {
+                variables.put("csv_rows_read", "2");
+                variables.put(
+                    "csv_result_java",
+                    Collections.singletonMap("1", Collections.singletonMap("a", "b")));
+                return true;
+              }
+            });
+    awaitFinished(job);
+    Assert.assertEquals(job.getStatus(), ShredJobs.Status.DONE);
+    Assert.assertEquals(
+        job.getVariables(), Collections.<String, Object>singletonMap("csv_rows_read", "2"));
+  }
+}
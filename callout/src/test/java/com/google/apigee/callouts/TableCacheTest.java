@@ -0,0 +1,163 @@
+// Copyright 2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.util.concurrent.CountDownLatch;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TableCacheTest {
+
+  private static TableCache.Entry entry(
+      String tenant, String name, Object table, long cells, int ttlSeconds) {
+    return new TableCache.Entry(tenant, name, "h", table, null, null, cells, ttlSeconds);
+  }
+
+  private static TableCache.Entry entry(String tenant, String name, Object table, long cells) {
+    return entry(tenant, name, table, cells, 0);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    TableCache cache = new TableCache(2, 1000);
+    cache.put(entry(null, "a", "A", 10));
+    cache.put(entry(null, "b", "B", 10));
+    Assert.assertNotNull(cache.get(null, "a")); // now "b" is the least recently used
+    cache.put(entry(null, "c", "C", 10));
+    Assert.assertEquals(cache.size(), 2);
+    Assert.assertNull(cache.get(null, "b"));
+    Assert.assertEquals(cache.get(null, "a").table, "A");
+    Assert.assertEquals(cache.get(null, "c").table, "C");
+  }
+
+  @Test
+  public void getTakesNoLock() throws Exception {
+    final TableCache cache = new TableCache(10, 1000);
+    cache.put(entry(null, "a", "A", 10));
+    final CountDownLatch held = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread writer =
+        new Thread(
+            new Runnable() {
+              public void run() {
+                synchronized (cache) {
+                  held.countDown();
+                  try {
+                    release.await();
+                  } catch (InterruptedException exc1) {
+                    // done
+                  }
+                }
+              }
+            });
+    writer.start();
+    held.await();
+    try {
+      // a lookup proceeds while a writer holds the lock
+      Assert.assertEquals(cache.get(null, "a").table, "A");
+    } finally {
+      release.countDown();
+      writer.join();
+    }
+  }
+
+  @Test
+  public void evictsBySize() {
+    TableCache cache = new TableCache(10, 100);
+    cache.put(entry(null, "a", "A", 60));
+    cache.put(entry(null, "b", "B", 60));
+    Assert.assertNull(cache.get(null, "a"));
+    Assert.assertNotNull(cache.get(null, "b"));
+    // a single oversized table is still kept
+    cache.put(entry(null, "c", "C", 500));
+    Assert.assertEquals(cache.size(), 1);
+    Assert.assertNotNull(cache.get(null, "c"));
+  }
+
+  @Test
+  public void replacesTheCurrentEntry() {
+    TableCache cache = new TableCache(10, 100);
+    cache.put(new TableCache.Entry(null, "a", "1", "A", null, null, 1, 0));
+    cache.put(new TableCache.Entry(null, "a", "2", "A2", null, null, 1, 0));
+    Assert.assertEquals(cache.get(null, "a").table, "A2");
+    Assert.assertEquals(cache.get(null, "a").contentHash, "2");
+    Assert.assertEquals(cache.size(), 1);
+  }
+
+  @Test
+  public void expires() throws Exception {
+    TableCache cache = new TableCache(10, 100);
+    cache.put(entry(null, "a", "A", 1, 1));
+    Assert.assertNotNull(cache.get(null, "a"));
+    Thread.sleep(1100);
+    Assert.assertNull(cache.get(null, "a"));
+    Assert.assertEquals(cache.size(), 0);
+  }
+
+
+  @Test
+  public void keepsVersions() {
+    TableCache cache = new TableCache(10, 1000);
+    Assert.assertEquals(cache.put(entry("t", "a", "A1", 1), 2).version, 1);
+    Assert.assertEquals(cache.put(entry("t", "a", "A2", 1), 2).version, 2);
+    Assert.assertEquals(cache.put(entry("t", "a", "A3", 1), 2).version, 3);
+    Assert.assertEquals(cache.put(entry("t", "a", "A4", 1), 2).version, 4);
+    Assert.assertEquals(cache.versions("t", "a").toString(), "[4, 3, 2]");
+    Assert.assertEquals(cache.get("t", "a").table, "A4");
+    Assert.assertEquals(cache.get("t", "a", 2).table, "A2");
+    Assert.assertNull(cache.get("t", "a", 1));
+    Assert.assertEquals(cache.getTenantCells("t"), 3);
+
+    // roll back, and forward again
+    Assert.assertEquals(cache.activate("t", "a", 2).table, "A2");
+    Assert.assertEquals(cache.get("t", "a").table, "A2");
+    Assert.assertEquals(cache.versions("t", "a").toString(), "[2, 4, 3]");
+    Assert.assertEquals(cache.activate("t", "a", 4).table, "A4");
+    Assert.assertNull(cache.activate("t", "a", 1));
+
+    // the next version is numbered after the highest so far, and fewer may be kept
+    Assert.assertEquals(cache.put(entry("t", "a", "A5", 1), 0).version, 5);
+    Assert.assertEquals(cache.versions("t", "a").toString(), "[5]");
+    Assert.assertEquals(cache.getTenantCells("t"), 1);
+  }
+
+  @Test
+  public void separatesTenants() {
+    TableCache cache = new TableCache(10, 1000, 100);
+    cache.put(entry("t1", "a", "T1A", 60), 0);
+    cache.put(entry("t2", "a", "T2A", 60), 0);
+    Assert.assertEquals(cache.get("t1", "a").table, "T1A");
+    Assert.assertEquals(cache.get("t2", "a").table, "T2A");
+    Assert.assertNull(cache.get(null, "a"));
+
+    // over its own bound, a tenant loses its kept versions first, then its other tables
+    cache.put(entry("t1", "b", "T1B", 10), 1);
+    cache.put(entry("t1", "b", "T1B2", 10), 1);
+    Assert.assertEquals(cache.versions("t1", "b").toString(), "[2, 1]");
+    Assert.assertEquals(cache.getTenantCells("t1"), 80);
+    cache.put(entry("t1", "b", "T1B3", 35), 1);
+    Assert.assertEquals(cache.versions("t1", "b").toString(), "[3]");
+    Assert.assertEquals(cache.getTenantCells("t1"), 95);
+    cache.put(entry("t1", "c", "T1C", 50), 0);
+    Assert.assertNull(cache.get("t1", "a"));
+    Assert.assertEquals(cache.get("t1", "b").table, "T1B3");
+    Assert.assertEquals(cache.getTenantCells("t1"), 85);
+    // the other tenant is untouched
+    Assert.assertEquals(cache.get("t2", "a").table, "T2A");
+    Assert.assertEquals(cache.getTenantCells("t2"), 60);
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ------------------------------------------------------------------
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TableSnapshotTest {
+
+  private static Map<String, String> row(String... nameValuePairs) {
+    Map<String, String> row = new LinkedHashMap<String, String>();
+    for (int i = 0; i < nameValuePairs.length; i += 2) {
+      row.put(nameValuePairs[i], nameValuePairs[i + 1]);
+    }
+    return row;
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    Map<String, Map<String, String>> table = new HashMap<String, Map<String, String>>();
+    table.put("k1", row("id", "k1", "city", "Zürich", "price", "10"));
+    table.put("k2", row("id", "k2", "city", "東京"));
+    table.put("", row("id", "", "price", ""));
+    TableSnapshot snapshot = TableSnapshot.open(TableSnapshot.write(table));
+    Assert.assertEquals(snapshot.size(), 3);
+    Assert.assertEquals(snapshot, table);
+    Assert.assertEquals(snapshot.get("k2").get("city"), "東京");
+    // absent cells stay absent, and empty cells stay empty
+    Assert.assertFalse(snapshot.get("k2").containsKey("price"));
+    Assert.assertEquals(snapshot.get("").get("price"), "");
+    Assert.assertNull(snapshot.get("k3"));
+    Assert.assertFalse(snapshot.containsKey(42));
+  }
+
+  @Test
+  public void emptyTable() throws Exception {
+    TableSnapshot snapshot =
+        TableSnapshot.open(TableSnapshot.write(new HashMap<String, Map<String, String>>()));
+    Assert.assertEquals(snapshot.size(), 0);
+    Assert.assertNull(snapshot.get("anything"));
+  }
+
+  @Test
+  public void manyRowsAndWideReferences() throws Exception {
+    // more than 65536 distinct values, so that references need three bytes
+    Map<String, Map<String, String>> table = new HashMap<String, Map<String, String>>();
+    for (int i = 0; i < 70000; i++) {
+      String key = String.format("K%08d", i);
+      table.put(key, row("key", key, "group", Integer.toString(i % 7)));
+    }
+    byte[] bytes = TableSnapshot.write(table);
+    TableSnapshot snapshot = TableSnapshot.open(bytes);
+    Assert.assertEquals(snapshot.size(), 70000);
+    Assert.assertEquals(snapshot.get("K00069999").get("group"), "6");
+    Assert.assertEquals(snapshot.get("K00000007").get("key"), "K00000007");
+    Assert.assertEquals(snapshot, table);
+
+    // and it is smaller than the java serialization of the same map, even with unique values
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(serialized);
+    out.writeObject(table);
+    out.close();
+    Assert.assertTrue(
+        bytes.length * 3 < serialized.size() * 2, bytes.length + " vs " + serialized.size());
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void rejectsOtherContent() {
+    TableSnapshot.open(new byte[64]);
+  }
+}